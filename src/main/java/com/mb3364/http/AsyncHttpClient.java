@@ -1,7 +1,27 @@
 package com.mb3364.http;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Client for making asynchronous HTTP requests.
@@ -11,185 +31,653 @@ import java.util.concurrent.Executors;
  */
 public class AsyncHttpClient extends HttpClient {
 
+    /* Whether a handler class, or one of its superclasses, overrides onStart or prepareRequest */
+    private static final ClassValue<Boolean> OVERRIDES_ON_START = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class<?> c = type; c != HttpResponseHandler.class; c = c.getSuperclass()) {
+                for (Method method : c.getDeclaredMethods()) {
+                    if ((method.getName().equals("onStart") || method.getName().equals("prepareRequest"))
+                            && Arrays.equals(method.getParameterTypes(), new Class<?>[]{HttpURLConnection.class})) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    };
+
     private final ExecutorService threadPool;
+    private final HttpEngine engine;
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final ConcurrentHashMap<String, SharedRequest> sharedRequests = new ConcurrentHashMap<>(); // in flight, by request key
+    private final AtomicLong coalescedRequests = new AtomicLong();
+    private volatile boolean coalesceRequests = false; // share one exchange between identical GET and HEAD requests?
+    private volatile HedgePolicy hedgePolicy; // when to send slow GET and HEAD requests again, null for never
+    private volatile ConcurrencyLimiter concurrencyLimiter; // limits requests in flight per host, null for none
 
     public AsyncHttpClient() {
+        this(Executors.newCachedThreadPool(), null);
+    }
+
+    /**
+     * Create a client that performs requests on an {@link HttpEngine} instead of dedicating a thread to
+     * each request. Requests the engine does not support are performed on the thread pool.
+     *
+     * @param engine the engine to perform requests with, or <code>null</code> to always use the thread pool
+     * @see NioHttpEngine
+     */
+    public AsyncHttpClient(HttpEngine engine) {
+        this(Executors.newCachedThreadPool(), engine);
+    }
+
+    /**
+     * Create a client with a bounded thread pool. At most <code>maxWorkers</code> requests are performed
+     * at once and at most <code>queueCapacity</code> more wait for a worker. Further requests are handled
+     * according to the {@link OverflowPolicy}.
+     *
+     * @param maxWorkers     the maximum number of worker threads
+     * @param queueCapacity  the maximum number of requests waiting for a worker
+     * @param overflowPolicy what to do with requests when the queue is full
+     * @see #newBoundedThreadPool(int, int, OverflowPolicy)
+     */
+    public AsyncHttpClient(int maxWorkers, int queueCapacity, OverflowPolicy overflowPolicy) {
+        this(newBoundedThreadPool(maxWorkers, queueCapacity, overflowPolicy), null);
+    }
+
+    /**
+     * Create a client that performs requests on the specified thread pool.
+     *
+     * @param threadPool the thread pool to perform requests on
+     */
+    public AsyncHttpClient(ExecutorService threadPool) {
+        this(threadPool, null);
+    }
+
+    /**
+     * Create a client that performs requests on an {@link HttpEngine} and falls back to the specified
+     * thread pool for requests the engine does not support.
+     *
+     * @param threadPool the thread pool to perform requests on
+     * @param engine     the engine to perform requests with, or <code>null</code> to always use the thread pool
+     */
+    public AsyncHttpClient(ExecutorService threadPool, HttpEngine engine) {
         super();
-        threadPool = Executors.newCachedThreadPool();
+        if (threadPool == null) throw new NullPointerException("threadPool");
+        this.threadPool = threadPool;
+        this.engine = engine;
     }
 
     /**
-     * Make a asynchronous HTTP DELETE request.
+     * Create a bounded thread pool for use with {@link #AsyncHttpClient(ExecutorService, HttpEngine)}.
+     * Idle workers are stopped after 60 seconds.
      *
-     * @param url     the URL of the resource to request
-     * @param handler the response handler
-     * @see #delete(String, RequestParams, HttpResponseHandler)
+     * @param maxWorkers     the maximum number of worker threads
+     * @param queueCapacity  the maximum number of requests waiting for a worker, may be 0
+     * @param overflowPolicy what to do with requests when the queue is full
+     * @return the thread pool
      */
-    @Override
-    public void delete(final String url, final HttpResponseHandler handler) {
-        threadPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                AsyncHttpClient.super.delete(url, handler);
-            }
-        });
+    public static ExecutorService newBoundedThreadPool(int maxWorkers, int queueCapacity, OverflowPolicy overflowPolicy) {
+        if (maxWorkers < 1) throw new IllegalArgumentException("maxWorkers must be at least 1");
+        if (queueCapacity < 0) throw new IllegalArgumentException("queueCapacity must not be negative");
+        if (overflowPolicy == null) throw new NullPointerException("overflowPolicy");
+
+        BlockingQueue<Runnable> queue = queueCapacity == 0
+                ? new SynchronousQueue<Runnable>()
+                : new ArrayBlockingQueue<Runnable>(queueCapacity);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60L, TimeUnit.SECONDS, queue,
+                new OverflowHandler(overflowPolicy));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /**
-     * Make a asynchronous HTTP DELETE request with parameters.
+     * Create a thread pool that performs each request on its own virtual thread. Blocking on the
+     * connection then parks a cheap virtual thread rather than a platform thread. Virtual threads are
+     * available from Java 21; on older JVMs this returns the same cached thread pool as {@link #AsyncHttpClient()}.
      *
-     * @param url     the URL of the resource to request
-     * @param params  the parameters to send with the request
-     * @param handler the response handler
-     * @see #delete(String, HttpResponseHandler)
+     * @return the thread pool
+     * @see #isVirtualThreadSupported()
      */
-    @Override
-    public void delete(final String url, final RequestParams params, final HttpResponseHandler handler) {
-        threadPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                AsyncHttpClient.super.delete(url, params, handler);
-            }
-        });
+    public static ExecutorService newVirtualThreadPool() {
+        ExecutorService virtualThreadPool = createVirtualThreadPool();
+        return virtualThreadPool != null ? virtualThreadPool : Executors.newCachedThreadPool();
     }
 
     /**
-     * Make a asynchronous HTTP GET request.
+     * Check if the running JVM supports virtual threads.
      *
-     * @param url     the URL of the resource to request
-     * @param handler the response handler
-     * @see #get(String, RequestParams, HttpResponseHandler)
+     * @return <code>true</code> if {@link #newVirtualThreadPool()} creates virtual threads, <code>false</code> otherwise
      */
-    @Override
-    public void get(final String url, final HttpResponseHandler handler) {
-        threadPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                AsyncHttpClient.super.get(url, handler);
-            }
-        });
+    public static boolean isVirtualThreadSupported() {
+        ExecutorService virtualThreadPool = createVirtualThreadPool();
+        if (virtualThreadPool == null) return false;
+        virtualThreadPool.shutdown();
+        return true;
+    }
+
+    /* Looked up reflectively so the library still builds and runs on older JVMs */
+    private static ExecutorService createVirtualThreadPool() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null; // Not available, or a preview feature that isn't enabled
+        }
     }
 
     /**
-     * Make a asynchronous HTTP GET request with parameters.
+     * Get the number of requests waiting for a worker thread.
      *
-     * @param url     the URL of the resource to request
-     * @param params  the parameters to send with the request
-     * @param handler the response handler
-     * @see #get(String, HttpResponseHandler)
+     * @return the queue depth, or <code>-1</code> if the thread pool does not report it
      */
-    @Override
-    public void get(final String url, final RequestParams params, final HttpResponseHandler handler) {
-        threadPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                AsyncHttpClient.super.get(url, params, handler);
-            }
-        });
+    public int getQueueDepth() {
+        if (threadPool instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) threadPool).getQueue().size();
+        }
+        return -1;
     }
 
     /**
-     * Make a asynchronous HTTP HEAD request.
+     * Get the approximate number of worker threads that are currently performing requests.
      *
-     * @param url     the URL of the resource to request
-     * @param handler the response handler
-     * @see #head(String, RequestParams, HttpResponseHandler)
+     * @return the number of active workers, or <code>-1</code> if the thread pool does not report it
      */
-    @Override
-    public void head(final String url, final HttpResponseHandler handler) {
-        threadPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                AsyncHttpClient.super.head(url, handler);
-            }
-        });
+    public int getActiveWorkerCount() {
+        if (threadPool instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) threadPool).getActiveCount();
+        }
+        return -1;
     }
 
     /**
-     * Make a asynchronous HTTP HEAD request with parameters.
+     * Get the number of requests that failed because the thread pool was full, including requests that
+     * were shed from the queue.
      *
-     * @param url     the URL of the resource to request
-     * @param params  the parameters to send with the request
-     * @param handler the response handler
-     * @see #head(String, HttpResponseHandler)
+     * @return the number of rejected requests
      */
-    @Override
-    public void head(final String url, final RequestParams params, final HttpResponseHandler handler) {
-        threadPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                AsyncHttpClient.super.head(url, params, handler);
-            }
-        });
+    public long getRejectedRequestCount() {
+        return rejectedRequests.get();
+    }
+
+    /**
+     * Gets whether identical GET and HEAD requests in flight at the same time share one exchange.
+     *
+     * @return <code>true</code> if requests are coalesced, <code>false</code> otherwise
+     * @see #setCoalesceRequests(boolean)
+     */
+    public boolean getCoalesceRequests() {
+        return coalesceRequests;
+    }
+
+    /**
+     * Set whether a GET or HEAD request identical to one already in flight, with the same URL, parameters
+     * and headers, should wait for that request's response instead of making its own. The response is read
+     * into memory once and handed to every waiting handler; the content array is shared between them, so
+     * handlers must not change it. Each handler's {@link HttpResponseHandler#onStart(java.net.HttpURLConnection)}
+     * is called when the shared response arrives. Handlers that override <code>onStart</code>, which may add
+     * headers of their own, and file and streaming downloads are never coalesced. Disabled by default.
+     *
+     * @param coalesceRequests <code>true</code> to coalesce identical requests, <code>false</code> otherwise
+     * @see #getCoalescedRequestCount()
+     */
+    public void setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    /**
+     * Get the number of requests that were answered with the response of an identical request already in
+     * flight, rather than making their own.
+     *
+     * @return the number of coalesced requests
+     */
+    public long getCoalescedRequestCount() {
+        return coalescedRequests.get();
+    }
+
+    /**
+     * Gets the policy deciding when a slow GET or HEAD request is sent a second time.
+     *
+     * @return the hedge policy, or <code>null</code> if requests are never hedged
+     * @see #setHedgePolicy(HedgePolicy)
+     */
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * Set the policy deciding when a GET or HEAD request that has no response yet is sent a second time, to
+     * cut the time spent waiting on a slow server. Whichever response arrives first is handed to the handler,
+     * once, and the other request is cancelled. Retries of a request and file downloads are not hedged.
+     *
+     * @param hedgePolicy the hedge policy, or <code>null</code> to never hedge requests
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * Gets the limiter that adapts how many requests are in flight to each host.
+     *
+     * @return the concurrency limiter, or <code>null</code> if there is no limit
+     * @see #setConcurrencyLimiter(ConcurrencyLimiter)
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
     }
 
     /**
-     * Make a asynchronous HTTP POST request.
+     * Set the limiter that adapts how many requests are in flight to each host to the host's round trip
+     * times and failures. Requests over a host's limit wait without holding a worker thread. Every attempt of
+     * a retried or hedged request counts.
+     *
+     * @param concurrencyLimiter the concurrency limiter, or <code>null</code> for no limit
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * Get the {@link HttpEngine} that requests are performed on.
+     *
+     * @return the engine, or <code>null</code> if all requests are performed on the thread pool
+     */
+    public HttpEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Download a file as several byte ranges fetched at the same time, which is faster than a single
+     * stream when each connection's throughput is limited. The server is first asked for the file's length
+     * with a HEAD request. If it doesn't accept byte ranges, or the file is smaller than two segments of a
+     * megabyte, the file is downloaded in a single stream instead.
+     * <p>
+     * {@link FileHttpResponseHandler#onStart(java.net.HttpURLConnection)} is called for every request made.
+     * {@link FileHttpResponseHandler#onProgressChanged(long, long)} reports the combined progress of all
+     * ranges, from whichever thread received the bytes.
+     * </p>
+     *
+     * @param url      the URL of the file to download
+     * @param segments the maximum number of ranges to fetch at the same time
+     * @param handler  the response handler, which holds the file to write to
+     */
+    public void download(String url, int segments, FileHttpResponseHandler handler) {
+        if (segments < 1) throw new IllegalArgumentException("segments must be at least 1");
+        new SegmentedDownload(this, url, segments, handler).start();
+    }
+
+    /**
+     * Makes an asynchronous HTTP request. The request is performed by the {@link HttpEngine} if one
+     * is set and supports the URL, otherwise it is performed on the thread pool. A fresh response from
+     * the cache is handed to the handler straight away, on the calling thread.
      *
      * @param url     the URL of the resource to request
+     * @param method  the {@link HttpRequestMethod} to use
+     * @param params  any parameters to send with the request, or null if none
      * @param handler the response handler
-     * @see #post(String, RequestParams, HttpResponseHandler)
      */
     @Override
-    public void post(final String url, final HttpResponseHandler handler) {
-        threadPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                AsyncHttpClient.super.post(url, handler);
-            }
-        });
+    protected void request(String url, HttpRequestMethod method, RequestParams params, HttpResponseHandler handler) {
+        if (coalesceRequests && isCoalescable(method, handler)) {
+            handler = join(requestKey(url, method, params), handler);
+            if (handler == null) return; // Waiting for an identical request
+        }
+
+        handler = checkCache(url, method, params, handler);
+        if (handler == null) return; // Served from the cache, no worker needed
+
+        handler = withRetries(url, method, params, handler);
+        HedgePolicy hedgePolicy = this.hedgePolicy;
+        if (hedgePolicy != null && isHedgeable(method, handler)) {
+            new HedgedRequest(this, hedgePolicy, url, method, params, handler).start();
+        } else {
+            dispatch(url, method, params, handler);
+        }
+    }
+
+    /**
+     * Schedules a request to be made again after waiting, without holding a worker thread meanwhile.
+     */
+    @Override
+    void retry(final String url, final HttpRequestMethod method, final RequestParams params,
+               final HttpResponseHandler handler, long delay) {
+        try {
+            Scheduler.INSTANCE.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatch(url, method, params, handler);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            handler.onFailure(e);
+        }
+    }
+
+    private static boolean isCoalescable(HttpRequestMethod method, HttpResponseHandler handler) {
+        if (method != HttpRequestMethod.GET && method != HttpRequestMethod.HEAD) return false;
+        // A shared response is read whole into memory, which files and streams are meant to avoid
+        if (handler instanceof FileHttpResponseHandler || handler instanceof StreamingHttpResponseHandler) return false;
+        // The request key only holds the client's headers, not those the handler adds
+        return !OVERRIDES_ON_START.get(handler.getClass());
+    }
+
+    private static boolean isHedgeable(HttpRequestMethod method, HttpResponseHandler handler) {
+        if (method != HttpRequestMethod.GET && method != HttpRequestMethod.HEAD) return false;
+        while (handler instanceof DelegatingHandler) {
+            handler = ((DelegatingHandler) handler).handler;
+        }
+        // A file download sets up where it writes, and from which byte it resumes, for the one request it makes
+        return !(handler instanceof FileHttpResponseHandler);
     }
 
     /**
-     * Make a asynchronous HTTP POST request with parameters.
+     * Adds a request to the identical one in flight, or makes it the request others wait for.
      *
-     * @param url     the URL of the resource to request
-     * @param params  the parameters to send with the request
+     * @param key     the request key
      * @param handler the response handler
-     * @see #post(String, HttpResponseHandler)
+     * @return <code>null</code> if the request waits for one in flight, otherwise the handler to make the
+     * request with, which shares the response
      */
-    @Override
-    public void post(final String url, final RequestParams params, final HttpResponseHandler handler) {
-        threadPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                AsyncHttpClient.super.post(url, params, handler);
+    private HttpResponseHandler join(String key, HttpResponseHandler handler) {
+        while (true) {
+            SharedRequest shared = sharedRequests.get(key);
+            if (shared == null) {
+                shared = new SharedRequest(key, handler);
+                SharedRequest existing = sharedRequests.putIfAbsent(key, shared);
+                if (existing == null) return shared;
+                shared = existing;
             }
-        });
+            if (shared.add(handler)) {
+                coalescedRequests.incrementAndGet();
+                return null;
+            }
+            sharedRequests.remove(key, shared); // Just completed, start another
+        }
     }
 
     /**
-     * Make a asynchronous HTTP PUT request.
+     * Hands a request to the engine or the thread pool, bypassing the cache, unless its host's circuit is open.
+     * A request that must wait for a rate limit permit is handed on once it has one.
      *
      * @param url     the URL of the resource to request
+     * @param method  the {@link HttpRequestMethod} to use
+     * @param params  any parameters to send with the request, or null if none
      * @param handler the response handler
-     * @see #put(String, RequestParams, HttpResponseHandler)
      */
-    @Override
-    public void put(final String url, final HttpResponseHandler handler) {
-        threadPool.execute(new Runnable() {
+    void dispatch(String url, HttpRequestMethod method, RequestParams params, HttpResponseHandler handler) {
+        handler = withCircuitBreaker(url, handler);
+        if (handler == null) return; // The host's circuit is open
+
+        long wait = reservePermits(url, handler);
+        if (wait < 0) return; // Would have waited too long
+        if (wait > 0) {
+            schedule(url, method, params, handler, wait);
+            return;
+        }
+
+        send(url, method, params, handler);
+    }
+
+    /**
+     * Sends a request later, without holding a worker thread meanwhile.
+     */
+    private void schedule(final String url, final HttpRequestMethod method, final RequestParams params,
+                          final HttpResponseHandler handler, long nanos) {
+        try {
+            Scheduler.INSTANCE.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    send(url, method, params, handler);
+                }
+            }, nanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            handler.onFailure(e);
+        }
+    }
+
+    /**
+     * Sends a request once its host is under its concurrency limit.
+     */
+    private void send(final String url, final HttpRequestMethod method, final RequestParams params,
+                      HttpResponseHandler handler) {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter == null) {
+            transmit(url, method, params, handler);
+            return;
+        }
+        limiter.submit(url, handler, new ConcurrencyLimiter.Sender() {
             @Override
-            public void run() {
-                AsyncHttpClient.super.put(url, handler);
+            void send(HttpResponseHandler handler) {
+                transmit(url, method, params, handler);
             }
         });
     }
 
+    private void transmit(String url, HttpRequestMethod method, RequestParams params, HttpResponseHandler handler) {
+        HttpCall call = newCall(method, url);
+        // An engine holds the whole response in memory, so content that is streamed is read on the thread pool
+        if (engine != null && !handler.streamsContent() && requestOnEngine(url, method, params, handler, call)) return;
+
+        try {
+            if (call != null) call.queued();
+            threadPool.execute(new RequestTask(url, method, params, handler, call));
+        } catch (RejectedExecutionException e) {
+            rejectedRequests.incrementAndGet();
+            if (call != null) call.callFailed(e);
+            handler.onFailure(e);
+        }
+    }
+
     /**
-     * Make a asynchronous HTTP PUT request with parameters.
+     * Hands a request to the engine.
      *
-     * @param url     the URL of the resource to request
-     * @param params  the parameters to send with the request
-     * @param handler the response handler
-     * @see #put(String, HttpResponseHandler)
+     * @return <code>true</code> if the request was taken by the engine, <code>false</code> if the engine does not support it
      */
-    @Override
-    public void put(final String url, final RequestParams params, final HttpResponseHandler handler) {
-        threadPool.execute(new Runnable() {
+    private boolean requestOnEngine(String url, HttpRequestMethod method, RequestParams params, HttpResponseHandler handler,
+                                    HttpCall call) {
+        if (params == null) params = new RequestParams();
+        try {
+            URL resourceUrl = new URL(buildUrl(url, method, params));
+            if (!engine.supports(resourceUrl)) return false;
+
+            BufferedHttpURLConnection connection = new BufferedHttpURLConnection(resourceUrl);
+            connection.resolver = getDnsResolver();
+            connection.call = call;
+            connection.metrics = getMetrics();
+            connection.startTime = System.nanoTime();
+            prepareConnection(connection, method);
+            checkCancelled(handler);
+            startRequest(connection, handler);
+            writeContent(connection, method, params);
+            if (call != null) call.queued();
+            engine.execute(connection, handler);
+        } catch (IOException e) {
+            if (call != null) call.callFailed(e);
+            handler.onFailure(e);
+        } catch (RuntimeException | Error e) {
+            // Thrown by a callback, let go of what the request holds before passing it on
+            handler.abandon();
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * A request waiting for, or running on, a worker thread.
+     */
+    private final class RequestTask implements Runnable {
+
+        private final String url;
+        private final HttpRequestMethod method;
+        private final RequestParams params;
+        private final HttpResponseHandler handler;
+        private final HttpCall call; // null if there are no event listeners
+
+        RequestTask(String url, HttpRequestMethod method, RequestParams params, HttpResponseHandler handler,
+                    HttpCall call) {
+            this.url = url;
+            this.method = method;
+            this.params = params;
+            this.handler = handler;
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            if (call != null) call.dequeued();
+            perform(url, method, params, handler, call);
+        }
+
+        void shed() {
+            rejectedRequests.incrementAndGet();
+            RejectedExecutionException e = new RejectedExecutionException("Request was shed from the full queue: " + url);
+            if (call != null) call.callFailed(e);
+            handler.onFailure(e);
+        }
+    }
+
+    /**
+     * A request whose response is shared by every identical request made while it is in flight. The
+     * response is read into memory once, then each handler is given its own connection carrying it.
+     */
+    private final class SharedRequest extends HttpResponseHandler {
+
+        private final String key;
+        private final List<HttpResponseHandler> handlers = new ArrayList<>(); // guarded by this
+        private boolean complete = false; // guarded by this
+
+        SharedRequest(String key, HttpResponseHandler handler) {
+            this.key = key;
+            handlers.add(handler);
+        }
+
+        /**
+         * Add a handler for the response.
+         *
+         * @return <code>true</code> if the handler was added, <code>false</code> if the response was already handed out
+         */
+        synchronized boolean add(HttpResponseHandler handler) {
+            if (complete) return false;
+            handlers.add(handler);
+            return true;
+        }
+
+        /* No more handlers can join once the response is being handed out */
+        private List<HttpResponseHandler> complete() {
+            List<HttpResponseHandler> waiting;
+            synchronized (this) {
+                complete = true;
+                waiting = new ArrayList<>(handlers);
+            }
+            sharedRequests.remove(key, this);
+            return waiting;
+        }
+
+        @Override
+        protected void processResponse(HttpURLConnection connection) {
+            int responseCode;
+            String responseMessage;
+            byte[] content;
+            try {
+                responseCode = connection.getResponseCode();
+                responseMessage = connection.getResponseMessage();
+                // The content is kept as sent, each handler decompresses it itself
+                InputStream inputStream = responseCode >= 200 && responseCode < 300
+                        ? connection.getInputStream()
+                        : connection.getErrorStream();
+                try {
+                    content = inputStream == null ? new byte[0] : readFrom(inputStream, connection.getContentLength());
+                } finally {
+                    close(inputStream);
+                }
+            } catch (IOException e) {
+                onFailure(e);
+                return;
+            }
+
+            List<Map.Entry<String, String>> headers = BufferedHttpURLConnection.copyHeaders(connection);
+            for (HttpResponseHandler handler : complete()) {
+                BufferedHttpURLConnection shared = new BufferedHttpURLConnection(connection.getURL());
+                startRequest(shared, handler);
+                shared.setResponse(responseCode, responseMessage, headers, content);
+                handler.processResponse(shared);
+                handler.onFinish(shared);
+            }
+        }
+
+        @Override
+        public void onSuccess(int statusCode, Map<String, List<String>> headers, byte[] content) {
+            // Never called, processResponse hands the response to the waiting handlers
+        }
+
+        @Override
+        public void onFailure(int statusCode, Map<String, List<String>> headers, byte[] content) {
+            // Never called, processResponse hands the response to the waiting handlers
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            for (HttpResponseHandler handler : complete()) {
+                handler.onFailure(throwable);
+            }
+        }
+    }
+
+    /**
+     * Holds the thread that waits out delays, such as the backoff before a retry, so no worker thread is
+     * held while waiting. It only hands requests on, and is created when first needed.
+     */
+    static final class Scheduler {
+
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
             @Override
-            public void run() {
-                AsyncHttpClient.super.put(url, params, handler);
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "http-scheduler");
+                thread.setDaemon(true);
+                return thread;
             }
         });
     }
+
+    /**
+     * Applies an {@link OverflowPolicy} when a bounded thread pool is full.
+     */
+    private static final class OverflowHandler implements RejectedExecutionHandler {
+
+        private final OverflowPolicy policy;
+
+        OverflowHandler(OverflowPolicy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Thread pool has been shut down");
+            }
+            switch (policy) {
+                case BLOCK:
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for room in the queue", e);
+                    }
+                    break;
+                case SHED_OLDEST:
+                    while (!executor.getQueue().offer(task)) {
+                        Runnable oldest = executor.getQueue().poll();
+                        if (oldest == null) {
+                            throw new RejectedExecutionException("Thread pool is full");
+                        }
+                        if (oldest instanceof RequestTask) {
+                            ((RequestTask) oldest).shed();
+                        }
+                    }
+                    break;
+                default:
+                    throw new RejectedExecutionException("Thread pool is full");
+            }
+        }
+    }
 }
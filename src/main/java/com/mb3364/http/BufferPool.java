@@ -0,0 +1,348 @@
+package com.mb3364.http;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of I/O buffers shared by the requests of a client, so reading and writing content doesn't
+ * allocate a new buffer for every request.
+ * <p>
+ * Buffers are pooled in power of two size classes from {@value #MIN_BUFFER_SIZE} bytes to
+ * {@value #MAX_BUFFER_SIZE} bytes. Each platform thread keeps one buffer of each size class up to
+ * {@value #MAX_THREAD_BUFFER_SIZE} bytes for itself and the rest are shared, up to a limit on the total number
+ * of pooled bytes. Larger requests are simply allocated. The buffers kept by a thread are bounded separately
+ * from the shared ones, at most 124 KB of arrays and 124 KB of buffers a thread, and are freed with the thread.
+ * Virtual threads only use the shared buffers, since a virtual thread usually performs a single request and its
+ * own buffers would be lost with it.
+ * </p>
+ * <p>
+ * A buffer released twice, on the thread that keeps it or while it is in the shared pool, is only pooled
+ * once, so two requests can't be handed the same buffer.
+ * </p>
+ *
+ * @see HttpClient#setBufferPool(BufferPool)
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_POOLED_BYTES = 16L * 1024 * 1024;
+    public static final int MAX_THREAD_BUFFER_SIZE = 64 * 1024;
+
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1;
+    private static final int THREAD_SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_THREAD_BUFFER_SIZE) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1;
+
+    private static final BufferPool DEFAULT = new BufferPool();
+
+    private static final Method IS_VIRTUAL = isVirtualMethod(); // null before Java 21
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+    private static final Object[] NO_CACHE = new Object[0]; // for virtual threads
+
+    private final long maxPooledBytes;
+    private final boolean direct;
+
+    private final SizeClasses<byte[]> arrays = new SizeClasses<>();
+    private final SizeClasses<ByteBuffer> buffers = new SizeClasses<>();
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong inUseBytes = new AtomicLong();
+    private final AtomicLong highWaterMark = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    /**
+     * Create a pool of heap buffers that holds at most {@value #DEFAULT_MAX_POOLED_BYTES} bytes.
+     */
+    public BufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES, false);
+    }
+
+    /**
+     * Create a pool.
+     *
+     * @param maxPooledBytes the maximum number of bytes kept in the shared pool
+     * @param direct         <code>true</code> if {@link #acquireBuffer(int)} should return direct buffers,
+     *                       which avoid a copy when reading from or writing to channels
+     */
+    public BufferPool(long maxPooledBytes, boolean direct) {
+        if (maxPooledBytes < 0) throw new IllegalArgumentException("maxPooledBytes must not be negative");
+        this.maxPooledBytes = maxPooledBytes;
+        this.direct = direct;
+    }
+
+    /**
+     * Get the pool that clients use unless another one is set.
+     *
+     * @return the shared default pool
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Take a byte array from the pool, or allocate one.
+     *
+     * @param minSize the minimum size of the array
+     * @return an array of at least <code>minSize</code> bytes, to be returned with {@link #release(byte[])}
+     */
+    public byte[] acquire(int minSize) {
+        int sizeClass = sizeClass(minSize);
+        if (sizeClass >= 0) {
+            byte[] array = arrays.take(sizeClass, this);
+            if (array != null) {
+                reused(array.length);
+                return array;
+            }
+            minSize = MIN_BUFFER_SIZE << sizeClass;
+        }
+        allocated(minSize);
+        return new byte[minSize];
+    }
+
+    /**
+     * Return a byte array to the pool. Arrays of a size the pool doesn't hand out are ignored; other arrays
+     * are pooled even if they weren't acquired from this pool.
+     *
+     * @param array the array to return, may be <code>null</code>
+     */
+    public void release(byte[] array) {
+        if (array == null || !isAcquirableSize(array.length)) return;
+        int sizeClass = exactSizeClass(array.length);
+        if (sizeClass >= 0 && !arrays.give(sizeClass, array, array.length, this)) return; // Released twice
+        released(array.length);
+    }
+
+    /**
+     * Take a {@link ByteBuffer} from the pool, or allocate one. The buffer is direct if the pool was created
+     * for direct buffers. It is cleared and its capacity may be larger than requested.
+     *
+     * @param minSize the minimum capacity of the buffer
+     * @return a buffer of at least <code>minSize</code> bytes, to be returned with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquireBuffer(int minSize) {
+        int sizeClass = sizeClass(minSize);
+        if (sizeClass >= 0) {
+            ByteBuffer buffer = buffers.take(sizeClass, this);
+            if (buffer != null) {
+                reused(buffer.capacity());
+                buffer.clear();
+                return buffer;
+            }
+            minSize = MIN_BUFFER_SIZE << sizeClass;
+        }
+        allocated(minSize);
+        return direct ? ByteBuffer.allocateDirect(minSize) : ByteBuffer.allocate(minSize);
+    }
+
+    /**
+     * Return a {@link ByteBuffer} to the pool. Buffers of a capacity the pool doesn't hand out are ignored.
+     *
+     * @param buffer the buffer to return, may be <code>null</code>
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !isAcquirableSize(buffer.capacity())) return;
+        int sizeClass = exactSizeClass(buffer.capacity());
+        if (sizeClass >= 0 && buffer.isDirect() == direct && !buffers.give(sizeClass, buffer, buffer.capacity(), this)) {
+            return; // Released twice
+        }
+        released(buffer.capacity());
+    }
+
+    /**
+     * Check if {@link #acquireBuffer(int)} returns direct buffers.
+     *
+     * @return <code>true</code> for direct buffers, <code>false</code> for heap buffers
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Get the number of buffers that had to be allocated.
+     *
+     * @return the number of allocations
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /**
+     * Get the number of times a pooled buffer was reused instead of allocating a new one.
+     *
+     * @return the number of allocations avoided
+     */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    /**
+     * Get the number of bytes currently held in the shared pool, not counting the buffers kept by threads.
+     *
+     * @return the number of pooled bytes
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Get the largest number of bytes that were in use at the same time.
+     *
+     * @return the high-water mark in bytes
+     */
+    public long getHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    private void allocated(int size) {
+        allocations.incrementAndGet();
+        inUse(size);
+    }
+
+    private void reused(int size) {
+        reuses.incrementAndGet();
+        inUse(size);
+    }
+
+    /* Never below zero, since buffers the pool didn't hand out can't all be told apart */
+    private void released(int size) {
+        long current;
+        do {
+            current = inUseBytes.get();
+        } while (!inUseBytes.compareAndSet(current, Math.max(0, current - size)));
+    }
+
+    private void inUse(int size) {
+        long now = inUseBytes.addAndGet(size);
+        long mark;
+        while (now > (mark = highWaterMark.get())) {
+            if (highWaterMark.compareAndSet(mark, now)) break;
+        }
+    }
+
+    /* The smallest size class that fits, or -1 if the size is too large to pool */
+    private static int sizeClass(int size) {
+        if (size > MAX_BUFFER_SIZE) return -1;
+        if (size <= MIN_BUFFER_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    /* Whether an array of this size could have been acquired: a size class, or too large to pool */
+    private static boolean isAcquirableSize(int size) {
+        return size > MAX_BUFFER_SIZE || exactSizeClass(size) >= 0;
+    }
+
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /* Looked up reflectively so the library still builds and runs on older JVMs. Only asked once a thread. */
+    private static boolean isVirtualThread() {
+        if (IS_VIRTUAL == null) return false;
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(Thread.currentThread(), NO_ARGUMENTS);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /* The size class of exactly this size, or -1 if it isn't one */
+    private static int exactSizeClass(int size) {
+        if (size < MIN_BUFFER_SIZE || size > MAX_BUFFER_SIZE || Integer.bitCount(size) != 1) return -1;
+        return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * Free buffers of one kind, by size class: one of each small size class kept by each thread, the rest shared.
+     */
+    private static final class SizeClasses<T> {
+
+        private final ThreadLocal<Object[]> local = new ThreadLocal<Object[]>() {
+            @Override
+            protected Object[] initialValue() {
+                return isVirtualThread() ? NO_CACHE : new Object[THREAD_SIZE_CLASSES];
+            }
+        };
+        private final Queue<Pooled>[] shared;
+        private final Set<Pooled> pooled = Collections.newSetFromMap(new ConcurrentHashMap<Pooled, Boolean>()); // the shared ones
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        SizeClasses() {
+            shared = new Queue[SIZE_CLASSES];
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                shared[i] = new ConcurrentLinkedQueue<>();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        T take(int sizeClass, BufferPool pool) {
+            Object[] cache = local.get();
+            if (sizeClass < cache.length && cache[sizeClass] != null) {
+                T buffer = (T) cache[sizeClass];
+                cache[sizeClass] = null;
+                return buffer;
+            }
+            Pooled entry = shared[sizeClass].poll();
+            if (entry == null) return null;
+            pooled.remove(entry);
+            pool.pooledBytes.addAndGet(-(MIN_BUFFER_SIZE << sizeClass));
+            return (T) entry.buffer;
+        }
+
+        /* Returns false if the buffer is already in the pool */
+        boolean give(int sizeClass, T buffer, int size, BufferPool pool) {
+            Object[] cache = local.get();
+            boolean keep = false;
+            if (sizeClass < cache.length) {
+                if (cache[sizeClass] == buffer) return false;
+                keep = cache[sizeClass] == null;
+            }
+            Pooled entry = new Pooled(buffer);
+            if (keep) {
+                if (pooled.contains(entry)) return false;
+                cache[sizeClass] = buffer;
+                return true;
+            }
+            if (!pooled.add(entry)) return false;
+            if (pool.pooledBytes.addAndGet(size) <= pool.maxPooledBytes) {
+                shared[sizeClass].offer(entry);
+            } else {
+                pool.pooledBytes.addAndGet(-size); // Full, let it be garbage collected
+                pooled.remove(entry);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A shared buffer, equal only to another entry for the same buffer. <code>ByteBuffer</code> compares its
+     * content, so the buffer itself can't tell it apart from others.
+     */
+    private static final class Pooled {
+
+        final Object buffer;
+
+        Pooled(Object buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Pooled && ((Pooled) o).buffer == buffer;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(buffer);
+        }
+    }
+}
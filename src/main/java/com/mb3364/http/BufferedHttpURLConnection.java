@@ -0,0 +1,310 @@
+package com.mb3364.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An {@link HttpURLConnection} that has no socket of its own. The request content is buffered in memory
+ * and the response is supplied by whoever actually performed the exchange, such as an {@link HttpEngine}.
+ * This lets other transports drive the existing {@link HttpResponseHandler} callbacks unchanged.
+ *
+ * @see HttpEngine
+ */
+class BufferedHttpURLConnection extends HttpURLConnection {
+
+    /* Header names are case-insensitive. The status line is stored under the null key like HttpURLConnection does. */
+    static final Comparator<String> HEADER_NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            if (a == null) return b == null ? 0 : -1;
+            if (b == null) return 1;
+            return a.compareToIgnoreCase(b);
+        }
+    };
+
+    /* Headers that describe the connection rather than the response, which are not copied */
+    private static final Set<String> HOP_BY_HOP_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        Collections.addAll(HOP_BY_HOP_HEADERS,
+                "Connection", "Keep-Alive", "Proxy-Authenticate", "Proxy-Connection", "Trailer", "Transfer-Encoding", "Upgrade");
+    }
+
+    DnsResolver resolver = DnsResolver.SYSTEM; // set by the client, finds the host for an engine
+    HttpCall call; // set by the client, reports an engine's progress, null if there are no event listeners
+    HttpMetrics metrics; // set by the client, null if it keeps none
+    long startTime; // System.nanoTime() at which the request was handed to the engine, for the metrics
+
+    private final ContentOutputStream requestContent = new ContentOutputStream();
+
+    private Map<String, List<String>> responseHeaders = Collections.emptyMap();
+    private final List<String> headerKeys = new ArrayList<>();
+    private final List<String> headerValues = new ArrayList<>();
+    private byte[] responseContent = new byte[0];
+    private boolean responseReceived = false;
+    private volatile boolean cancelled = false;
+
+    BufferedHttpURLConnection(URL url) {
+        super(url);
+    }
+
+    /**
+     * Creates an empty, ordered, case-insensitive header map.
+     *
+     * @return a new header map
+     */
+    static Map<String, List<String>> newHeaderMap() {
+        return new TreeMap<String, List<String>>(HEADER_NAME_ORDER);
+    }
+
+    @Override
+    public void connect() {
+        connected = true;
+    }
+
+    /**
+     * Cancels the request. {@link NioHttpEngine} fails it with an <code>InterruptedIOException</code> at its
+     * next timeout check, whether it is still waiting for a connection or already on the wire, and closes the
+     * connection of an exchange in progress instead of reusing it. {@link Http2Engine} doesn't watch for it, so
+     * the stream completes and the response is ignored by the handler that cancelled it.
+     */
+    @Override
+    public void disconnect() {
+        cancelled = true; // Nothing to release, the engine owns the socket
+    }
+
+    /**
+     * Check if the request was cancelled with {@link #disconnect()}.
+     *
+     * @return <code>true</code> if the request should not be sent
+     */
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (!getDoOutput()) {
+            throw new ProtocolException("cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+        }
+        return requestContent;
+    }
+
+    /**
+     * Get the request content that was written to {@link #getOutputStream()}. The buffer is backed by the
+     * stream's own array rather than a copy, so nothing may be written to the stream once the request is sent.
+     *
+     * @return the request content body from position zero to its limit, empty if none was written
+     */
+    ByteBuffer getRequestContent() {
+        return requestContent.content();
+    }
+
+    /**
+     * Copies the headers of a response received by another connection, in the order they were received, so
+     * the response can be supplied again with {@link #setResponse(int, String, List, byte[])}. The status line
+     * and headers that only apply to the connection, such as <code>Transfer-Encoding</code>, are left out.
+     *
+     * @param connection the connection that received the response
+     * @return the response headers
+     */
+    static List<Map.Entry<String, String>> copyHeaders(HttpURLConnection connection) {
+        List<Map.Entry<String, String>> headers = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            String value = connection.getHeaderField(i);
+            if (value == null) break;
+            String name = connection.getHeaderFieldKey(i);
+            if (name == null || HOP_BY_HOP_HEADERS.contains(name)) continue;
+            headers.add(new AbstractMap.SimpleImmutableEntry<>(name, value));
+        }
+        return headers;
+    }
+
+    /**
+     * Finds the socket address of the connection's current URL with the client's resolver.
+     *
+     * @return the resolved address of the host and port
+     * @throws UnknownHostException if the host has no addresses
+     */
+    InetSocketAddress resolveAddress() throws UnknownHostException {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        InetAddress[] addresses = resolver.resolve(url.getHost());
+        if (addresses == null || addresses.length == 0) throw new UnknownHostException(url.getHost());
+        return new InetSocketAddress(addresses[0], port);
+    }
+
+    /**
+     * Point the connection at a new URL, used when an engine follows a redirect.
+     *
+     * @param url the new URL
+     */
+    void setURL(URL url) {
+        this.url = url;
+    }
+
+    /**
+     * Supply the response once it has been received.
+     *
+     * @param statusCode the HTTP status code
+     * @param message    the HTTP reason phrase, or <code>null</code> if none
+     * @param headers    the response headers, in the order they were received
+     * @param content    the response content body
+     */
+    void setResponse(int statusCode, String message, List<Map.Entry<String, String>> headers, byte[] content) {
+        this.responseCode = statusCode;
+        this.responseMessage = message;
+        this.responseContent = content == null ? new byte[0] : content;
+
+        Map<String, List<String>> fields = newHeaderMap();
+        String statusLine = "HTTP/1.1 " + statusCode + (message == null ? "" : " " + message);
+        fields.put(null, Collections.singletonList(statusLine));
+        headerKeys.clear();
+        headerValues.clear();
+        headerKeys.add(null);
+        headerValues.add(statusLine);
+        for (Map.Entry<String, String> header : headers) {
+            List<String> values = fields.get(header.getKey());
+            if (values == null) {
+                values = new ArrayList<>(1);
+                fields.put(header.getKey(), values);
+            }
+            values.add(header.getValue());
+            headerKeys.add(header.getKey());
+            headerValues.add(header.getValue());
+        }
+        for (Map.Entry<String, List<String>> field : fields.entrySet()) {
+            field.setValue(Collections.unmodifiableList(field.getValue()));
+        }
+        this.responseHeaders = Collections.unmodifiableMap(fields);
+        this.responseReceived = true;
+        this.connected = true;
+    }
+
+    /* Records the response in the client's metrics, if it keeps any */
+    void recordResponse() {
+        if (metrics == null) return;
+        metrics.record(HttpRequestMethod.valueOf(method), url, responseCode, requestContent.size(),
+                responseContent.length, System.nanoTime() - startTime);
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        checkResponse();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        checkResponse();
+        return responseMessage;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        return responseHeaders;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        List<String> values = responseHeaders.get(name);
+        if (values == null || values.isEmpty()) return null;
+        return values.get(values.size() - 1);
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        return n >= 0 && n < headerKeys.size() ? headerKeys.get(n) : null;
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        return n >= 0 && n < headerValues.size() ? headerValues.get(n) : null;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        checkResponse();
+        if (responseCode >= 400) {
+            if (responseCode == HttpStatusCodes.NOT_FOUND || responseCode == HttpStatusCodes.GONE) {
+                throw new FileNotFoundException(url.toString());
+            }
+            throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url);
+        }
+        return new ContentInputStream(responseContent);
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        if (!responseReceived || responseCode < 400 || responseContent.length == 0) return null;
+        return new ContentInputStream(responseContent);
+    }
+
+    private void checkResponse() throws IOException {
+        if (!responseReceived) {
+            throw new IOException("No response has been received for URL: " + url);
+        }
+    }
+
+    /**
+     * A stream that collects the request content and can hand over its array without copying it.
+     */
+    static final class ContentOutputStream extends ByteArrayOutputStream {
+
+        /**
+         * Get the content written so far.
+         *
+         * @return a buffer over the stream's array, whose limit is the length of the content
+         */
+        synchronized ByteBuffer content() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * A stream over the response content that can also hand over the content array itself, so a handler
+     * that wants the whole body doesn't have to copy it.
+     */
+    static final class ContentInputStream extends ByteArrayInputStream {
+
+        ContentInputStream(byte[] content) {
+            super(content);
+        }
+
+        /**
+         * Take the rest of the content, leaving the stream at its end.
+         *
+         * @return the unread content, the original array if none of it was read yet
+         */
+        synchronized byte[] takeContent() {
+            byte[] content = pos == 0 && count == buf.length ? buf : Arrays.copyOfRange(buf, pos, count);
+            pos = count;
+            return content;
+        }
+    }
+}
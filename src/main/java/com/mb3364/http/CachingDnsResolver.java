@@ -0,0 +1,324 @@
+package com.mb3364.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link DnsResolver} that caches the addresses found by another resolver, so a slow lookup is only
+ * paid once per time to live rather than on every request.
+ * <p>
+ * An address that is used during the last quarter of its time to live is looked up again in the
+ * background, while the cached address keeps being used, so hosts in steady use never wait for a lookup.
+ * Hosts that could not be found are remembered for a shorter time. Static overrides take precedence over
+ * any lookup, which is useful for pointing a host at a test server.
+ * </p>
+ * Example:
+ * <pre>
+ * CachingDnsResolver resolver = new CachingDnsResolver();
+ * resolver.setTtl(5 * 60 * 1000);
+ * resolver.override("api.example.org", InetAddress.getByName("127.0.0.1"));
+ * client.setDnsResolver(resolver);
+ * </pre>
+ * The resolver used for lookups doesn't report the time to live of the records it finds, so it is set
+ * on this cache instead.
+ */
+public class CachingDnsResolver implements DnsResolver {
+
+    public static final long DEFAULT_TTL = 60000; // in milliseconds
+    public static final long DEFAULT_NEGATIVE_TTL = 5000; // in milliseconds
+
+    private final DnsResolver resolver;
+    private final Executor refresher;
+
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, InetAddress[]> overrides = new ConcurrentHashMap<>();
+
+    private volatile long ttl = DEFAULT_TTL;
+    private volatile long negativeTtl = DEFAULT_NEGATIVE_TTL;
+
+    private final AtomicLong resolveCount = new AtomicLong();
+    private final AtomicLong resolveNanos = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    /**
+     * Create a cache in front of the JVM's resolver.
+     */
+    public CachingDnsResolver() {
+        this(DnsResolver.SYSTEM);
+    }
+
+    /**
+     * Create a cache in front of another resolver. Background lookups are made on a single daemon thread
+     * that stops when idle.
+     *
+     * @param resolver the resolver to look hosts up with
+     */
+    public CachingDnsResolver(DnsResolver resolver) {
+        this(resolver, newRefresher());
+    }
+
+    /**
+     * Create a cache in front of another resolver, with the executor to make background lookups on.
+     *
+     * @param resolver  the resolver to look hosts up with
+     * @param refresher the executor to make background lookups on
+     */
+    public CachingDnsResolver(DnsResolver resolver, Executor refresher) {
+        if (resolver == null) throw new IllegalArgumentException("resolver must not be null");
+        if (refresher == null) throw new IllegalArgumentException("refresher must not be null");
+        this.resolver = resolver;
+        this.refresher = refresher;
+    }
+
+    private static Executor newRefresher() {
+        return new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "dns-refresh");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long start = System.nanoTime();
+        try {
+            String key = host.toLowerCase(Locale.ROOT);
+            InetAddress[] override = overrides.get(key);
+            if (override != null) return override.clone();
+
+            Entry entry = cache.get(key);
+            if (entry != null && start - entry.expiresAt < 0) {
+                if (entry.addresses == null) {
+                    negativeHits.incrementAndGet();
+                    throw new UnknownHostException(host);
+                }
+                hits.incrementAndGet();
+                if (start - entry.refreshAt >= 0 && entry.refreshing.compareAndSet(false, true)) {
+                    refresh(key, host, entry);
+                }
+                return entry.addresses.clone();
+            }
+
+            misses.incrementAndGet();
+            try {
+                return lookup(key, host).clone();
+            } catch (UnknownHostException e) {
+                cache.put(key, new Entry(null, System.nanoTime(), negativeTtl));
+                throw e;
+            }
+        } finally {
+            resolveCount.incrementAndGet();
+            resolveNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private InetAddress[] lookup(String key, String host) throws UnknownHostException {
+        long start = System.nanoTime();
+        try {
+            InetAddress[] addresses = resolver.resolve(host);
+            if (addresses == null || addresses.length == 0) throw new UnknownHostException(host);
+            cache.put(key, new Entry(addresses.clone(), System.nanoTime(), ttl));
+            return addresses;
+        } finally {
+            lookupCount.incrementAndGet();
+            lookupNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /* Looks the host up again while the cached addresses are still used */
+    private void refresh(final String key, final String host, final Entry entry) {
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        lookup(key, host);
+                        refreshCount.incrementAndGet();
+                    } catch (UnknownHostException | RuntimeException e) {
+                        // Keep the addresses until they expire, the lookup is retried then
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false); // Try again on the next use
+        }
+    }
+
+    /**
+     * Always resolve a host to the specified addresses, without a lookup.
+     *
+     * @param host      the host name
+     * @param addresses the addresses to resolve it to, the preferred address first
+     * @see #removeOverride(String)
+     */
+    public void override(String host, InetAddress... addresses) {
+        if (addresses.length == 0) throw new IllegalArgumentException("At least one address is required");
+        overrides.put(host.toLowerCase(Locale.ROOT), addresses.clone());
+    }
+
+    /**
+     * Remove a static override, so the host is looked up again.
+     *
+     * @param host the host name
+     * @see #override(String, InetAddress...)
+     */
+    public void removeOverride(String host) {
+        overrides.remove(host.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Forget every cached address and every host that could not be found. Overrides are kept.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Get how long found addresses are cached.
+     *
+     * @return the time to live in milliseconds
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Set how long found addresses are cached. Applies to addresses found from now on.
+     *
+     * @param ttl the time to live in milliseconds
+     */
+    public void setTtl(long ttl) {
+        if (ttl < 0) throw new IllegalArgumentException("ttl must not be negative");
+        this.ttl = ttl;
+    }
+
+    /**
+     * Get how long a host that could not be found is remembered.
+     *
+     * @return the negative time to live in milliseconds
+     */
+    public long getNegativeTtl() {
+        return negativeTtl;
+    }
+
+    /**
+     * Set how long a host that could not be found is remembered, failing further requests to it without a
+     * lookup. Applies to lookups failing from now on.
+     *
+     * @param negativeTtl the negative time to live in milliseconds, 0 to not remember failures
+     */
+    public void setNegativeTtl(long negativeTtl) {
+        if (negativeTtl < 0) throw new IllegalArgumentException("negativeTtl must not be negative");
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * Get the number of hosts resolved, whether from the cache, an override or a lookup.
+     *
+     * @return the number of resolutions
+     */
+    public long getResolveCount() {
+        return resolveCount.get();
+    }
+
+    /**
+     * Get the total time callers spent resolving hosts. Divided by {@link #getResolveCount()} this is the
+     * average DNS cost of a request.
+     *
+     * @return the total resolution time in nanoseconds
+     */
+    public long getResolveTimeNanos() {
+        return resolveNanos.get();
+    }
+
+    /**
+     * Get the number of hosts resolved from cached addresses.
+     *
+     * @return the number of cache hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of resolutions that failed because the host was recently not found.
+     *
+     * @return the number of negative cache hits
+     */
+    public long getNegativeHitCount() {
+        return negativeHits.get();
+    }
+
+    /**
+     * Get the number of resolutions that had to wait for a lookup.
+     *
+     * @return the number of cache misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of lookups made, including those made in the background.
+     *
+     * @return the number of lookups
+     */
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+
+    /**
+     * Get the total time spent in lookups, including those made in the background.
+     *
+     * @return the total lookup time in nanoseconds
+     */
+    public long getLookupTimeNanos() {
+        return lookupNanos.get();
+    }
+
+    /**
+     * Get the number of cached addresses that were refreshed in the background before they expired.
+     *
+     * @return the number of background refreshes
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * The addresses of a host, or that it could not be found, and when they expire.
+     */
+    private static final class Entry {
+
+        final InetAddress[] addresses; // null if the host could not be found
+        final long expiresAt; // System.nanoTime()
+        final long refreshAt; // System.nanoTime(), after which a use triggers a background lookup
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(InetAddress[] addresses, long now, long ttl) {
+            this.addresses = addresses;
+            long ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+            this.expiresAt = now + ttlNanos;
+            this.refreshAt = now + ttlNanos / 4 * 3;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.mb3364.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops requests to a host that is failing, so they fail straight away instead of each taking a worker
+ * and waiting for a timeout. Set it on a client with {@link HttpClient#setCircuitBreaker(CircuitBreaker)}.
+ * <p>
+ * Each host has its own circuit. While it is {@link State#CLOSED} requests are made and the outcomes of the
+ * last ones are kept. A request fails if it ends with an exception or a <code>5xx</code> response, and is
+ * slow if its response takes longer than the slow call duration. When too many of the recent requests
+ * failed, or were slow, the circuit opens. While it is {@link State#OPEN} requests fail on the calling
+ * thread with a {@link CircuitBreakerOpenException}. After the open duration a few trial requests are let
+ * through ({@link State#HALF_OPEN}); if they succeed the circuit closes again, otherwise it opens again.
+ * </p>
+ * Example:
+ * <pre>
+ * CircuitBreaker breaker = new CircuitBreaker();
+ * breaker.setFailureRateThreshold(50);  // open when half the recent requests failed
+ * breaker.setOpenDuration(10000);       // try again after 10 seconds
+ * breaker.addListener(new CircuitBreaker.Listener() {
+ *     &#064;Override
+ *     public void onStateChanged(String host, CircuitBreaker.State from, CircuitBreaker.State to) {
+ *         log.warn(host + " circuit is " + to);
+ *     }
+ * });
+ * client.setCircuitBreaker(breaker);
+ * </pre>
+ */
+public class CircuitBreaker {
+
+    /**
+     * The state of a host's circuit.
+     */
+    public enum State {
+        /** Requests are made, and their outcomes recorded */
+        CLOSED,
+        /** Requests fail straight away */
+        OPEN,
+        /** A few trial requests are made to decide whether to close the circuit again */
+        HALF_OPEN
+    }
+
+    /**
+     * Told when a host's circuit changes state. Listeners are called on the thread that made or completed
+     * the request causing the change, so they should return quickly.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a host's circuit changes state.
+         *
+         * @param host the host and port of the circuit
+         * @param from the previous state
+         * @param to   the new state
+         */
+        void onStateChanged(String host, State from, State to);
+    }
+
+    private volatile int windowSize = 100; // requests whose outcome is kept
+    private volatile int minimumCalls = 10; // requests needed before the circuit may open
+    private volatile double failureRateThreshold = 50; // percent
+    private volatile double slowCallRateThreshold = 100; // percent
+    private volatile long slowCallDuration = 10000; // in milliseconds
+    private volatile long openDuration = 30000; // in milliseconds
+    private volatile int halfOpenCalls = 5; // trial requests
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Lets a request through, or fails it straight away if its host's circuit is open.
+     *
+     * @param url     the URL of the resource to request
+     * @param handler the response handler
+     * @return the handler to make the request with, which records its outcome, or <code>null</code> if the
+     * request was failed
+     */
+    HttpResponseHandler guard(String url, HttpResponseHandler handler) {
+        String host = HttpClient.hostOf(url);
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            circuit = new Circuit(host);
+            Circuit existing = circuits.putIfAbsent(host, circuit);
+            if (existing != null) circuit = existing;
+        }
+
+        long generation = circuit.acquire();
+        if (generation < 0) {
+            rejected.incrementAndGet();
+            handler.onFailure(new CircuitBreakerOpenException(host));
+            return null;
+        }
+        return new Guard(circuit, generation, handler);
+    }
+
+    private void stateChanged(String host, State from, State to) {
+        for (Listener listener : listeners) {
+            listener.onStateChanged(host, from, to);
+        }
+    }
+
+    /**
+     * Get the state of a host's circuit.
+     *
+     * @param host the host, with the port if it isn't the default for the protocol
+     * @return the state, {@link State#CLOSED} if no requests were made to the host
+     */
+    public State getState(String host) {
+        Circuit circuit = circuits.get(host.toLowerCase());
+        return circuit == null ? State.CLOSED : circuit.getState();
+    }
+
+    /**
+     * Close every circuit and forget the outcomes of past requests.
+     */
+    public void reset() {
+        circuits.clear();
+    }
+
+    /**
+     * Add a listener to be told when a circuit changes state.
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener added with {@link #addListener(Listener)}.
+     *
+     * @param listener the listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Set how many of the most recent requests to a host decide whether its circuit opens, and how many of
+     * them there must be at least. Applies to circuits created afterwards.
+     *
+     * @param windowSize   the number of requests whose outcome is kept, 100 by default
+     * @param minimumCalls the fewest requests before the circuit may open, 10 by default
+     */
+    public void setWindow(int windowSize, int minimumCalls) {
+        if (windowSize < 1) throw new IllegalArgumentException("windowSize must be at least 1");
+        if (minimumCalls < 1 || minimumCalls > windowSize) {
+            throw new IllegalArgumentException("minimumCalls must be between 1 and windowSize");
+        }
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+    }
+
+    /**
+     * Gets the percentage of failed requests at which a circuit opens.
+     *
+     * @return the failure rate threshold, in percent
+     */
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Set the percentage of failed requests at which a circuit opens.
+     *
+     * @param failureRateThreshold the failure rate threshold, in percent, 50 by default
+     */
+    public void setFailureRateThreshold(double failureRateThreshold) {
+        if (failureRateThreshold <= 0 || failureRateThreshold > 100) {
+            throw new IllegalArgumentException("failureRateThreshold must be in (0, 100]");
+        }
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    /**
+     * Gets the percentage of slow requests at which a circuit opens.
+     *
+     * @return the slow call rate threshold, in percent
+     */
+    public double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    /**
+     * Set the percentage of slow requests at which a circuit opens, and how long a response may take
+     * before the request counts as slow.
+     *
+     * @param slowCallRateThreshold the slow call rate threshold, in percent, 100 by default
+     * @param slowCallDuration      the longest a response may take in milliseconds, 10000 by default
+     */
+    public void setSlowCallRateThreshold(double slowCallRateThreshold, long slowCallDuration) {
+        if (slowCallRateThreshold <= 0 || slowCallRateThreshold > 100) {
+            throw new IllegalArgumentException("slowCallRateThreshold must be in (0, 100]");
+        }
+        if (slowCallDuration < 0) throw new IllegalArgumentException("slowCallDuration must not be negative");
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDuration = slowCallDuration;
+    }
+
+    /**
+     * Gets how long a circuit stays open before trial requests are let through.
+     *
+     * @return the open duration in milliseconds
+     */
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * Set how long a circuit stays open before trial requests are let through.
+     *
+     * @param openDuration the open duration in milliseconds, 30000 by default
+     */
+    public void setOpenDuration(long openDuration) {
+        if (openDuration < 0) throw new IllegalArgumentException("openDuration must not be negative");
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Gets the number of trial requests let through a half-open circuit.
+     *
+     * @return the number of trial requests
+     */
+    public int getHalfOpenCalls() {
+        return halfOpenCalls;
+    }
+
+    /**
+     * Set the number of trial requests let through a half-open circuit. Once they have all completed the
+     * circuit closes, unless too many of them failed or were slow.
+     *
+     * @param halfOpenCalls the number of trial requests, 5 by default
+     */
+    public void setHalfOpenCalls(int halfOpenCalls) {
+        if (halfOpenCalls < 1) throw new IllegalArgumentException("halfOpenCalls must be at least 1");
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Get the number of requests failed straight away because their host's circuit was open.
+     *
+     * @return the number of rejected requests
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * The state of one host, and the outcomes of its recent requests. Each change of state starts a new
+     * generation, so requests made before it don't count towards the new state.
+     */
+    private final class Circuit {
+
+        private final String host;
+        private final boolean[] failed; // guarded by this
+        private final boolean[] slow; // guarded by this
+        private State state = State.CLOSED; // guarded by this
+        private long generation = 0; // guarded by this
+        private int calls = 0; // outcomes recorded this generation, guarded by this
+        private int failures = 0; // guarded by this
+        private int slowCalls = 0; // guarded by this
+        private int permits = 0; // trial requests left to let through, guarded by this
+        private long openedAt; // guarded by this
+
+        Circuit(String host) {
+            this.host = host;
+            this.failed = new boolean[windowSize];
+            this.slow = new boolean[windowSize];
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        /* Returns the generation the request belongs to, or -1 if it may not be made */
+        long acquire() {
+            long generation;
+            synchronized (this) {
+                if (state == State.OPEN) {
+                    if (System.currentTimeMillis() - openedAt < openDuration) return -1;
+                    transition(State.HALF_OPEN);
+                } else if (state == State.CLOSED) {
+                    return this.generation;
+                } else if (permits == 0) {
+                    return -1;
+                } else {
+                    permits--;
+                    return this.generation;
+                }
+                permits--;
+                generation = this.generation;
+            }
+            stateChanged(host, State.OPEN, State.HALF_OPEN);
+            return generation;
+        }
+
+        /* Records the outcome of a request, or just its end if it has none */
+        void record(long generation, boolean hasOutcome, boolean isFailure, boolean isSlow) {
+            State from;
+            State to;
+            synchronized (this) {
+                if (generation != this.generation) return; // Made before the state changed
+                if (!hasOutcome) {
+                    if (state == State.HALF_OPEN) permits++; // Let another trial request through
+                    return;
+                }
+
+                int window = state == State.HALF_OPEN ? Math.min(halfOpenCalls, failed.length) : failed.length;
+                int index = calls % failed.length;
+                if (calls >= window) {
+                    // The oldest outcome leaves the window
+                    if (failed[index]) failures--;
+                    if (slow[index]) slowCalls--;
+                }
+                failed[index] = isFailure;
+                slow[index] = isSlow;
+                if (isFailure) failures++;
+                if (isSlow) slowCalls++;
+                calls++;
+                if (calls == 2 * failed.length) calls = failed.length; // Keep the index from overflowing
+
+                int counted = Math.min(calls, window);
+                boolean tripped = failures * 100.0 >= failureRateThreshold * counted
+                        || slowCalls * 100.0 >= slowCallRateThreshold * counted;
+                from = state;
+                if (state == State.CLOSED) {
+                    if (counted < minimumCalls || !tripped) return;
+                    to = State.OPEN;
+                } else {
+                    if (counted < window) return; // Wait for the other trial requests
+                    to = tripped ? State.OPEN : State.CLOSED;
+                }
+                transition(to);
+            }
+            stateChanged(host, from, to);
+        }
+
+        /* Guarded by this */
+        private void transition(State to) {
+            state = to;
+            generation++;
+            calls = 0;
+            failures = 0;
+            slowCalls = 0;
+            permits = to == State.HALF_OPEN ? halfOpenCalls : 0;
+            if (to == State.OPEN) openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Records the outcome of a request in its host's circuit, then hands it to the real handler.
+     */
+    private final class Guard extends DelegatingHandler {
+
+        private final Circuit circuit;
+        private final long generation;
+        private long started; // in nanoseconds
+        private boolean recorded = false;
+
+        Guard(Circuit circuit, long generation, HttpResponseHandler handler) {
+            super(handler);
+            this.circuit = circuit;
+            this.generation = generation;
+        }
+
+        private void record(boolean hasOutcome, boolean isFailure, boolean isSlow) {
+            if (recorded) return;
+            recorded = true;
+            circuit.record(generation, hasOutcome, isFailure, isSlow);
+        }
+
+        @Override
+        void prepareRequest(HttpURLConnection httpURLConnection) {
+            started = System.nanoTime();
+            super.prepareRequest(httpURLConnection);
+        }
+
+        @Override
+        void abandon() {
+            record(false, false, false); // Says nothing about the host, but gives back a trial request
+            super.abandon();
+        }
+
+        @Override
+        protected void processResponse(HttpURLConnection connection) {
+            int responseCode;
+            try {
+                responseCode = connection.getResponseCode();
+            } catch (IOException e) {
+                responseCode = -1; // The handler will fail on it too
+            }
+            boolean isSlow = System.nanoTime() - started > TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+            boolean isFailure = responseCode < 0 || responseCode >= 500;
+            record(!handler.isCancelled(), isFailure, isSlow);
+            handler.processResponse(connection);
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            // Only a failure to reach the host counts against it, not a request the client turned away itself
+            boolean isFailure = throwable instanceof IOException && !handler.isCancelled()
+                    && !(throwable instanceof RateLimitExceededException)
+                    && !(throwable instanceof CircuitBreakerOpenException);
+            record(isFailure, true, false);
+            handler.onFailure(throwable);
+        }
+
+        @Override
+        public void onSuccess(int statusCode, Map<String, List<String>> headers, byte[] content) {
+            // Never called, processResponse hands the response to the real handler
+        }
+
+        @Override
+        public void onFailure(int statusCode, Map<String, List<String>> headers, byte[] content) {
+            // Never called, processResponse hands the response to the real handler
+        }
+    }
+}
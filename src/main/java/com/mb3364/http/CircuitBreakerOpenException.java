@@ -0,0 +1,29 @@
+package com.mb3364.http;
+
+import java.io.IOException;
+
+/**
+ * Signals that a request was not made because the {@link CircuitBreaker} for its host is open.
+ *
+ * @see HttpClient#setCircuitBreaker(CircuitBreaker)
+ */
+public class CircuitBreakerOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String host;
+
+    public CircuitBreakerOpenException(String host) {
+        super("Circuit breaker is open for " + host);
+        this.host = host;
+    }
+
+    /**
+     * Get the host whose circuit is open.
+     *
+     * @return the host and port
+     */
+    public String getHost() {
+        return host;
+    }
+}
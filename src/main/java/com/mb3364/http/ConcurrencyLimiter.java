@@ -0,0 +1,481 @@
+package com.mb3364.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many requests an {@link AsyncHttpClient} has in flight to each host, and adapts the limit to
+ * how the host responds. Set it on a client with {@link AsyncHttpClient#setConcurrencyLimiter(ConcurrencyLimiter)}.
+ * <p>
+ * The round trip time of every request is measured. While the host responds about as fast as it did at
+ * its quickest the limit grows, and once responses slow down, showing requests are queueing at the host,
+ * or requests fail, the limit shrinks. Requests over a host's limit wait in line, without holding a thread,
+ * until one of its requests completes; when the line is full they fail with a
+ * {@link RejectedExecutionException}.
+ * </p>
+ * Two ways to adapt the limit are offered. {@link Algorithm#AIMD} adds one to the limit for each fast
+ * response while the limit is in use, and multiplies it by the backoff ratio for each slow or failed one.
+ * {@link Algorithm#GRADIENT} moves the limit towards the current limit scaled by the ratio of the quickest
+ * round trip time to the recent one, plus a small allowance for growth.
+ * <p>
+ * Example:
+ * <pre>
+ * ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimiter.Algorithm.GRADIENT);
+ * limiter.setLimits(20, 1, 500);      // start at 20, never below 1 or above 500
+ * limiter.setMaxQueueSize(1000);       // then fail requests
+ * client.setConcurrencyLimiter(limiter);
+ * limiter.getLimit("api.example.org"); // the current limit
+ * </pre>
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * How the limit adapts to round trip times and failures.
+     */
+    public enum Algorithm {
+        /** Additive increase, multiplicative decrease */
+        AIMD,
+        /** Scale the limit by the ratio of the quickest round trip time to the recent one */
+        GRADIENT
+    }
+
+    private static final double RTT_SMOOTHING = 0.1; // weight of each sample in the recent round trip time
+    private static final double LIMIT_SMOOTHING = 0.2; // how far the gradient limit moves for each window
+    private static final int MIN_RTT_WINDOWS = 500; // windows after which the quickest round trip is measured again
+
+    private final Algorithm algorithm;
+    private volatile int initialLimit = 20;
+    private volatile int minLimit = 1;
+    private volatile int maxLimit = 200;
+    private volatile double tolerance = 2; // round trips up to this many times the quickest are fast
+    private volatile double backoffRatio = 0.9;
+    private volatile int maxQueueSize = Integer.MAX_VALUE; // per host
+
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Create a concurrency limiter that adapts with {@link Algorithm#AIMD}.
+     */
+    public ConcurrencyLimiter() {
+        this(Algorithm.AIMD);
+    }
+
+    /**
+     * Create a concurrency limiter.
+     *
+     * @param algorithm how the limit adapts
+     */
+    public ConcurrencyLimiter(Algorithm algorithm) {
+        if (algorithm == null) throw new NullPointerException("algorithm");
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Sends a request on behalf of the limiter.
+     */
+    abstract static class Sender {
+
+        /**
+         * Sends the request.
+         *
+         * @param handler the handler to send it with, which tells the limiter when it completes
+         */
+        abstract void send(HttpResponseHandler handler);
+    }
+
+    /**
+     * Sends a request now if its host is under its limit, otherwise queues it, or fails it if the queue is full.
+     *
+     * @param url     the URL of the resource to request
+     * @param handler the response handler
+     * @param sender  sends the request
+     */
+    void submit(String url, HttpResponseHandler handler, Sender sender) {
+        Host host = host(HttpClient.hostOf(url));
+        Limited request = new Limited(host, handler, sender);
+        synchronized (host) {
+            if (host.inFlight < (int) host.limit) {
+                host.inFlight++;
+            } else if (host.queue.size() < maxQueueSize) {
+                host.queue.add(request);
+                queued.incrementAndGet();
+                return;
+            } else {
+                request = null;
+            }
+        }
+        if (request == null) {
+            rejected.incrementAndGet();
+            handler.onFailure(new RejectedExecutionException("Concurrency limit reached for " + host.name));
+            return;
+        }
+        sender.send(request);
+    }
+
+    private Host host(String name) {
+        Host host = hosts.get(name);
+        if (host == null) {
+            host = new Host(name, initialLimit);
+            Host existing = hosts.putIfAbsent(name, host);
+            if (existing != null) host = existing;
+        }
+        return host;
+    }
+
+    /**
+     * Ends a request, adapts the host's limit to its outcome and sends the requests that now fit.
+     *
+     * @param host    the host the request was sent to
+     * @param started when the request was sent in nanoseconds
+     * @param rtt     the round trip time in nanoseconds, or -1 if the request says nothing about the host
+     * @param dropped <code>true</code> if the request failed or was refused because the host is overloaded
+     */
+    private void release(Host host, long started, long rtt, boolean dropped) {
+        synchronized (host) {
+            int inFlight = host.inFlight--;
+            if (rtt >= 0) sample(host, started, rtt, dropped, inFlight);
+            if (host.draining) return; // The thread sending queued requests will send the one that now fits
+            host.draining = true;
+        }
+        drain(host);
+    }
+
+    /*
+     * Sends queued requests until the host is at its limit. A request that fails while it is being sent, such
+     * as one the thread pool rejects, is released back into this loop instead of sending the next one from its
+     * failure callback, so a long queue doesn't take a stack frame for each request.
+     */
+    private void drain(Host host) {
+        while (true) {
+            Limited next;
+            synchronized (host) {
+                if (host.queue.isEmpty() || host.inFlight >= (int) host.limit) {
+                    host.draining = false;
+                    return;
+                }
+                next = host.queue.poll();
+                host.inFlight++;
+            }
+            boolean sent = false;
+            try {
+                next.sender.send(next);
+                sent = true;
+            } finally {
+                // A callback threw on this thread, let the next release send the rest of the queue
+                if (!sent) {
+                    synchronized (host) {
+                        host.draining = false;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Guarded by the host. Samples are gathered over a window about one round trip long, and the limit is
+     * adapted once per window. Requests sent before the limit last changed are left out, since they show the
+     * effect of the old limit. Only the quicker of the requests sent during a window complete within it, so the
+     * limit is adapted to the smoothed round trip time when that is slower than the window's.
+     */
+    private void sample(Host host, long started, long rtt, boolean dropped, int inFlight) {
+        host.rtt = host.rtt == 0 ? rtt : (long) (host.rtt * (1 - RTT_SMOOTHING) + rtt * RTT_SMOOTHING);
+        if (host.minRtt == 0 || rtt < host.minRtt) host.minRtt = rtt;
+        if (started - host.windowStart < 0) return;
+
+        host.windowRtt += rtt;
+        host.windowSamples++;
+        host.windowDropped |= dropped;
+        host.windowInFlight = Math.max(host.windowInFlight, inFlight);
+        long now = System.nanoTime();
+        if (now - host.windowStart < host.rtt && !dropped) return;
+
+        adapt(host, Math.max(host.rtt, host.windowRtt / host.windowSamples), host.windowDropped, host.windowInFlight);
+        if (++host.windows % MIN_RTT_WINDOWS == 0) host.minRtt = host.rtt; // Let it rise if the host got slower
+        host.windowStart = now;
+        host.windowRtt = 0;
+        host.windowSamples = 0;
+        host.windowDropped = false;
+        host.windowInFlight = 0;
+    }
+
+    /* Guarded by the host */
+    private void adapt(Host host, long rtt, boolean dropped, int inFlight) {
+        double limit = host.limit;
+        boolean used = inFlight * 2 >= limit; // Don't grow a limit that isn't reached
+        if (algorithm == Algorithm.AIMD) {
+            if (dropped || rtt > host.minRtt * tolerance) {
+                limit = limit * backoffRatio;
+            } else if (used) {
+                limit = limit + 1;
+            }
+        } else {
+            double target;
+            if (dropped) {
+                target = limit * backoffRatio;
+            } else {
+                double gradient = Math.max(0.5, Math.min(1, tolerance * host.minRtt / rtt));
+                target = limit * gradient + (used ? Math.sqrt(limit) : 0);
+            }
+            limit = limit * (1 - LIMIT_SMOOTHING) + target * LIMIT_SMOOTHING;
+        }
+        host.limit = Math.max(minLimit, Math.min(maxLimit, limit));
+    }
+
+    /**
+     * Get the current limit on requests in flight to a host.
+     *
+     * @param host the host, with the port if the URLs requested have one
+     * @return the limit, or the initial limit if no requests were made to the host
+     */
+    public int getLimit(String host) {
+        Host state = hosts.get(host.toLowerCase());
+        if (state == null) return initialLimit;
+        synchronized (state) {
+            return (int) state.limit;
+        }
+    }
+
+    /**
+     * Get the recent round trip time to a host, smoothed over the last few requests.
+     *
+     * @param host the host, with the port if the URLs requested have one
+     * @return the round trip time in nanoseconds, or 0 if no requests to the host have completed
+     */
+    public long getRtt(String host) {
+        Host state = hosts.get(host.toLowerCase());
+        if (state == null) return 0;
+        synchronized (state) {
+            return state.rtt;
+        }
+    }
+
+    /**
+     * Get the quickest recent round trip time to a host, which the recent one is compared to.
+     *
+     * @param host the host, with the port if the URLs requested have one
+     * @return the round trip time in nanoseconds, or 0 if no requests to the host have completed
+     */
+    public long getMinRtt(String host) {
+        Host state = hosts.get(host.toLowerCase());
+        if (state == null) return 0;
+        synchronized (state) {
+            return state.minRtt;
+        }
+    }
+
+    /**
+     * Get the number of requests in flight to a host.
+     *
+     * @param host the host, with the port if the URLs requested have one
+     * @return the number of requests in flight
+     */
+    public int getInFlight(String host) {
+        Host state = hosts.get(host.toLowerCase());
+        if (state == null) return 0;
+        synchronized (state) {
+            return state.inFlight;
+        }
+    }
+
+    /**
+     * Get the number of requests to a host waiting for one in flight to complete.
+     *
+     * @param host the host, with the port if the URLs requested have one
+     * @return the number of queued requests
+     */
+    public int getQueueDepth(String host) {
+        Host state = hosts.get(host.toLowerCase());
+        if (state == null) return 0;
+        synchronized (state) {
+            return state.queue.size();
+        }
+    }
+
+    /**
+     * Gets how the limit adapts.
+     *
+     * @return the algorithm
+     */
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Set the limit hosts start at, and the range it adapts within. Applies to hosts first requested afterwards.
+     *
+     * @param initialLimit the limit for a host's first requests, 20 by default
+     * @param minLimit     the lowest limit, 1 by default
+     * @param maxLimit     the highest limit, 200 by default
+     */
+    public void setLimits(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1) throw new IllegalArgumentException("minLimit must be at least 1");
+        if (maxLimit < minLimit) throw new IllegalArgumentException("maxLimit must be at least minLimit");
+        if (initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("initialLimit must be between minLimit and maxLimit");
+        }
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Set how much slower than the quickest round trip time a response may be before the host is taken to
+     * be queueing requests, and how much the limit shrinks when it is.
+     *
+     * @param tolerance    the ratio of round trip times, 2 by default
+     * @param backoffRatio what the limit is multiplied by for a slow or failed request, 0.9 by default
+     */
+    public void setBackoff(double tolerance, double backoffRatio) {
+        if (tolerance < 1) throw new IllegalArgumentException("tolerance must be at least 1");
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be in (0, 1)");
+        }
+        this.tolerance = tolerance;
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * Gets the most requests to a host that wait for one in flight to complete.
+     *
+     * @return the maximum queue size
+     */
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * Set the most requests to a host that wait for one in flight to complete. Further requests fail
+     * straight away with a {@link RejectedExecutionException}.
+     *
+     * @param maxQueueSize the maximum queue size per host, 0 to never wait, unlimited by default
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        if (maxQueueSize < 0) throw new IllegalArgumentException("maxQueueSize must not be negative");
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * Get the number of requests that waited for their host to be under its limit.
+     *
+     * @return the number of queued requests
+     */
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Get the number of requests failed because their host's queue was full.
+     *
+     * @return the number of rejected requests
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * The limit and round trip times of one host. Guarded by itself.
+     */
+    private static final class Host {
+
+        final String name;
+        final ArrayDeque<Limited> queue = new ArrayDeque<>();
+        double limit;
+        int inFlight = 0;
+        long rtt = 0; // smoothed, in nanoseconds
+        long minRtt = 0; // in nanoseconds
+        long windows = 0;
+        long windowStart = System.nanoTime(); // when the current window started, in nanoseconds
+        long windowRtt = 0; // sum of the window's round trip times
+        int windowSamples = 0;
+        boolean windowDropped = false;
+        int windowInFlight = 0; // most requests in flight during the window
+        boolean draining = false; // whether a thread is sending queued requests
+
+        Host(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * Measures a request's round trip time and tells the limiter when it completes, then hands it to the
+     * real handler.
+     */
+    private final class Limited extends DelegatingHandler {
+
+        private final Host host;
+        private final Sender sender;
+        private long started; // in nanoseconds
+        private boolean released = false;
+
+        Limited(Host host, HttpResponseHandler handler, Sender sender) {
+            super(handler);
+            this.host = host;
+            this.sender = sender;
+        }
+
+        private void release(long rtt, boolean dropped) {
+            if (released) return;
+            released = true;
+            ConcurrencyLimiter.this.release(host, started, rtt, dropped);
+        }
+
+        @Override
+        void prepareRequest(HttpURLConnection httpURLConnection) {
+            started = System.nanoTime();
+            super.prepareRequest(httpURLConnection);
+        }
+
+        @Override
+        void abandon() {
+            release(-1, false); // Says nothing about the host
+            super.abandon();
+        }
+
+        @Override
+        protected void processResponse(HttpURLConnection connection) {
+            int responseCode;
+            try {
+                responseCode = connection.getResponseCode();
+            } catch (IOException e) {
+                responseCode = -1; // The handler will fail on it too
+            }
+            long rtt = System.nanoTime() - started;
+            if (responseCode < 0) {
+                release(rtt, !handler.isCancelled());
+            } else {
+                release(rtt, responseCode == HttpStatusCodes.TOO_MANY_REQUESTS || responseCode >= 500);
+            }
+            handler.processResponse(connection);
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            if (throwable instanceof IOException && !handler.isCancelled() && started != 0) {
+                release(System.nanoTime() - started, true);
+            } else {
+                release(-1, false); // Never reached the host
+            }
+            handler.onFailure(throwable);
+        }
+
+        @Override
+        public void onSuccess(int statusCode, Map<String, List<String>> headers, byte[] content) {
+            // Never called, processResponse hands the response to the real handler
+        }
+
+        @Override
+        public void onFailure(int statusCode, Map<String, List<String>> headers, byte[] content) {
+            // Never called, processResponse hands the response to the real handler
+        }
+    }
+}
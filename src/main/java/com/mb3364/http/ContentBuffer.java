@@ -0,0 +1,135 @@
+package com.mb3364.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects a content body into a byte array. When the length is known up front the exact array is allocated
+ * and filled in place, so it can be handed over without a copy. Otherwise the content is kept in a list of
+ * growing segments that are never copied while the body grows, and joined once at the end.
+ */
+final class ContentBuffer {
+
+    /* Larger declared lengths aren't trusted with a single allocation, they grow in segments instead */
+    static final int MAX_PREALLOCATED = 64 * 1024 * 1024;
+
+    private static final int MIN_SEGMENT_SIZE = 8 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    private final List<byte[]> segments = new ArrayList<>(); // full segments, not including current
+    private byte[] current;
+    private int position; // bytes used in current
+    private long size;
+
+    /**
+     * @param expectedLength the declared length of the content, or -1 if unknown
+     */
+    ContentBuffer(long expectedLength) {
+        if (expectedLength >= 0 && expectedLength <= MAX_PREALLOCATED) {
+            current = new byte[(int) expectedLength];
+        }
+    }
+
+    /**
+     * Get the number of bytes collected so far.
+     *
+     * @return the content length so far
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Read from the stream straight into the buffer.
+     *
+     * @param inputStream the stream to read from
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if an error occurs while reading
+     */
+    int readFrom(InputStream inputStream) throws IOException {
+        if (current != null && position == current.length) {
+            // Full, most likely because the expected length was reached. Don't grow just to see the end.
+            int b = inputStream.read();
+            if (b == -1) return -1;
+            nextSegment();
+            current[position++] = (byte) b;
+            size++;
+            return 1;
+        }
+        if (current == null) nextSegment();
+        int bytesRead = inputStream.read(current, position, current.length - position);
+        if (bytesRead > 0) {
+            position += bytesRead;
+            size += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Append bytes to the content.
+     *
+     * @param bytes  the bytes to append
+     * @param offset the offset of the first byte
+     * @param length the number of bytes to append
+     */
+    void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (current == null || position == current.length) nextSegment();
+            int n = Math.min(length, current.length - position);
+            System.arraycopy(bytes, offset, current, position, n);
+            position += n;
+            size += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Consume bytes from a buffer.
+     *
+     * @param buffer the buffer to read from
+     * @param length the number of bytes to consume
+     */
+    void write(ByteBuffer buffer, int length) {
+        while (length > 0) {
+            if (current == null || position == current.length) nextSegment();
+            int n = Math.min(length, current.length - position);
+            buffer.get(current, position, n);
+            position += n;
+            size += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Get the collected content. If the expected length was allocated and filled exactly, that array is
+     * returned as is.
+     *
+     * @return the content body
+     */
+    byte[] toByteArray() {
+        if (current == null) return new byte[0];
+        if (segments.isEmpty() && position == current.length) return current;
+        if (size > Integer.MAX_VALUE) throw new OutOfMemoryError("Content too large for a byte array: " + size);
+
+        byte[] content = new byte[(int) size];
+        int offset = 0;
+        for (byte[] segment : segments) {
+            System.arraycopy(segment, 0, content, offset, segment.length);
+            offset += segment.length;
+        }
+        System.arraycopy(current, 0, content, offset, position);
+        return content;
+    }
+
+    /* Called when current is full */
+    private void nextSegment() {
+        if (current != null) segments.add(current);
+        // Grow geometrically so the number of segments stays small
+        current = new byte[(int) Math.min(MAX_SEGMENT_SIZE, Math.max(MIN_SEGMENT_SIZE, size))];
+        position = 0;
+    }
+}
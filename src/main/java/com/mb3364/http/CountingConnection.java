@@ -0,0 +1,207 @@
+package com.mb3364.http;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the bytes of content actually written to and read from a connection, for the client's metrics.
+ * The request content is written and the response handled through this connection, which passes everything
+ * else on to the real one. Bytes are counted as they cross the connection's own streams, so compressed
+ * content is counted compressed and content of any length is counted, however it was framed.
+ */
+final class CountingConnection extends HttpURLConnection {
+
+    private final HttpURLConnection connection;
+    private long bytesSent;
+    private long bytesReceived;
+    private InputStream in; // the connection's stream that counted is made for
+    private InputStream counted;
+
+    CountingConnection(HttpURLConnection connection) {
+        super(connection.getURL());
+        this.connection = connection;
+    }
+
+    /**
+     * Get the number of bytes of request content written to the connection.
+     *
+     * @return the number of bytes
+     */
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Get the number of bytes of response content read from the connection.
+     *
+     * @return the number of bytes
+     */
+    long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return new FilterOutputStream(connection.getOutputStream()) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesSent++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len); // Not a byte at a time like FilterOutputStream
+                bytesSent += len;
+            }
+        };
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return count(connection.getInputStream());
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return count(connection.getErrorStream());
+    }
+
+    /* The same stream is counted once however often it's asked for */
+    private InputStream count(InputStream stream) {
+        if (stream == null) return null;
+        if (stream != in) {
+            in = stream;
+            counted = new FilterInputStream(stream) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) bytesReceived++;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int bytesRead = super.read(b, off, len);
+                    if (bytesRead > 0) bytesReceived += bytesRead;
+                    return bytesRead;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    long skipped = super.skip(n);
+                    if (skipped > 0) bytesReceived += skipped;
+                    return skipped;
+                }
+            };
+        }
+        return counted;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        connection.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        connection.disconnect();
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return connection.usingProxy();
+    }
+
+    @Override
+    public URL getURL() {
+        return connection.getURL(); // Changes when a redirect is followed
+    }
+
+    @Override
+    public void setDoOutput(boolean doOutput) {
+        connection.setDoOutput(doOutput);
+    }
+
+    @Override
+    public boolean getDoOutput() {
+        return connection.getDoOutput();
+    }
+
+    @Override
+    public void setChunkedStreamingMode(int chunkLength) {
+        connection.setChunkedStreamingMode(chunkLength);
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(int contentLength) {
+        connection.setFixedLengthStreamingMode(contentLength);
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(long contentLength) {
+        connection.setFixedLengthStreamingMode(contentLength);
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return connection.getRequestMethod();
+    }
+
+    @Override
+    public void setRequestProperty(String key, String value) {
+        connection.setRequestProperty(key, value);
+    }
+
+    @Override
+    public void addRequestProperty(String key, String value) {
+        connection.addRequestProperty(key, value);
+    }
+
+    @Override
+    public String getRequestProperty(String key) {
+        return connection.getRequestProperty(key);
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestProperties() {
+        return connection.getRequestProperties();
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        return connection.getResponseCode();
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        return connection.getResponseMessage();
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        return connection.getHeaderFields();
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        return connection.getHeaderField(name);
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        return connection.getHeaderFieldKey(n);
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        return connection.getHeaderField(n);
+    }
+}
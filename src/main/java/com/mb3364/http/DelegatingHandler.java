@@ -0,0 +1,72 @@
+package com.mb3364.http;
+
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Makes a request on behalf of another handler, such as a retry or one of several segments, and passes
+ * every callback on to it. The client's settings are passed on before each attempt is prepared, and the
+ * request is cancelled when the real handler's is. Subclasses override the callbacks they handle
+ * differently.
+ */
+abstract class DelegatingHandler extends HttpResponseHandler {
+
+    final HttpResponseHandler handler; // the real handler
+
+    DelegatingHandler(HttpResponseHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    void prepareRequest(HttpURLConnection httpURLConnection) {
+        handler.bufferPool = bufferPool;
+        handler.decompress = decompress;
+        handler.prepareRequest(httpURLConnection);
+    }
+
+    @Override
+    public void onStart(HttpURLConnection httpURLConnection) {
+        handler.onStart(httpURLConnection);
+    }
+
+    @Override
+    boolean isCancelled() {
+        return handler.isCancelled();
+    }
+
+    @Override
+    void abandon() {
+        handler.abandon();
+    }
+
+    @Override
+    boolean streamsContent() {
+        return handler.streamsContent();
+    }
+
+    @Override
+    protected void processResponse(HttpURLConnection connection) {
+        handler.processResponse(connection);
+    }
+
+    @Override
+    public void onFinish(HttpURLConnection httpURLConnection) {
+        handler.onFinish(httpURLConnection);
+    }
+
+    @Override
+    public void onSuccess(int statusCode, Map<String, List<String>> headers, byte[] content) {
+        handler.onSuccess(statusCode, headers, content);
+    }
+
+    @Override
+    public void onFailure(int statusCode, Map<String, List<String>> headers, byte[] content) {
+        handler.onFailure(statusCode, headers, content);
+    }
+
+    @Override
+    public void onFailure(Throwable throwable) {
+        handler.onFailure(throwable);
+    }
+}
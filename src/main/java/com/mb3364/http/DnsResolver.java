@@ -0,0 +1,31 @@
+package com.mb3364.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Finds the addresses of a host. Set one on a client with {@link HttpClient#setDnsResolver(DnsResolver)}.
+ *
+ * @see CachingDnsResolver
+ */
+public interface DnsResolver {
+
+    /**
+     * Resolves hosts with the JVM's own resolver and its JVM-wide cache.
+     */
+    DnsResolver SYSTEM = new DnsResolver() {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    /**
+     * Find the addresses of a host.
+     *
+     * @param host the host name or address literal
+     * @return the addresses of the host, at least one, the preferred address first
+     * @throws UnknownHostException if the host has no addresses
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+}
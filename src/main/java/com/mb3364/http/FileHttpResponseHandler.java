@@ -1,9 +1,16 @@
 package com.mb3364.http;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.Map;
 
@@ -49,7 +56,16 @@ import java.util.Map;
  */
 public abstract class FileHttpResponseHandler extends HttpResponseHandler {
 
+    private static final int DOWNLOAD_BUFFER_SIZE = 256 * 1024; // Fewer, larger writes to the file
+
     private File file; // File containing downloaded file
+    private boolean preallocate = false; // extend the file to the content length before writing?
+    private FileSyncPolicy syncPolicy = FileSyncPolicy.NONE; // what to force to the device when done
+    private boolean resumable = false; // continue a partial download instead of starting over?
+
+    private long resumeFrom; // length of the partial file being continued, 0 if starting over
+    private boolean appending; // the response continues the partial file
+    private boolean errorResponse; // the response is an error, whose content must not replace a partial file
 
     public FileHttpResponseHandler(File file) {
         this.file = file;
@@ -74,7 +90,161 @@ public abstract class FileHttpResponseHandler extends HttpResponseHandler {
     public abstract void onFailure(Throwable throwable);
 
     /**
-     * Reads the body content and writes it to the specified file.
+     * Gets the file the content is written to.
+     *
+     * @return the download file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets whether the file is extended to the advertised content length before the content is written.
+     *
+     * @return <code>true</code> if the file is preallocated, <code>false</code> otherwise
+     * @see #setPreallocate(boolean)
+     */
+    public boolean getPreallocate() {
+        return preallocate;
+    }
+
+    /**
+     * Set whether the file should be extended to the advertised content length before the content is
+     * written. This only sets the file's size: most file systems don't reserve the space for it, so a full
+     * disk can still fail the download part way through. The file is truncated to the bytes actually received
+     * if the download is short.
+     *
+     * @param preallocate <code>true</code> to preallocate the file, <code>false</code> otherwise
+     */
+    public void setPreallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+    }
+
+    /**
+     * Gets what is forced to the storage device once the download has been written.
+     *
+     * @return the sync policy, {@link FileSyncPolicy#NONE} by default
+     * @see #setSyncPolicy(FileSyncPolicy)
+     */
+    public FileSyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * Set what is forced to the storage device once the download has been written, before
+     * {@link #onSuccess(int, Map, File)} is called.
+     *
+     * @param syncPolicy the sync policy
+     */
+    public void setSyncPolicy(FileSyncPolicy syncPolicy) {
+        if (syncPolicy == null) throw new IllegalArgumentException("syncPolicy must not be null");
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * Gets whether a partial download is continued rather than started over.
+     *
+     * @return <code>true</code> if downloads are resumable, <code>false</code> otherwise
+     * @see #setResumable(boolean)
+     */
+    public boolean getResumable() {
+        return resumable;
+    }
+
+    /**
+     * Set whether a download that failed partway should be continued by the next request with this file,
+     * rather than started over. The partial file is kept, and the resource's ETag or Last-Modified date is
+     * stored next to it in a file with a <code>.resume</code> suffix. The next request asks for only the rest of
+     * the content, on condition that the resource hasn't changed. If it has, the server sends the whole
+     * resource and the file is written from the start. Resources without either validator are always
+     * downloaded in full.
+     *
+     * @param resumable <code>true</code> to resume partial downloads, <code>false</code> otherwise
+     */
+    public void setResumable(boolean resumable) {
+        this.resumable = resumable;
+    }
+
+    @Override
+    void prepareRequest(HttpURLConnection httpURLConnection) {
+        resumeFrom = 0;
+        if (!resumable) return;
+        // The partial file must hold the resource itself for a byte range of it to follow on
+        httpURLConnection.setRequestProperty("Accept-Encoding", "identity");
+
+        String validator = readValidator();
+        long partialLength = file.length();
+        if (validator == null || partialLength <= 0) return;
+
+        resumeFrom = partialLength;
+        httpURLConnection.setRequestProperty("Range", "bytes=" + partialLength + "-");
+        httpURLConnection.setRequestProperty("If-Range", validator);
+    }
+
+    @Override
+    boolean streamsContent() {
+        return true;
+    }
+
+    @Override
+    protected void processResponse(HttpURLConnection connection) {
+        try {
+            int responseCode = connection.getResponseCode();
+            errorResponse = responseCode < 200 || responseCode >= 300;
+            appending = false;
+            if (responseCode == HttpStatusCodes.PARTIAL && resumeFrom > 0) {
+                // Content-Range: bytes 1000-1999/2000
+                String contentRange = connection.getHeaderField("Content-Range");
+                if (contentRange == null || !contentRange.trim().startsWith("bytes " + resumeFrom + "-")) {
+                    throw new ProtocolException("Expected the content from byte " + resumeFrom + " but got " + contentRange);
+                }
+                appending = true;
+            } else if (responseCode == HttpStatusCodes.RANGE_NOT_SATISFIABLE && resumeFrom > 0) {
+                // The partial file doesn't fit the resource, start over next time
+                deleteValidator();
+            }
+            if (resumable && !errorResponse && !appending) {
+                saveValidator(connection);
+            }
+        } catch (IOException e) {
+            onFailure(e);
+            return;
+        }
+        super.processResponse(connection);
+    }
+
+    private File getValidatorFile() {
+        return new File(file.getPath() + ".resume");
+    }
+
+    private String readValidator() {
+        try {
+            File validatorFile = getValidatorFile();
+            if (!validatorFile.isFile()) return null;
+            String validator = new String(Files.readAllBytes(validatorFile.toPath()), StandardCharsets.UTF_8).trim();
+            return validator.isEmpty() ? null : validator;
+        } catch (IOException e) {
+            return null; // Start over
+        }
+    }
+
+    private void saveValidator(HttpURLConnection connection) throws IOException {
+        String etag = connection.getHeaderField("ETag");
+        // If-Range only accepts strong validators
+        String validator = etag != null && !etag.startsWith("W/") ? etag : connection.getHeaderField("Last-Modified");
+        if (validator == null) {
+            deleteValidator();
+        } else {
+            Files.write(getValidatorFile().toPath(), validator.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void deleteValidator() throws IOException {
+        Files.deleteIfExists(getValidatorFile().toPath());
+    }
+
+    /**
+     * Reads the body content and writes it to the specified file through a {@link FileChannel}.
      *
      * @param inputStream the {@link InputStream} of the response body
      * @param length the total length of the response body
@@ -83,17 +253,57 @@ public abstract class FileHttpResponseHandler extends HttpResponseHandler {
      */
     @Override
     protected byte[] readFrom(InputStream inputStream, long length) throws IOException {
-        FileOutputStream fos = new FileOutputStream(file);
-        byte[] buffer = new byte[BUFFER_SIZE];
-        long totalBytesRead = 0;
-        int bytesRead;
-        while ((bytesRead = inputStream.read(buffer, 0, buffer.length)) != -1) {
-            fos.write(buffer, 0, bytesRead);
-            totalBytesRead += bytesRead;
-            onProgressChanged(totalBytesRead, length);
+        if (resumable && errorResponse) return null; // Keep the partial file for the next attempt
+
+        long start = appending ? resumeFrom : 0;
+        long total = length < 0 ? length : start + length;
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw");
+             FileChannel channel = output.getChannel()) {
+            if (!appending) output.setLength(0);
+            if (preallocate && length > 0) output.setLength(total);
+
+            long position = start;
+            try {
+                if (inputStream instanceof BufferedHttpURLConnection.ContentInputStream) {
+                    // A cached or shared response, already in memory, write it in one go
+                    ByteBuffer content = ByteBuffer.wrap(((BufferedHttpURLConnection.ContentInputStream) inputStream).takeContent());
+                    while (content.hasRemaining()) {
+                        position += channel.write(content, position);
+                    }
+                    onProgressChanged(position, total);
+                } else if (inputStream != null) {
+                    BufferPool pool = getBufferPool();
+                    byte[] buffer = pool.acquire(DOWNLOAD_BUFFER_SIZE);
+                    try {
+                        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+                        int bytesRead;
+                        while ((bytesRead = inputStream.read(buffer, 0, buffer.length)) != -1) {
+                            wrapped.clear().limit(bytesRead);
+                            while (wrapped.hasRemaining()) {
+                                position += channel.write(wrapped, position);
+                            }
+                            onProgressChanged(position, total);
+                        }
+                    } finally {
+                        pool.release(buffer);
+                    }
+                }
+                // The stream may simply end when the connection drops, don't mistake that for a complete file
+                if (length >= 0 && position != total) {
+                    throw new EOFException("Expected " + length + " bytes but received " + (position - start));
+                }
+            } finally {
+                // Preallocated but the content was short. Also leaves a partial file that can be resumed.
+                if (channel.size() > position) {
+                    channel.truncate(position);
+                }
+            }
+
+            if (syncPolicy != FileSyncPolicy.NONE) {
+                channel.force(syncPolicy == FileSyncPolicy.DATA_AND_METADATA);
+            }
         }
-        fos.flush();
-        fos.close();
+        if (resumable) deleteValidator(); // Complete
         return null;
     }
 }
@@ -0,0 +1,26 @@
+package com.mb3364.http;
+
+/**
+ * What {@link FileHttpResponseHandler} forces to the storage device once a download has been written.
+ *
+ * @see FileHttpResponseHandler#setSyncPolicy(FileSyncPolicy)
+ */
+public enum FileSyncPolicy {
+
+    /**
+     * Leave it to the operating system to write the file out. Fastest, but the download may be lost
+     * if the machine crashes soon after.
+     */
+    NONE,
+
+    /**
+     * Force the file content to the device before the download is reported complete.
+     */
+    DATA,
+
+    /**
+     * Force the file content and metadata, such as the file length, to the device before the download is
+     * reported complete.
+     */
+    DATA_AND_METADATA
+}
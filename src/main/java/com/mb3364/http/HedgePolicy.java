@@ -0,0 +1,191 @@
+package com.mb3364.http;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when an {@link AsyncHttpClient} sends a second, identical GET or HEAD request because the first
+ * is slow to respond. Whichever response arrives first is handed to the handler and the other request is
+ * cancelled. Set it on a client with {@link AsyncHttpClient#setHedgePolicy(HedgePolicy)}.
+ * <p>
+ * The second request is sent after a fixed delay, or, once enough responses from a host have been timed,
+ * after a percentile of its recent response times. Hedges are limited by a budget that grows with every
+ * request made, so they can never add more than a fraction of the traffic to a host that is slow for
+ * everyone.
+ * </p>
+ * Example:
+ * <pre>
+ * HedgePolicy policy = new HedgePolicy();
+ * policy.setPercentile(95);  // hedge requests slower than 95% of recent ones
+ * policy.setBudget(0.05, 5); // hedges at most 5% of requests, plus 5
+ * client.setHedgePolicy(policy);
+ * </pre>
+ */
+public class HedgePolicy {
+
+    private static final int WINDOW_SIZE = 128; // response times kept per host
+    private static final int MIN_SAMPLES = 20; // response times needed before the percentile is used
+
+    private volatile long delay = 100; // in milliseconds
+    private volatile double percentile = 0; // 0 to always use the delay
+
+    private final RequestBudget budget = new RequestBudget();
+
+    private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * Works out how long to wait for a response from a host before sending a hedge.
+     *
+     * @param host the host and port the request is sent to
+     * @return the wait in milliseconds
+     */
+    long delayFor(String host) {
+        double percentile = this.percentile;
+        if (percentile > 0) {
+            LatencyWindow window = latencies.get(host);
+            long nanos = window == null ? -1 : window.percentile(percentile);
+            if (nanos >= 0) return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+        return delay;
+    }
+
+    /* Remembers how long a response from a host took */
+    void responseTime(String host, long nanos) {
+        if (percentile <= 0) return;
+        LatencyWindow window = latencies.get(host);
+        if (window == null) {
+            window = new LatencyWindow();
+            LatencyWindow existing = latencies.putIfAbsent(host, window);
+            if (existing != null) window = existing;
+        }
+        window.add(nanos);
+    }
+
+    /* Every request adds to the hedge budget */
+    void requestMade() {
+        budget.requestMade();
+    }
+
+    /* Takes a hedge from the budget */
+    boolean tryHedge() {
+        return budget.tryTake();
+    }
+
+    /* The hedge's response arrived first */
+    void hedgeWon() {
+        hedgeWins.incrementAndGet();
+    }
+
+    /**
+     * Gets the wait for a response before a hedge is sent, when the percentile isn't used.
+     *
+     * @return the wait in milliseconds
+     */
+    public long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Set the wait for a response before a hedge is sent. It is used when no percentile is set, and for a
+     * host until enough of its responses have been timed.
+     *
+     * @param delay the wait in milliseconds, 100 by default
+     */
+    public void setDelay(long delay) {
+        if (delay < 0) throw new IllegalArgumentException("delay must not be negative");
+        this.delay = delay;
+    }
+
+    /**
+     * Gets the percentile of a host's recent response times after which a hedge is sent.
+     *
+     * @return the percentile, or 0 if the fixed delay is always used
+     */
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * Set the percentile of a host's recent response times after which a hedge is sent, for example 95 to
+     * hedge requests slower than 95% of the last ones. The response times of the last 128 requests to each
+     * host are kept.
+     *
+     * @param percentile the percentile, greater than 0 and less than 100, or 0 to always use the fixed delay
+     */
+    public void setPercentile(double percentile) {
+        if (percentile < 0 || percentile >= 100) throw new IllegalArgumentException("percentile must be in [0, 100)");
+        this.percentile = percentile;
+    }
+
+    /**
+     * Set the hedge budget. Every request adds <code>ratio</code> of a hedge to the budget, up to
+     * <code>burst</code> hedges, and every hedge takes one. A hedge that finds the budget empty is not sent.
+     *
+     * @param ratio the most hedges per request over time, 0.1 by default
+     * @param burst the most hedges saved up, also the budget to start with, 10 by default
+     */
+    public void setBudget(double ratio, int burst) {
+        budget.set(ratio, burst);
+    }
+
+    /**
+     * Get the number of hedges sent.
+     *
+     * @return the number of hedges
+     */
+    public long getHedgeCount() {
+        return budget.getTakenCount();
+    }
+
+    /**
+     * Get the number of hedges whose response arrived before the original request's.
+     *
+     * @return the number of hedges that won
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Get the number of hedges that were not sent because the budget was empty.
+     *
+     * @return the number of hedges denied by the budget
+     */
+    public long getBudgetExhaustedCount() {
+        return budget.getExhaustedCount();
+    }
+
+    /**
+     * The most recent response times from a host. The percentile is worked out again every few responses
+     * rather than for every request.
+     */
+    private static final class LatencyWindow {
+
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int count = 0;
+        private double percentile = -1; // the percentile last worked out, -1 if it is out of date
+        private long value = -1;
+
+        synchronized void add(long nanos) {
+            samples[count++ % WINDOW_SIZE] = nanos;
+            if (count == 2 * WINDOW_SIZE) count = WINDOW_SIZE; // Keep the index from overflowing
+            if (count % 16 == 0) this.percentile = -1; // Work it out again on the next request
+        }
+
+        synchronized long percentile(double percentile) {
+            if (percentile == this.percentile) return value;
+            if (count < MIN_SAMPLES) return -1;
+            long[] sorted = Arrays.copyOf(samples, Math.min(count, WINDOW_SIZE));
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            this.percentile = percentile;
+            value = sorted[Math.max(0, index)];
+            return value;
+        }
+    }
+}
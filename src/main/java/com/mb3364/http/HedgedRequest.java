@@ -0,0 +1,170 @@
+package com.mb3364.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A request that is sent a second time if no response arrives within the {@link HedgePolicy}'s delay. The
+ * first response is handed to the handler and the other attempt is cancelled; if both attempts fail, the
+ * last failure is reported. The handler's {@link HttpResponseHandler#onStart(HttpURLConnection)} is called for
+ * each attempt that is sent, so both carry the request headers it adds.
+ */
+final class HedgedRequest {
+
+    private final AsyncHttpClient client;
+    private final HedgePolicy policy;
+    private final String url;
+    private final HttpRequestMethod method;
+    private final RequestParams params;
+    private final HttpResponseHandler handler;
+    private final String host;
+
+    private final Attempt first;
+    private final Attempt hedge;
+    private final AtomicBoolean done = new AtomicBoolean(); // set once the handler has been given the outcome
+    private final AtomicInteger pending = new AtomicInteger(2); // attempts, sent or not, that haven't failed
+    private volatile Throwable failure; // the last attempt to fail
+    private volatile ScheduledFuture<?> timer; // sends the hedge
+
+    HedgedRequest(AsyncHttpClient client, HedgePolicy policy, String url, HttpRequestMethod method,
+                  RequestParams params, HttpResponseHandler handler) {
+        this.client = client;
+        this.policy = policy;
+        this.url = url;
+        this.method = method;
+        this.params = params;
+        this.handler = handler;
+        this.host = HttpClient.hostOf(url);
+        this.first = new Attempt();
+        this.hedge = new Attempt();
+    }
+
+    /**
+     * Sends the first attempt, and schedules the hedge.
+     */
+    void start() {
+        policy.requestMade();
+        try {
+            timer = AsyncHttpClient.Scheduler.INSTANCE.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendHedge();
+                }
+            }, policy.delayFor(host), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet(); // Just the first attempt
+        }
+        first.send();
+    }
+
+    private void sendHedge() {
+        if (done.get() || failure != null || !policy.tryHedge()) {
+            settle();
+            return;
+        }
+        hedge.send();
+    }
+
+    /* An attempt, or the chance to send the hedge, is over without a response */
+    private void settle() {
+        if (pending.decrementAndGet() == 0 && done.compareAndSet(false, true)) handler.onFailure(failure);
+    }
+
+    /**
+     * One of the two requests. Its response is handed to the handler if it arrives first, otherwise it is
+     * discarded.
+     */
+    private final class Attempt extends DelegatingHandler {
+
+        private volatile HttpURLConnection connection;
+        private volatile boolean cancelled = false;
+        private volatile boolean won = false;
+        private long sent; // in nanoseconds
+
+        Attempt() {
+            super(HedgedRequest.this.handler);
+        }
+
+        void send() {
+            sent = System.nanoTime();
+            client.dispatch(url, method, params, this);
+        }
+
+        /* Stops the attempt, if it is still in flight */
+        void cancel() {
+            cancelled = true;
+            HttpURLConnection connection = this.connection;
+            if (connection != null) connection.disconnect();
+        }
+
+        @Override
+        void prepareRequest(HttpURLConnection httpURLConnection) {
+            connection = httpURLConnection;
+            super.prepareRequest(httpURLConnection);
+        }
+
+        @Override
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public void onFinish(HttpURLConnection httpURLConnection) {
+            if (won) handler.onFinish(httpURLConnection);
+        }
+
+        @Override
+        protected void processResponse(HttpURLConnection connection) {
+            int responseCode;
+            try {
+                responseCode = connection.getResponseCode(); // Waits for the response
+            } catch (IOException e) {
+                onFailure(e);
+                return;
+            }
+
+            if (!done.compareAndSet(false, true)) {
+                // Lost, discard the body
+                close(responseCode < 400 ? inputStream(connection) : connection.getErrorStream());
+                return;
+            }
+            won = true;
+            ScheduledFuture<?> timer = HedgedRequest.this.timer;
+            if (timer != null) timer.cancel(false);
+            if (this == first) {
+                hedge.cancel();
+            } else {
+                first.cancel();
+                policy.hedgeWon();
+            }
+            policy.responseTime(host, System.nanoTime() - sent);
+            handler.processResponse(connection);
+        }
+
+        private InputStream inputStream(HttpURLConnection connection) {
+            try {
+                return connection.getInputStream();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            if (done.get()) return; // Cancelled, or lost
+
+            failure = throwable;
+            if (this == first) {
+                ScheduledFuture<?> timer = HedgedRequest.this.timer;
+                if (timer != null && timer.cancel(false)) settle(); // The hedge won't be sent
+            }
+            settle();
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package com.mb3364.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2, as specified in RFC 7541. Header fields are encoded against a
+ * static table of common headers and a dynamic table of recently sent ones, so repeated headers such as
+ * the User Agent shrink to a single byte after the first request on a connection.
+ *
+ * @see Http2Engine
+ */
+final class Hpack {
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /* RFC 7541 Appendix A */
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    /* RFC 7541 Appendix B, indexed by symbol. Codes are right-aligned. */
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+
+    private static final byte[] HUFFMAN_CODE_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    private static final int HUFFMAN_EOS_CODE = 0x3fffffff;
+    private static final int HUFFMAN_EOS_LENGTH = 30;
+
+    private static final HuffmanNode HUFFMAN_TREE = buildHuffmanTree();
+
+    private Hpack() {
+    }
+
+    /**
+     * Encodes header fields into header blocks. An encoder keeps the state of one side of a connection
+     * and must see every header block sent on it, in order.
+     */
+    static final class Encoder {
+
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private int pendingTableSizeUpdate = -1;
+
+        /**
+         * Apply the table size limit announced by the peer. Our table never grows beyond the default size.
+         *
+         * @param peerMaxTableSize the peer's SETTINGS_HEADER_TABLE_SIZE
+         */
+        void setMaxTableSize(int peerMaxTableSize) {
+            int size = Math.min(peerMaxTableSize, DEFAULT_TABLE_SIZE);
+            if (size != table.maxSize) {
+                table.setMaxSize(size);
+                pendingTableSizeUpdate = size;
+            }
+        }
+
+        /**
+         * Encode a header field.
+         *
+         * @param out      the header block being built
+         * @param name     the lowercase header name
+         * @param value    the header value
+         * @param indexing <code>true</code> to add the field to the dynamic table for reuse
+         */
+        void encode(ByteArrayOutputStream out, String name, String value, boolean indexing) {
+            if (pendingTableSizeUpdate >= 0) {
+                writeInteger(out, 0x20, 5, pendingTableSizeUpdate);
+                pendingTableSizeUpdate = -1;
+            }
+
+            int nameIndex = 0;
+            for (int i = 0; i < STATIC_TABLE.length; i++) {
+                if (STATIC_TABLE[i][0].equals(name)) {
+                    if (STATIC_TABLE[i][1].equals(value)) {
+                        writeInteger(out, 0x80, 7, i + 1); // Indexed
+                        return;
+                    }
+                    if (nameIndex == 0) nameIndex = i + 1;
+                }
+            }
+            int dynamicIndex = table.indexOf(name, value);
+            if (dynamicIndex >= 0) {
+                writeInteger(out, 0x80, 7, STATIC_TABLE.length + 1 + dynamicIndex);
+                return;
+            }
+            if (nameIndex == 0) {
+                int dynamicNameIndex = table.indexOfName(name);
+                if (dynamicNameIndex >= 0) nameIndex = STATIC_TABLE.length + 1 + dynamicNameIndex;
+            }
+
+            if (indexing && entrySize(name, value) <= table.maxSize) {
+                writeInteger(out, 0x40, 6, nameIndex); // Literal with incremental indexing
+                table.add(name, value);
+            } else {
+                writeInteger(out, 0x00, 4, nameIndex); // Literal without indexing
+            }
+            if (nameIndex == 0) writeString(out, name);
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Decodes header blocks into header fields. A decoder keeps the state of one side of a connection
+     * and must see every header block received on it, in order.
+     */
+    static final class Decoder {
+
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+
+        /**
+         * Decode a complete header block.
+         *
+         * @param block the header block, assembled from HEADERS and CONTINUATION frames
+         * @return the header fields in the order they were received
+         * @throws IOException if the header block is malformed
+         */
+        List<Map.Entry<String, String>> decode(byte[] block) throws IOException {
+            List<Map.Entry<String, String>> fields = new ArrayList<>();
+            int[] position = {0};
+            while (position[0] < block.length) {
+                int b = block[position[0]] & 0xFF;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) { // Indexed
+                    String[] field = field(readInteger(block, position, 7));
+                    name = field[0];
+                    value = field[1];
+                } else if ((b & 0xE0) == 0x20) { // Dynamic table size update
+                    int size = readInteger(block, position, 5);
+                    if (size > DEFAULT_TABLE_SIZE) throw new ProtocolException("HPACK table size update too large: " + size);
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    boolean indexing = (b & 0xC0) == 0x40;
+                    int index = readInteger(block, position, indexing ? 6 : 4);
+                    name = index == 0 ? readString(block, position) : field(index)[0];
+                    value = readString(block, position);
+                    if (indexing) table.add(name, value);
+                }
+                fields.add(new AbstractMap.SimpleImmutableEntry<>(name, value));
+            }
+            return fields;
+        }
+
+        private String[] field(int index) throws ProtocolException {
+            if (index >= 1 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+            String[] field = table.get(index - STATIC_TABLE.length - 1);
+            if (field == null) throw new ProtocolException("Invalid HPACK index: " + index);
+            return field;
+        }
+    }
+
+    /**
+     * The dynamic table, newest entry first.
+     */
+    private static final class DynamicTable {
+
+        private final List<String[]> entries = new ArrayList<>();
+        private int size = 0;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        String[] get(int index) {
+            return index >= 0 && index < entries.size() ? entries.get(index) : null;
+        }
+
+        int indexOf(String name, String value) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i)[0].equals(name) && entries.get(i)[1].equals(value)) return i;
+            }
+            return -1;
+        }
+
+        int indexOfName(String name) {
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i)[0].equals(name)) return i;
+            }
+            return -1;
+        }
+
+        void add(String name, String value) {
+            int entrySize = entrySize(name, value);
+            if (entrySize > maxSize) {
+                // Adding an entry larger than the table empties it
+                entries.clear();
+                size = 0;
+                return;
+            }
+            entries.add(0, new String[]{name, value});
+            size += entrySize;
+            evict();
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict();
+        }
+
+        private void evict() {
+            while (size > maxSize) {
+                String[] oldest = entries.remove(entries.size() - 1);
+                size -= entrySize(oldest[0], oldest[1]);
+            }
+        }
+    }
+
+    private static int entrySize(String name, String value) {
+        return name.length() + value.length() + 32;
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readInteger(byte[] block, int[] position, int prefixBits) throws ProtocolException {
+        int max = (1 << prefixBits) - 1;
+        int value = block[position[0]++] & max;
+        if (value < max) return value;
+        int shift = 0;
+        int b;
+        do {
+            if (position[0] >= block.length) throw new ProtocolException("Truncated HPACK integer");
+            if (shift > 28) throw new ProtocolException("HPACK integer overflow");
+            b = block[position[0]++] & 0xFF;
+            value += (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (value < 0) throw new ProtocolException("HPACK integer overflow");
+        return value;
+    }
+
+    /* Strings are Huffman coded when that is shorter */
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] raw = value.getBytes(StandardCharsets.ISO_8859_1);
+        long bits = 0;
+        for (byte b : raw) {
+            bits += HUFFMAN_CODE_LENGTHS[b & 0xFF];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= raw.length) {
+            writeInteger(out, 0x00, 7, raw.length);
+            out.write(raw, 0, raw.length);
+            return;
+        }
+
+        writeInteger(out, 0x80, 7, huffmanLength);
+        long current = 0;
+        int pending = 0;
+        for (byte b : raw) {
+            int symbol = b & 0xFF;
+            current = (current << HUFFMAN_CODE_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+            pending += HUFFMAN_CODE_LENGTHS[symbol];
+            while (pending >= 8) {
+                pending -= 8;
+                out.write((int) (current >>> pending));
+            }
+        }
+        if (pending > 0) {
+            // Pad with the most significant bits of the EOS code, which are all ones
+            out.write((int) ((current << (8 - pending)) | (0xFF >>> pending)));
+        }
+    }
+
+    private static String readString(byte[] block, int[] position) throws ProtocolException {
+        if (position[0] >= block.length) throw new ProtocolException("Truncated HPACK string");
+        boolean huffman = (block[position[0]] & 0x80) != 0;
+        int length = readInteger(block, position, 7);
+        if (length > block.length - position[0]) throw new ProtocolException("Truncated HPACK string");
+        int start = position[0];
+        position[0] += length;
+        if (!huffman) return new String(block, start, length, StandardCharsets.ISO_8859_1);
+
+        StringBuilder decoded = new StringBuilder(length * 2);
+        HuffmanNode node = HUFFMAN_TREE;
+        int depth = 0; // bits consumed since the last complete symbol
+        boolean allOnes = true;
+        for (int i = start; i < start + length; i++) {
+            int b = block[i] & 0xFF;
+            for (int bit = 7; bit >= 0; bit--) {
+                int direction = (b >>> bit) & 1;
+                node = direction == 0 ? node.zero : node.one;
+                if (node == null) throw new ProtocolException("Invalid Huffman code");
+                depth++;
+                allOnes &= direction == 1;
+                if (node.symbol >= 0) {
+                    if (node.symbol == 256) throw new ProtocolException("Huffman code contains EOS");
+                    decoded.append((char) node.symbol);
+                    node = HUFFMAN_TREE;
+                    depth = 0;
+                    allOnes = true;
+                }
+            }
+        }
+        // Padding must be shorter than a byte and made of the EOS prefix
+        if (depth > 7 || !allOnes) throw new ProtocolException("Invalid Huffman padding");
+        return decoded.toString();
+    }
+
+    private static final class HuffmanNode {
+        HuffmanNode zero;
+        HuffmanNode one;
+        int symbol = -1;
+    }
+
+    private static HuffmanNode buildHuffmanTree() {
+        HuffmanNode root = new HuffmanNode();
+        for (int symbol = 0; symbol <= 256; symbol++) {
+            int code = symbol == 256 ? HUFFMAN_EOS_CODE : HUFFMAN_CODES[symbol];
+            int length = symbol == 256 ? HUFFMAN_EOS_LENGTH : HUFFMAN_CODE_LENGTHS[symbol];
+            HuffmanNode node = root;
+            for (int bit = length - 1; bit >= 0; bit--) {
+                if (((code >>> bit) & 1) == 0) {
+                    if (node.zero == null) node.zero = new HuffmanNode();
+                    node = node.zero;
+                } else {
+                    if (node.one == null) node.one = new HuffmanNode();
+                    node = node.one;
+                }
+            }
+            node.symbol = symbol;
+        }
+        return root;
+    }
+}
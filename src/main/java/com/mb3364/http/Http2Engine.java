@@ -0,0 +1,880 @@
+package com.mb3364.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HTTP/2 engine that multiplexes all requests to a host as concurrent streams over a single
+ * connection. Request headers are compressed with HPACK and both directions are flow controlled.
+ * <p>
+ * The engine speaks cleartext HTTP/2 (h2c) with prior knowledge to plain <code>http</code> URLs, so
+ * the server must accept HTTP/2 without an upgrade. Requests to other URLs, and requests whose handler
+ * streams the content, are performed by the client's thread pool as usual. Each connection has one thread that reads its responses and makes
+ * the callbacks, so handlers should not block.
+ * </p>
+ * Example:
+ * <pre>
+ * Http2Engine engine = new Http2Engine();
+ * HttpClient client = new AsyncHttpClient(engine);
+ * </pre>
+ *
+ * @see AsyncHttpClient#AsyncHttpClient(HttpEngine)
+ */
+public class Http2Engine extends HttpEngine {
+
+    private static final byte[] CONNECTION_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int MAX_REDIRECTS = 20; // Same limit as HttpURLConnection
+    private static final long TIMEOUT_CHECK_INTERVAL = 100; // in milliseconds
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384; // also the smallest allowed
+    private static final int MAX_MAX_FRAME_SIZE = 16777215; // the largest frame length that can be encoded
+    private static final int RECEIVE_WINDOW_SIZE = 16 * 1024 * 1024; // Responses are buffered in memory anyway
+    private static final int MAX_HEADER_BLOCK_SIZE = 1024 * 1024;
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int ERROR_NO_ERROR = 0x0;
+    private static final int ERROR_PROTOCOL_ERROR = 0x1;
+    private static final int ERROR_FLOW_CONTROL_ERROR = 0x3;
+    private static final int ERROR_CANCEL = 0x8;
+
+    private final ConcurrentMap<String, Http2Connection> connections = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Object> connectLocks = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timeouts;
+    private volatile boolean shutdown = false;
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final AtomicLong headerBytesSent = new AtomicLong();
+
+    public Http2Engine() {
+        timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "http2-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timeouts.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (Http2Connection connection : connections.values()) {
+                    connection.checkTimeouts(now);
+                }
+            }
+        }, TIMEOUT_CHECK_INTERVAL, TIMEOUT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    boolean supports(URL url) {
+        return "http".equalsIgnoreCase(url.getProtocol());
+    }
+
+    @Override
+    void execute(BufferedHttpURLConnection connection, HttpResponseHandler handler) {
+        execute(new Stream(connection, handler));
+    }
+
+    private void execute(Stream stream) {
+        try {
+            stream.prepare();
+            // A connection can stop accepting streams between being looked up and used, so try a new one once
+            for (int attempt = 0; ; attempt++) {
+                Http2Connection connection = connectionFor(stream);
+                if (connection.submit(stream)) return;
+                if (attempt > 0) throw new IOException("HTTP/2 connection is not accepting new streams");
+            }
+        } catch (IOException e) {
+            fail(e, stream.connection, stream.handler);
+        }
+    }
+
+    private Http2Connection connectionFor(Stream stream) throws IOException {
+        if (shutdown) throw new IOException("HTTP engine was closed");
+
+        Http2Connection connection = connections.get(stream.hostKey);
+        if (connection != null && connection.isAccepting()) return connection;
+
+        Object lock = connectLocks.get(stream.hostKey);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = connectLocks.putIfAbsent(stream.hostKey, newLock);
+            if (lock == null) lock = newLock;
+        }
+        synchronized (lock) {
+            connection = connections.get(stream.hostKey);
+            if (connection == null || !connection.isAccepting()) {
+                HttpCall call = stream.connection.call;
+                if (call != null) call.dnsStart();
+                InetSocketAddress address;
+                try {
+                    address = stream.connection.resolveAddress();
+                } finally {
+                    if (call != null) call.dnsEnd();
+                }
+                if (call != null) call.connectStart();
+                connection = new Http2Connection(stream.hostKey, address, stream.connection.getConnectTimeout());
+                if (call != null) call.connectEnd();
+                connections.put(stream.hostKey, connection);
+                connection.start();
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * Get the number of open HTTP/2 connections. There is at most one connection per host.
+     *
+     * @return the number of open connections
+     */
+    public int getOpenConnectionCount() {
+        return openConnections.get();
+    }
+
+    /**
+     * Get the number of requests currently in flight as streams on this engine.
+     *
+     * @return the number of active streams
+     */
+    public int getActiveStreamCount() {
+        return activeStreams.get();
+    }
+
+    /**
+     * Get the total size of the HPACK compressed request header blocks sent so far.
+     *
+     * @return the number of header bytes sent
+     */
+    public long getHeaderBytesSent() {
+        return headerBytesSent.get();
+    }
+
+    /**
+     * Closes all connections. Requests that are still in flight fail with an {@link IOException}.
+     */
+    @Override
+    public void close() {
+        shutdown = true;
+        timeouts.shutdownNow();
+        for (Http2Connection connection : connections.values()) {
+            connection.close(new IOException("HTTP engine was closed"));
+        }
+    }
+
+    private static boolean isRedirect(int statusCode) {
+        return statusCode == HttpStatusCodes.MOVED_PERM || statusCode == HttpStatusCodes.MOVED_TEMP
+                || statusCode == HttpStatusCodes.SEE_OTHER || statusCode == 307 || statusCode == 308;
+    }
+
+    /**
+     * A single request and its response, carried by one stream. A stream that follows a redirect is
+     * sent again on a new stream.
+     */
+    private static final class Stream {
+
+        private final BufferedHttpURLConnection connection;
+        private final HttpResponseHandler handler;
+        private final String method;
+        private final Map<String, List<String>> requestHeaders;
+        private final byte[] requestContent; // the content is the first contentLength bytes
+        private final int contentLength;
+
+        private String hostKey;
+        private int id;
+        private int contentSent; // bytes of the request content sent so far
+        private long sendWindow;
+        private long receivedSinceUpdate;
+        private volatile long deadline; // 0 for never
+
+        private int statusCode = -1;
+        private List<Map.Entry<String, String>> responseHeaders;
+        private ContentBuffer responseContent; // created once the response headers arrive
+        private int redirects = 0;
+
+        Stream(BufferedHttpURLConnection connection, HttpResponseHandler handler) {
+            this.connection = connection;
+            this.handler = handler;
+            this.method = connection.getRequestMethod();
+            this.requestHeaders = connection.getRequestProperties();
+            ByteBuffer content = connection.getRequestContent();
+            this.requestContent = content.array();
+            this.contentLength = content.limit();
+            connection.connect();
+        }
+
+        /* Resets the stream for the connection's current URL */
+        void prepare() {
+            URL url = connection.getURL();
+            int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+            hostKey = url.getHost().toLowerCase() + ":" + port;
+            id = 0;
+            contentSent = 0;
+            statusCode = -1;
+            responseHeaders = null;
+            responseContent = null;
+        }
+
+        boolean hasContent() {
+            return contentLength > 0;
+        }
+    }
+
+    /**
+     * A connection to a host, the streams in flight on it and the thread that reads its frames.
+     */
+    private final class Http2Connection implements Runnable {
+
+        private final String hostKey;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final Thread reader;
+
+        private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+        /* Guarded by this */
+        private final Hpack.Encoder encoder = new Hpack.Encoder();
+        private final ArrayDeque<Stream> waiting = new ArrayDeque<>(); // over the concurrent stream limit
+        private final Set<Stream> blocked = new LinkedHashSet<>(); // content waiting for flow control window
+        private int nextStreamId = 1;
+        private long sendWindow = DEFAULT_WINDOW_SIZE;
+        private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+        private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+        private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+        private boolean accepting = true;
+        private boolean closed = false;
+
+        /* Only used by the reader thread */
+        private final Hpack.Decoder decoder = new Hpack.Decoder();
+        private long receivedSinceUpdate = 0;
+
+        Http2Connection(String hostKey, InetSocketAddress address, int connectTimeout) throws IOException {
+            this.hostKey = hostKey;
+            this.socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(address, connectTimeout);
+                this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16 * 1024));
+                this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+
+                out.write(CONNECTION_PREFACE);
+                ByteArrayOutputStream settings = new ByteArrayOutputStream();
+                writeSetting(settings, SETTINGS_ENABLE_PUSH, 0);
+                writeSetting(settings, SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW_SIZE);
+                writeFrame(TYPE_SETTINGS, 0, 0, settings.toByteArray());
+                writeWindowUpdate(0, RECEIVE_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+                out.flush();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            openConnections.incrementAndGet();
+            reader = new Thread(this, "http2-" + hostKey);
+            reader.setDaemon(true);
+        }
+
+        void start() {
+            reader.start();
+        }
+
+        synchronized boolean isAccepting() {
+            return accepting;
+        }
+
+        /**
+         * Start a stream for the request, or queue it if the server's concurrent stream limit is reached.
+         *
+         * @return <code>false</code> if the connection no longer accepts new streams
+         */
+        synchronized boolean submit(Stream stream) throws IOException {
+            if (nextStreamId < 0) {
+                // Stream identifiers are exhausted, a new connection will be opened
+                accepting = false;
+            }
+            if (!accepting) return false;
+            activeStreams.incrementAndGet();
+            if (streams.size() >= peerMaxConcurrentStreams) {
+                waiting.add(stream);
+                return true;
+            }
+            try {
+                startStream(stream);
+                out.flush();
+            } catch (IOException e) {
+                close(e);
+            }
+            return true;
+        }
+
+        /* Guarded by this */
+        private void startStream(Stream stream) throws IOException {
+            stream.id = nextStreamId;
+            nextStreamId += 2;
+            stream.sendWindow = peerInitialWindowSize;
+            stream.deadline = timeoutFrom(stream.connection.getReadTimeout());
+            streams.put(stream.id, stream);
+            HttpCall call = stream.connection.call;
+            if (call != null) call.dequeued();
+
+            URL url = stream.connection.getURL();
+            String authority = url.getHost() + (url.getPort() == -1 ? "" : ":" + url.getPort());
+            String path = url.getFile().isEmpty() ? "/" : url.getFile();
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+            encoder.encode(block, ":method", stream.method, true);
+            encoder.encode(block, ":scheme", "http", true);
+            encoder.encode(block, ":authority", authority, true);
+            encoder.encode(block, ":path", path, false);
+            for (Map.Entry<String, List<String>> header : stream.requestHeaders.entrySet()) {
+                if (header.getKey() == null || isConnectionHeader(header.getKey())) continue;
+                String name = header.getKey().toLowerCase();
+                for (String value : header.getValue()) {
+                    encoder.encode(block, name, value, true);
+                }
+            }
+            if (stream.hasContent() || stream.connection.getDoOutput()) {
+                encoder.encode(block, "content-length", Integer.toString(stream.contentLength), false);
+            }
+            byte[] headerBlock = block.toByteArray();
+            headerBytesSent.addAndGet(headerBlock.length);
+
+            // Split the header block into HEADERS and CONTINUATION frames
+            int endStream = stream.hasContent() ? 0 : FLAG_END_STREAM;
+            int offset = 0;
+            int type = TYPE_HEADERS;
+            do {
+                int length = Math.min(headerBlock.length - offset, peerMaxFrameSize);
+                boolean last = offset + length == headerBlock.length;
+                int flags = (type == TYPE_HEADERS ? endStream : 0) | (last ? FLAG_END_HEADERS : 0);
+                writeFrame(type, flags, stream.id, headerBlock, offset, length);
+                offset += length;
+                type = TYPE_CONTINUATION;
+            } while (offset < headerBlock.length);
+            if (call != null) {
+                call.requestHeadersSent();
+                if (!stream.hasContent()) call.requestBodySent();
+            }
+
+            if (stream.hasContent()) sendContent(stream);
+        }
+
+        /* Guarded by this. Sends as much of the request content as the flow control windows allow. */
+        private void sendContent(Stream stream) throws IOException {
+            while (stream.contentSent < stream.contentLength) {
+                long window = Math.min(sendWindow, stream.sendWindow);
+                if (window <= 0) {
+                    blocked.add(stream);
+                    return;
+                }
+                int length = (int) Math.min(Math.min(stream.contentLength - stream.contentSent, peerMaxFrameSize), window);
+                boolean last = stream.contentSent + length == stream.contentLength;
+                writeFrame(TYPE_DATA, last ? FLAG_END_STREAM : 0, stream.id, stream.requestContent, stream.contentSent, length);
+                stream.contentSent += length;
+                sendWindow -= length;
+                stream.sendWindow -= length;
+                if (last && stream.connection.call != null) stream.connection.call.requestBodySent();
+            }
+            blocked.remove(stream);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    readFrame();
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private void readFrame() throws IOException {
+            int length = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            int streamId = in.readInt() & Integer.MAX_VALUE;
+            if (length > RECEIVE_WINDOW_SIZE) throw new ProtocolException("HTTP/2 frame too large: " + length);
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            switch (type) {
+                case TYPE_DATA:
+                    onData(streamId, flags, payload);
+                    break;
+                case TYPE_HEADERS:
+                    onHeaders(streamId, flags, payload);
+                    break;
+                case TYPE_RST_STREAM: {
+                    Stream stream = streams.get(streamId);
+                    if (stream != null) {
+                        failStream(stream, new IOException("Stream was reset by the server, error code " + readInt(payload, 0)));
+                    }
+                    break;
+                }
+                case TYPE_SETTINGS:
+                    if ((flags & FLAG_ACK) == 0) onSettings(payload);
+                    break;
+                case TYPE_PING:
+                    if ((flags & FLAG_ACK) == 0) {
+                        synchronized (this) {
+                            writeFrame(TYPE_PING, FLAG_ACK, 0, payload);
+                            out.flush();
+                        }
+                    }
+                    break;
+                case TYPE_GOAWAY:
+                    onGoAway(readInt(payload, 0) & Integer.MAX_VALUE, readInt(payload, 4));
+                    break;
+                case TYPE_WINDOW_UPDATE:
+                    onWindowUpdate(streamId, readInt(payload, 0) & Integer.MAX_VALUE);
+                    break;
+                case TYPE_PUSH_PROMISE:
+                    throw new ProtocolException("Received PUSH_PROMISE although server push is disabled");
+                case TYPE_CONTINUATION:
+                    throw new ProtocolException("Unexpected CONTINUATION frame");
+                default:
+                    // PRIORITY and unknown frame types are ignored
+            }
+        }
+
+        private void onData(int streamId, int flags, byte[] payload) throws IOException {
+            int offset = 0;
+            int length = payload.length;
+            if ((flags & FLAG_PADDED) != 0) {
+                int padding = payload[0] & 0xFF;
+                offset = 1;
+                length -= 1 + padding;
+                if (length < 0) throw new ProtocolException("Invalid HTTP/2 padding");
+            }
+
+            // Received bytes count against the windows whether or not the stream is still wanted
+            receivedSinceUpdate += payload.length;
+            if (receivedSinceUpdate >= RECEIVE_WINDOW_SIZE / 2) {
+                synchronized (this) {
+                    writeWindowUpdate(0, (int) receivedSinceUpdate);
+                    out.flush();
+                }
+                receivedSinceUpdate = 0;
+            }
+
+            Stream stream = streams.get(streamId);
+            if (stream == null) return;
+            if (stream.responseContent == null) stream.responseContent = new ContentBuffer(-1);
+            stream.responseContent.write(payload, offset, length);
+            stream.deadline = timeoutFrom(stream.connection.getReadTimeout());
+
+            if ((flags & FLAG_END_STREAM) != 0) {
+                completeStream(stream);
+                return;
+            }
+            stream.receivedSinceUpdate += payload.length;
+            if (stream.receivedSinceUpdate >= RECEIVE_WINDOW_SIZE / 2) {
+                synchronized (this) {
+                    writeWindowUpdate(streamId, (int) stream.receivedSinceUpdate);
+                    out.flush();
+                }
+                stream.receivedSinceUpdate = 0;
+            }
+        }
+
+        private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+            int offset = 0;
+            int length = payload.length;
+            if ((flags & FLAG_PADDED) != 0) {
+                int padding = payload[0] & 0xFF;
+                offset = 1;
+                length -= 1 + padding;
+            }
+            if ((flags & FLAG_PRIORITY) != 0) {
+                offset += 5;
+                length -= 5;
+            }
+            if (length < 0) throw new ProtocolException("Invalid HTTP/2 HEADERS frame");
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream(length);
+            block.write(payload, offset, length);
+            int blockFlags = flags;
+            while ((blockFlags & FLAG_END_HEADERS) == 0) {
+                int continuationLength = (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                int type = in.readUnsignedByte();
+                blockFlags = in.readUnsignedByte();
+                int continuationStreamId = in.readInt() & Integer.MAX_VALUE;
+                if (type != TYPE_CONTINUATION || continuationStreamId != streamId) {
+                    throw new ProtocolException("Expected CONTINUATION frame for stream " + streamId);
+                }
+                if (block.size() + continuationLength > MAX_HEADER_BLOCK_SIZE) {
+                    throw new ProtocolException("HTTP/2 header block too large");
+                }
+                byte[] continuation = new byte[continuationLength];
+                in.readFully(continuation);
+                block.write(continuation, 0, continuationLength);
+            }
+
+            // Always decode, even for unknown streams, to keep the HPACK state in step with the server
+            List<Map.Entry<String, String>> fields = decoder.decode(block.toByteArray());
+
+            Stream stream = streams.get(streamId);
+            if (stream == null) return;
+            stream.deadline = timeoutFrom(stream.connection.getReadTimeout());
+
+            if (stream.statusCode == -1) {
+                int statusCode = -1;
+                List<Map.Entry<String, String>> headers = new ArrayList<>(fields.size());
+                for (Map.Entry<String, String> field : fields) {
+                    if (field.getKey().equals(":status")) {
+                        try {
+                            statusCode = Integer.parseInt(field.getValue());
+                        } catch (NumberFormatException e) {
+                            throw new ProtocolException("Malformed :status " + field.getValue());
+                        }
+                    } else if (!field.getKey().startsWith(":")) {
+                        headers.add(field);
+                    }
+                }
+                if (statusCode == -1) {
+                    failStream(stream, new ProtocolException("Response is missing :status"));
+                    return;
+                }
+                // Informational responses are followed by the real response
+                if (statusCode >= 200) {
+                    stream.statusCode = statusCode;
+                    stream.responseHeaders = headers;
+                    stream.responseContent = new ContentBuffer(expectedLength(stream, headers));
+                    if (stream.connection.call != null) stream.connection.call.responseHeadersReceived(statusCode);
+                }
+            }
+            // Otherwise these are trailers, which are not passed on
+
+            if ((flags & FLAG_END_STREAM) != 0) completeStream(stream);
+        }
+
+        /* The declared content length of a response, or -1 if unknown or it has no content */
+        private long expectedLength(Stream stream, List<Map.Entry<String, String>> headers) {
+            if (stream.method.equals("HEAD") || stream.statusCode == HttpStatusCodes.NO_CONTENT
+                    || stream.statusCode == HttpStatusCodes.NOT_MODIFIED) {
+                return -1;
+            }
+            for (Map.Entry<String, String> header : headers) {
+                if (header.getKey().equals("content-length")) {
+                    try {
+                        return Long.parseLong(header.getValue().trim());
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private void onSettings(byte[] payload) throws IOException {
+            synchronized (this) {
+                for (int i = 0; i + 6 <= payload.length; i += 6) {
+                    int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+                    int value = readInt(payload, i + 2);
+                    switch (id) {
+                        case SETTINGS_HEADER_TABLE_SIZE:
+                            encoder.setMaxTableSize(value);
+                            break;
+                        case SETTINGS_MAX_CONCURRENT_STREAMS:
+                            peerMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                            break;
+                        case SETTINGS_INITIAL_WINDOW_SIZE:
+                            if (value < 0) throw new ProtocolException("Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                            int delta = value - peerInitialWindowSize;
+                            peerInitialWindowSize = value;
+                            for (Stream stream : streams.values()) {
+                                stream.sendWindow += delta;
+                            }
+                            break;
+                        case SETTINGS_MAX_FRAME_SIZE:
+                            if (value < DEFAULT_MAX_FRAME_SIZE || value > MAX_MAX_FRAME_SIZE) {
+                                throw new ProtocolException("Invalid SETTINGS_MAX_FRAME_SIZE");
+                            }
+                            peerMaxFrameSize = value;
+                            break;
+                        default:
+                            // Other settings don't affect the client
+                    }
+                }
+                writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]);
+                startWaiting();
+                flushBlocked();
+                out.flush();
+            }
+        }
+
+        private void onWindowUpdate(int streamId, int increment) throws IOException {
+            synchronized (this) {
+                if (streamId == 0) {
+                    sendWindow += increment;
+                } else {
+                    Stream stream = streams.get(streamId);
+                    if (stream == null) return;
+                    stream.sendWindow += increment;
+                }
+                if (sendWindow > Integer.MAX_VALUE) {
+                    throw new ProtocolException("HTTP/2 flow control window overflow");
+                }
+                flushBlocked();
+                out.flush();
+            }
+        }
+
+        private void onGoAway(int lastStreamId, int errorCode) {
+            List<Stream> unprocessed = new ArrayList<>();
+            synchronized (this) {
+                accepting = false;
+                connections.remove(hostKey, this);
+                for (Iterator<Stream> iterator = streams.values().iterator(); iterator.hasNext(); ) {
+                    Stream stream = iterator.next();
+                    if (stream.id > lastStreamId) {
+                        iterator.remove();
+                        blocked.remove(stream);
+                        unprocessed.add(stream);
+                    }
+                }
+                unprocessed.addAll(waiting);
+                waiting.clear();
+            }
+            // Streams the server never processed are safe to send again on a new connection
+            for (Stream stream : unprocessed) {
+                activeStreams.decrementAndGet();
+                execute(stream);
+            }
+            if (streams.isEmpty()) {
+                close(new IOException("Server closed the HTTP/2 connection, error code " + errorCode));
+            }
+        }
+
+        /* Guarded by this */
+        private void startWaiting() throws IOException {
+            Stream stream;
+            while (nextStreamId > 0 && streams.size() < peerMaxConcurrentStreams && (stream = waiting.poll()) != null) {
+                startStream(stream);
+            }
+        }
+
+        /* Guarded by this */
+        private void flushBlocked() throws IOException {
+            for (Stream stream : new ArrayList<>(blocked)) {
+                sendContent(stream);
+            }
+        }
+
+        private void completeStream(Stream stream) throws IOException {
+            if (streams.remove(stream.id) == null) return;
+            boolean idle;
+            synchronized (this) {
+                blocked.remove(stream);
+                startWaiting();
+                out.flush();
+                idle = !accepting && streams.isEmpty();
+            }
+            activeStreams.decrementAndGet();
+            if (idle) close(new IOException("HTTP/2 connection was closed"));
+
+            if (stream.statusCode == -1) {
+                fail(new ProtocolException("Stream ended without a response"), stream.connection, stream.handler);
+                return;
+            }
+
+            String location = null;
+            for (Map.Entry<String, String> header : stream.responseHeaders) {
+                if (header.getKey().equals("location")) location = header.getValue();
+            }
+            if (stream.connection.getInstanceFollowRedirects() && isRedirect(stream.statusCode) && location != null
+                    && (stream.method.equals("GET") || stream.method.equals("HEAD")) && stream.redirects < MAX_REDIRECTS) {
+                URL target;
+                try {
+                    target = new URL(stream.connection.getURL(), location);
+                } catch (MalformedURLException e) {
+                    target = null;
+                }
+                // Like HttpURLConnection, redirects are not followed to a different protocol
+                if (target != null && target.getProtocol().equalsIgnoreCase(stream.connection.getURL().getProtocol())) {
+                    stream.redirects++;
+                    stream.connection.setURL(target);
+                    execute(stream);
+                    return;
+                }
+            }
+
+            stream.connection.setResponse(stream.statusCode, null, stream.responseHeaders,
+                    stream.responseContent == null ? null : stream.responseContent.toByteArray());
+            deliver(stream.connection, stream.handler);
+        }
+
+        private void failStream(Stream stream, IOException e) {
+            if (streams.remove(stream.id) == null) return;
+            synchronized (this) {
+                blocked.remove(stream);
+                try {
+                    startWaiting();
+                    out.flush();
+                } catch (IOException ignored) {
+                    // The reader thread will see the broken connection
+                }
+            }
+            activeStreams.decrementAndGet();
+            fail(e, stream.connection, stream.handler);
+        }
+
+        void checkTimeouts(long now) {
+            for (Stream stream : streams.values()) {
+                long deadline = stream.deadline;
+                if (deadline != 0 && now >= deadline) {
+                    synchronized (this) {
+                        try {
+                            writeFrame(TYPE_RST_STREAM, 0, stream.id, intBytes(ERROR_CANCEL));
+                            out.flush();
+                        } catch (IOException ignored) {
+                            // The reader thread will see the broken connection
+                        }
+                    }
+                    failStream(stream, new SocketTimeoutException("Read timed out"));
+                }
+            }
+        }
+
+        void close(IOException cause) {
+            List<Stream> failed;
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                accepting = false;
+                connections.remove(hostKey, this);
+                try {
+                    writeFrame(TYPE_GOAWAY, 0, 0, goAwayPayload(cause));
+                    out.flush();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+                failed = new ArrayList<>(streams.values());
+                failed.addAll(waiting);
+                streams.clear();
+                waiting.clear();
+                blocked.clear();
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+            openConnections.decrementAndGet();
+            for (Stream stream : failed) {
+                activeStreams.decrementAndGet();
+                fail(cause, stream.connection, stream.handler);
+            }
+        }
+
+        private byte[] goAwayPayload(IOException cause) {
+            int errorCode = cause instanceof ProtocolException ? ERROR_PROTOCOL_ERROR : ERROR_NO_ERROR;
+            if (cause.getMessage() != null && cause.getMessage().contains("flow control")) errorCode = ERROR_FLOW_CONTROL_ERROR;
+            byte[] payload = new byte[8];
+            int lastStreamId = 0; // The client never accepts server initiated streams
+            System.arraycopy(intBytes(lastStreamId), 0, payload, 0, 4);
+            System.arraycopy(intBytes(errorCode), 0, payload, 4, 4);
+            return payload;
+        }
+
+        /* Guarded by this */
+        private void writeWindowUpdate(int streamId, int increment) throws IOException {
+            writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, intBytes(increment));
+        }
+
+        /* Guarded by this */
+        private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+            writeFrame(type, flags, streamId, payload, 0, payload.length);
+        }
+
+        /* Guarded by this */
+        private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+            out.write(length >>> 16);
+            out.write(length >>> 8);
+            out.write(length);
+            out.write(type);
+            out.write(flags);
+            out.write(intBytes(streamId));
+            out.write(payload, offset, length);
+        }
+    }
+
+    private static long timeoutFrom(int timeout) {
+        return timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    }
+
+    /* Connection-specific headers are not allowed in HTTP/2 */
+    private static boolean isConnectionHeader(String name) {
+        return name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Keep-Alive")
+                || name.equalsIgnoreCase("Proxy-Connection") || name.equalsIgnoreCase("Transfer-Encoding")
+                || name.equalsIgnoreCase("Upgrade") || name.equalsIgnoreCase("Host")
+                || name.equalsIgnoreCase("Content-Length");
+    }
+
+    private static void writeSetting(ByteArrayOutputStream out, int id, int value) {
+        out.write(id >>> 8);
+        out.write(id);
+        out.write(intBytes(value), 0, 4);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static int readInt(byte[] bytes, int offset) throws ProtocolException {
+        if (bytes.length < offset + 4) throw new ProtocolException("HTTP/2 frame too short");
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,819 @@
+package com.mb3364.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A private HTTP cache following RFC 7234. Set it on a client with {@link HttpClient#setCache(HttpCache)};
+ * one cache may be shared by several clients.
+ * <p>
+ * Responses to GET requests are kept in a memory tier that holds the most recently used responses up to
+ * a number of bytes, and optionally in a disk tier that outlives the process. Responses are stored as
+ * <code>Cache-Control</code>, <code>Expires</code> and <code>Vary</code> allow. A fresh response is
+ * handed to the handler on the calling thread, without a worker thread or a connection. A stale response
+ * with an <code>ETag</code> or <code>Last-Modified</code> date is revalidated with a conditional request,
+ * and served from the cache if the server answers <code>304 Not Modified</code>. POST, PUT and DELETE
+ * requests remove the cached response for their URL.
+ * </p>
+ * Example:
+ * <pre>
+ * HttpCache cache = new HttpCache(32 * 1024 * 1024, new File("http-cache"), 256 * 1024 * 1024);
+ * client.setCache(cache);
+ * </pre>
+ */
+public class HttpCache {
+
+    private static final int MAGIC = 0x48545043; // "HTPC", the start of every disk entry
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L; // RFC 7234 4.2.2 warns beyond a day
+    private static final String FILE_SUFFIX = ".cache";
+
+    private final long maxMemoryBytes;
+    private final File directory;
+    private final long maxDiskBytes;
+
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true); // least recently used first
+    private long memoryBytes; // guarded by memory
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true); // file name to size
+    private long diskBytes; // guarded by disk
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a cache that keeps responses in memory only.
+     *
+     * @param maxMemoryBytes the most bytes of responses to keep in memory
+     */
+    public HttpCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * Create a cache that keeps the most recently used responses in memory and all responses on disk.
+     *
+     * @param maxMemoryBytes the most bytes of responses to keep in memory
+     * @param directory      the directory to keep responses in, or <code>null</code> for no disk tier
+     * @param maxDiskBytes   the most bytes of responses to keep in the directory
+     */
+    public HttpCache(long maxMemoryBytes, File directory, long maxDiskBytes) {
+        if (maxMemoryBytes < 0) throw new IllegalArgumentException("maxMemoryBytes must not be negative");
+        if (directory != null && maxDiskBytes < 0) throw new IllegalArgumentException("maxDiskBytes must not be negative");
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+        this.maxDiskBytes = directory == null ? 0 : maxDiskBytes;
+        if (directory != null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalArgumentException("Can't create the cache directory " + directory);
+            }
+            loadDiskIndex();
+        }
+    }
+
+    /**
+     * Remove the cached response for a URL.
+     *
+     * @param url the URL of the resource, including any query string
+     */
+    public void remove(String url) {
+        synchronized (memory) {
+            Entry entry = memory.remove(url);
+            if (entry != null) memoryBytes -= entry.size();
+        }
+        if (directory != null) {
+            String name = fileName(url);
+            synchronized (disk) {
+                Long size = disk.remove(name);
+                if (size != null) diskBytes -= size;
+            }
+            new File(directory, name).delete();
+        }
+    }
+
+    /**
+     * Remove every cached response, from memory and from disk.
+     */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+        if (directory != null) {
+            List<String> names;
+            synchronized (disk) {
+                names = new ArrayList<>(disk.keySet());
+                disk.clear();
+                diskBytes = 0;
+            }
+            for (String name : names) {
+                new File(directory, name).delete();
+            }
+        }
+    }
+
+    /**
+     * Get the number of requests that were served from the cache without contacting the server.
+     *
+     * @return the number of cache hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of requests that found no usable response in the cache.
+     *
+     * @return the number of cache misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of conditional requests made to revalidate a stale response.
+     *
+     * @return the number of revalidations
+     */
+    public long getRevalidationCount() {
+        return revalidations.get();
+    }
+
+    /**
+     * Get the number of revalidations the server answered with <code>304 Not Modified</code>, so the
+     * cached response was served.
+     *
+     * @return the number of revalidated responses
+     */
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    /**
+     * Get the number of responses removed from memory or disk to make room for others.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of bytes of responses held in memory.
+     *
+     * @return the size of the memory tier in bytes
+     */
+    public long getMemorySize() {
+        synchronized (memory) {
+            return memoryBytes;
+        }
+    }
+
+    /**
+     * Get the number of bytes of responses held on disk.
+     *
+     * @return the size of the disk tier in bytes, 0 if there is none
+     */
+    public long getDiskSize() {
+        synchronized (disk) {
+            return diskBytes;
+        }
+    }
+
+    /**
+     * Looks up a GET request. If a fresh response is cached, it is put on the connection.
+     *
+     * @param connection the request, prepared with its headers, including those the handler adds, but not sent
+     * @param handler    the response handler of the request
+     * @return <code>null</code> if the response was put on the connection, otherwise the handler to make the
+     * request with, which stores the response and revalidates any stale response
+     */
+    HttpResponseHandler lookup(BufferedHttpURLConnection connection, HttpResponseHandler handler) {
+        if (connection.getRequestProperty("Range") != null) return handler; // Partial responses aren't cached
+        String requestCacheControl = connection.getRequestProperty("Cache-Control");
+        if (directive(requestCacheControl, "no-store") != null) return handler;
+
+        String key = connection.getURL().toString();
+        Entry entry = get(key);
+        if (entry != null && !entry.matches(connection.getRequestProperties())) {
+            entry = null; // A different variant, it is replaced if the new response is stored
+        }
+
+        boolean noCache = directive(requestCacheControl, "no-cache") != null
+                || "no-cache".equalsIgnoreCase(connection.getRequestProperty("Pragma"));
+        long now = System.currentTimeMillis();
+        if (entry != null && !noCache && entry.isFresh(now)) {
+            hits.incrementAndGet();
+            entry.respond(connection, now);
+            return null;
+        }
+
+        if (entry != null && !entry.hasValidators()) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            revalidations.incrementAndGet();
+        }
+        return new CachingHandler(key, entry, connection.getRequestProperties(), handler);
+    }
+
+    private Entry get(String key) {
+        synchronized (memory) {
+            Entry entry = memory.get(key);
+            if (entry != null) return entry;
+        }
+        if (directory == null) return null;
+
+        Entry entry = readFromDisk(key);
+        if (entry != null) putInMemory(entry);
+        return entry;
+    }
+
+    private void put(Entry entry) {
+        putInMemory(entry);
+        if (directory != null) writeToDisk(entry);
+    }
+
+    private void putInMemory(Entry entry) {
+        synchronized (memory) {
+            Entry previous = memory.remove(entry.url);
+            if (previous != null) memoryBytes -= previous.size();
+            if (entry.size() > maxMemoryBytes) return; // Only fits on disk
+
+            memory.put(entry.url, entry);
+            memoryBytes += entry.size();
+            Iterator<Entry> eldest = memory.values().iterator();
+            while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+                memoryBytes -= eldest.next().size();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /* Lists the entries already on disk, the oldest are evicted first */
+    private void loadDiskIndex() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        synchronized (disk) {
+            for (File file : files) {
+                if (!file.isFile() || !file.getName().endsWith(FILE_SUFFIX)) continue;
+                disk.put(file.getName(), file.length());
+                diskBytes += file.length();
+            }
+        }
+    }
+
+    private Entry readFromDisk(String key) {
+        String name = fileName(key);
+        synchronized (disk) {
+            if (disk.get(name) == null) return null; // Also marks it as recently used
+        }
+        File file = new File(directory, name);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Entry entry = Entry.readFrom(in);
+            return key.equals(entry.url) ? entry : null;
+        } catch (IOException e) {
+            remove(key); // Unreadable, don't try again
+            return null;
+        }
+    }
+
+    /* Written to a temporary file first, so readers never see a partial entry */
+    private void writeToDisk(Entry entry) {
+        String name = fileName(entry.url);
+        File file = new File(directory, name);
+        if (entry.size() > maxDiskBytes) {
+            remove(entry.url);
+            return;
+        }
+        File temp = null;
+        try {
+            temp = File.createTempFile(name, ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                entry.writeTo(out);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (temp != null) temp.delete();
+            return; // Still cached in memory
+        }
+
+        List<String> evicted = new ArrayList<>();
+        synchronized (disk) {
+            Long previous = disk.put(name, file.length());
+            diskBytes += file.length() - (previous == null ? 0 : previous);
+            Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> oldest = eldest.next();
+                if (oldest.getKey().equals(name)) continue;
+                diskBytes -= oldest.getValue();
+                evicted.add(oldest.getKey());
+                eldest.remove();
+            }
+        }
+        for (String evictedName : evicted) {
+            new File(directory, evictedName).delete();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + FILE_SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(FILE_SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM supports SHA-256
+        }
+    }
+
+    /**
+     * Finds a directive in a <code>Cache-Control</code> header.
+     *
+     * @param cacheControl the header value, may be <code>null</code>
+     * @param name         the directive name
+     * @return the directive's value, an empty string if it has none, or <code>null</code> if it is absent
+     */
+    static String directive(String cacheControl, String name) {
+        if (cacheControl == null) return null;
+        for (String part : cacheControl.split(",")) {
+            String directive = part.trim();
+            int equals = directive.indexOf('=');
+            String key = equals < 0 ? directive : directive.substring(0, equals).trim();
+            if (!key.equalsIgnoreCase(name)) continue;
+            if (equals < 0) return "";
+            String value = directive.substring(equals + 1).trim();
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            return value;
+        }
+        return null;
+    }
+
+    /* A number of seconds, or -1 if missing or malformed */
+    private static long seconds(String value) {
+        if (value == null) return -1;
+        try {
+            long seconds = Long.parseLong(value.trim());
+            return seconds < 0 ? -1 : Math.min(seconds, Integer.MAX_VALUE);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /* An HTTP date in milliseconds, or -1 if missing or malformed */
+    private static long parseDate(String value) {
+        if (value == null) return -1;
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /* The value of a request header, several values joined by commas */
+    private static String requestHeader(Map<String, List<String>> requestHeaders, String name) {
+        for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                StringBuilder value = new StringBuilder();
+                for (String v : header.getValue()) {
+                    if (value.length() > 0) value.append(',');
+                    value.append(v);
+                }
+                return value.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A stored response. Entries are never changed, and their content is never handed out, only copies of it.
+     */
+    private static final class Entry {
+
+        final String url;
+        final int statusCode;
+        final String message;
+        final List<Map.Entry<String, String>> headers;
+        final Map<String, String> varyHeaders; // the request headers the response varies on
+        final byte[] content;
+        final long requestTime; // when the request was sent, in milliseconds
+        final long responseTime; // when the response was received, in milliseconds
+
+        Entry(String url, int statusCode, String message, List<Map.Entry<String, String>> headers,
+              Map<String, String> varyHeaders, byte[] content, long requestTime, long responseTime) {
+            this.url = url;
+            this.statusCode = statusCode;
+            this.message = message;
+            this.headers = headers;
+            this.varyHeaders = varyHeaders;
+            this.content = content;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+        }
+
+        /* The request header values named by the response's Vary header */
+        static Map<String, String> varyHeaders(String vary, Map<String, List<String>> requestHeaders) {
+            Map<String, String> varyHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            if (vary == null) return varyHeaders;
+            for (String name : vary.split(",")) {
+                name = name.trim();
+                if (!name.isEmpty()) varyHeaders.put(name, requestHeader(requestHeaders, name));
+            }
+            return varyHeaders;
+        }
+
+        Entry withContent(byte[] content) {
+            return new Entry(url, statusCode, message, headers, varyHeaders, content, requestTime, responseTime);
+        }
+
+        /* The stored headers updated with those of a 304 response, RFC 7234 4.3.4 */
+        Entry revalidated(List<Map.Entry<String, String>> update, long requestTime, long responseTime) {
+            Set<String> replaced = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            for (Map.Entry<String, String> header : update) {
+                if (!header.getKey().equalsIgnoreCase("Content-Length")) replaced.add(header.getKey());
+            }
+            List<Map.Entry<String, String>> merged = new ArrayList<>(headers.size() + update.size());
+            for (Map.Entry<String, String> header : headers) {
+                if (!replaced.contains(header.getKey())) merged.add(header);
+            }
+            for (Map.Entry<String, String> header : update) {
+                if (replaced.contains(header.getKey())) merged.add(header);
+            }
+            return new Entry(url, statusCode, message, merged, varyHeaders, content, requestTime, responseTime);
+        }
+
+        String header(String name) {
+            String value = null;
+            for (Map.Entry<String, String> header : headers) {
+                if (name.equalsIgnoreCase(header.getKey())) value = header.getValue();
+            }
+            return value;
+        }
+
+        /* Every value of a list header, like Cache-Control, joined by commas */
+        String headerValues(String name) {
+            StringBuilder values = null;
+            for (Map.Entry<String, String> header : headers) {
+                if (!name.equalsIgnoreCase(header.getKey())) continue;
+                if (values == null) {
+                    values = new StringBuilder(header.getValue());
+                } else {
+                    values.append(',').append(header.getValue());
+                }
+            }
+            return values == null ? null : values.toString();
+        }
+
+        boolean hasValidators() {
+            return header("ETag") != null || header("Last-Modified") != null;
+        }
+
+        boolean isStorable() {
+            switch (statusCode) {
+                case HttpStatusCodes.OK:
+                case HttpStatusCodes.NOT_AUTHORITATIVE:
+                case HttpStatusCodes.NO_CONTENT:
+                case HttpStatusCodes.MULT_CHOICE:
+                case HttpStatusCodes.MOVED_PERM:
+                case HttpStatusCodes.NOT_FOUND:
+                case HttpStatusCodes.BAD_METHOD:
+                case HttpStatusCodes.GONE:
+                case HttpStatusCodes.REQ_TOO_LONG:
+                case HttpStatusCodes.NOT_IMPLEMENTED:
+                    break;
+                default:
+                    return false;
+            }
+            if (directive(headerValues("Cache-Control"), "no-store") != null) return false;
+            if (varyHeaders.containsKey("*")) return false;
+            return freshnessLifetime() > 0 || hasValidators();
+        }
+
+        boolean matches(Map<String, List<String>> requestHeaders) {
+            for (Map.Entry<String, String> vary : varyHeaders.entrySet()) {
+                if (!Objects.equals(vary.getValue(), requestHeader(requestHeaders, vary.getKey()))) return false;
+            }
+            return true;
+        }
+
+        /* RFC 7234 4.2.1, heuristic freshness from 4.2.2 */
+        long freshnessLifetime() {
+            String cacheControl = headerValues("Cache-Control");
+            if (directive(cacheControl, "no-cache") != null) return 0;
+
+            long maxAge = seconds(directive(cacheControl, "max-age"));
+            if (maxAge >= 0) return maxAge * 1000;
+
+            long date = dateValue();
+            String expires = header("Expires");
+            if (expires != null) {
+                long expiresValue = parseDate(expires);
+                return expiresValue < 0 ? 0 : Math.max(0, expiresValue - date); // Malformed means already expired
+            }
+
+            long lastModified = parseDate(header("Last-Modified"));
+            if (lastModified >= 0 && date > lastModified) {
+                return Math.min((date - lastModified) / 10, MAX_HEURISTIC_LIFETIME);
+            }
+            return 0;
+        }
+
+        /* RFC 7234 4.2.3 */
+        long currentAge(long now) {
+            long apparentAge = Math.max(0, responseTime - dateValue());
+            long correctedAgeValue = Math.max(0, seconds(header("Age"))) * 1000 + (responseTime - requestTime);
+            return Math.max(apparentAge, correctedAgeValue) + (now - responseTime);
+        }
+
+        long dateValue() {
+            long date = parseDate(header("Date"));
+            return date < 0 ? responseTime : date;
+        }
+
+        boolean isFresh(long now) {
+            return freshnessLifetime() > currentAge(now);
+        }
+
+        /* Puts a copy of the response on the connection, with its current Age */
+        void respond(BufferedHttpURLConnection connection, long now) {
+            List<Map.Entry<String, String>> responseHeaders = new ArrayList<>(headers.size() + 1);
+            for (Map.Entry<String, String> header : headers) {
+                if (!header.getKey().equalsIgnoreCase("Age")) responseHeaders.add(header);
+            }
+            responseHeaders.add(new AbstractMap.SimpleImmutableEntry<>("Age", Long.toString(currentAge(now) / 1000)));
+            connection.setResponse(statusCode, message, responseHeaders, content.clone());
+        }
+
+        long size() {
+            long size = content.length + 64;
+            for (Map.Entry<String, String> header : headers) {
+                size += 2 * (header.getKey().length() + header.getValue().length()) + 32;
+            }
+            return size;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeUTF(url);
+            out.writeInt(statusCode);
+            out.writeUTF(message == null ? "" : message);
+            out.writeLong(requestTime);
+            out.writeLong(responseTime);
+            out.writeInt(headers.size());
+            for (Map.Entry<String, String> header : headers) {
+                out.writeUTF(header.getKey());
+                out.writeUTF(header.getValue());
+            }
+            out.writeInt(varyHeaders.size());
+            for (Map.Entry<String, String> vary : varyHeaders.entrySet()) {
+                out.writeUTF(vary.getKey());
+                out.writeBoolean(vary.getValue() != null);
+                if (vary.getValue() != null) out.writeUTF(vary.getValue());
+            }
+            out.writeInt(content.length);
+            out.write(content);
+        }
+
+        static Entry readFrom(DataInputStream in) throws IOException {
+            if (in.readInt() != MAGIC) throw new IOException("Not a cache entry");
+            String url = in.readUTF();
+            int statusCode = in.readInt();
+            String message = in.readUTF();
+            long requestTime = in.readLong();
+            long responseTime = in.readLong();
+            int headerCount = in.readInt();
+            List<Map.Entry<String, String>> headers = new ArrayList<>(headerCount);
+            for (int i = 0; i < headerCount; i++) {
+                headers.add(new AbstractMap.SimpleImmutableEntry<>(in.readUTF(), in.readUTF()));
+            }
+            int varyCount = in.readInt();
+            Map<String, String> varyHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (int i = 0; i < varyCount; i++) {
+                String name = in.readUTF();
+                varyHeaders.put(name, in.readBoolean() ? in.readUTF() : null);
+            }
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            return new Entry(url, statusCode, message.isEmpty() ? null : message, headers, varyHeaders,
+                    content, requestTime, responseTime);
+        }
+    }
+
+    /**
+     * Makes the request on behalf of the real handler. Cacheable responses are read whole, stored and then
+     * handed to the real handler; a <code>304 Not Modified</code> answer hands over the stored response
+     * instead. Any other response goes straight to the real handler, as does a response of unknown length once
+     * it grows past what either tier holds, with the part already read put back in front of the rest.
+     */
+    private final class CachingHandler extends DelegatingHandler {
+
+        private final String key;
+        private final Entry stale; // the response being revalidated, or null
+        private final Map<String, List<String>> requestHeaders; // as looked up, without the conditional headers
+
+        private long requestTime;
+
+        CachingHandler(String key, Entry stale, Map<String, List<String>> requestHeaders, HttpResponseHandler handler) {
+            super(handler);
+            this.key = key;
+            this.stale = stale;
+            this.requestHeaders = requestHeaders;
+        }
+
+        @Override
+        void prepareRequest(HttpURLConnection httpURLConnection) {
+            super.prepareRequest(httpURLConnection);
+            if (stale != null) {
+                String etag = stale.header("ETag");
+                String lastModified = stale.header("Last-Modified");
+                if (etag != null) httpURLConnection.setRequestProperty("If-None-Match", etag);
+                if (lastModified != null) httpURLConnection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+            requestTime = System.currentTimeMillis();
+        }
+
+        @Override
+        protected void processResponse(HttpURLConnection connection) {
+            try {
+                int responseCode = connection.getResponseCode();
+                long responseTime = System.currentTimeMillis();
+
+                if (responseCode == HttpStatusCodes.NOT_MODIFIED && stale != null) {
+                    notModified.incrementAndGet();
+                    Entry entry = stale.revalidated(BufferedHttpURLConnection.copyHeaders(connection), requestTime, responseTime);
+                    put(entry);
+                    respond(connection, entry, entry.content.clone());
+                    return;
+                }
+
+                Entry response = new Entry(key, responseCode, connection.getResponseMessage(), BufferedHttpURLConnection.copyHeaders(connection),
+                        Entry.varyHeaders(connection.getHeaderField("Vary"), requestHeaders), null, requestTime, responseTime);
+                long length = connection.getContentLengthLong();
+                long limit = Math.max(maxMemoryBytes, maxDiskBytes);
+                if (!connection.getURL().toString().equals(key) || !response.isStorable() || length > limit) {
+                    if (stale != null) remove(key);
+                    handler.processResponse(connection);
+                    return;
+                }
+
+                InputStream inputStream = responseCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+                byte[] content;
+                boolean handedOver = false;
+                try {
+                    if (inputStream == null) {
+                        content = new byte[0];
+                    } else if (length >= 0 || inputStream instanceof BufferedHttpURLConnection.ContentInputStream) {
+                        content = readFrom(inputStream, length);
+                    } else {
+                        // The length is unknown, read no further than a tier holds
+                        ContentBuffer buffer = new ContentBuffer(-1);
+                        while (buffer.size() <= limit && buffer.readFrom(inputStream) != -1) {
+                            // Keep reading
+                        }
+                        if (buffer.size() > limit) {
+                            // Too large to cache, hand over what was read followed by the rest of the stream
+                            if (stale != null) remove(key);
+                            InputStream rest = new SequenceInputStream(new ByteArrayInputStream(buffer.toByteArray()), inputStream);
+                            handedOver = true;
+                            handler.processResponse(new StreamedConnection(connection, responseCode, rest));
+                            return;
+                        }
+                        content = buffer.toByteArray();
+                    }
+                } finally {
+                    if (!handedOver) close(inputStream);
+                }
+                put(response.withContent(content.clone()));
+                respond(connection, response, content);
+            } catch (IOException e) {
+                handler.onFailure(e);
+            }
+        }
+
+        private void respond(HttpURLConnection connection, Entry entry, byte[] content) {
+            BufferedHttpURLConnection cached = new BufferedHttpURLConnection(connection.getURL());
+            cached.setResponse(entry.statusCode, entry.message, entry.headers, content);
+            handler.processResponse(cached);
+        }
+    }
+
+    /* A response whose content is read from another stream, for a response found too large to cache */
+    private static final class StreamedConnection extends HttpURLConnection {
+
+        private final HttpURLConnection connection;
+        private final InputStream content;
+
+        StreamedConnection(HttpURLConnection connection, int responseCode, InputStream content) {
+            super(connection.getURL());
+            this.connection = connection;
+            this.responseCode = responseCode;
+            this.content = content;
+            this.connected = true;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+            connection.disconnect();
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return connection.usingProxy();
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            return connection.getResponseMessage();
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return connection.getHeaderFields();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public String getHeaderFieldKey(int n) {
+            return connection.getHeaderFieldKey(n);
+        }
+
+        @Override
+        public String getHeaderField(int n) {
+            return connection.getHeaderField(n);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return responseCode < 400 ? content : connection.getInputStream();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return responseCode >= 400 ? content : null;
+        }
+    }
+}
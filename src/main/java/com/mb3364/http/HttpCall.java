@@ -0,0 +1,191 @@
+package com.mb3364.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single attempt at a request, as reported to {@link HttpEventListener}s. Calls are only created while a
+ * client has listeners, so requests cost nothing extra otherwise.
+ */
+public final class HttpCall {
+
+    private static final AtomicLong nextId = new AtomicLong();
+
+    private final long id = nextId.incrementAndGet();
+    private final HttpRequestMethod method;
+    private final String url;
+    private final HttpEventListener[] listeners;
+
+    HttpCall(HttpRequestMethod method, String url, HttpEventListener[] listeners) {
+        this.method = method;
+        this.url = url;
+        this.listeners = listeners;
+    }
+
+    /**
+     * Get the number identifying this call, unique within the JVM.
+     *
+     * @return the call id
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Get the method of the request.
+     *
+     * @return the {@link HttpRequestMethod}
+     */
+    public HttpRequestMethod getMethod() {
+        return method;
+    }
+
+    /**
+     * Get the URL requested, without any GET parameters.
+     *
+     * @return the URL
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    @Override
+    public String toString() {
+        return "HttpCall#" + id + " " + method + " " + url;
+    }
+
+    /*
+     * The events. Each takes its own time stamp, and a listener that throws is reported to the thread's
+     * uncaught exception handler rather than breaking the request.
+     */
+
+    void callStart() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.callStart(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void queued() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.queued(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void dequeued() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.dequeued(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void dnsStart() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.dnsStart(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void dnsEnd() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.dnsEnd(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void connectStart() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.connectStart(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void connectEnd() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.connectEnd(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void secureConnectEnd() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.secureConnectEnd(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void requestHeadersSent() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.requestHeadersSent(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void requestBodySent() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.requestBodySent(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void responseHeadersReceived(int statusCode) {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.responseHeadersReceived(this, statusCode, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void responseBodyComplete() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.responseBodyComplete(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void callEnd() {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.callEnd(this, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    void callFailed(Throwable throwable) {
+        long now = System.nanoTime();
+        try {
+            for (HttpEventListener listener : listeners) listener.callFailed(this, throwable, now);
+        } catch (RuntimeException e) {
+            uncaught(e);
+        }
+    }
+
+    private static void uncaught(RuntimeException e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+}
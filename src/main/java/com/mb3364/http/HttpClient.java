@@ -1,12 +1,20 @@
 package com.mb3364.http;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Client for making HTTP requests.
@@ -19,11 +27,25 @@ public abstract class HttpClient {
 
     public static final String DEFAULT_USER_AGENT = "Java-Async-Http";
 
+    static final int CHUNK_SIZE = 32 * 1024; // size of chunks when the content length is unknown
+
     private final Map<String, String> headers; // HTTP request headers
 
     private int connectionTimeout = 20000; // in milliseconds
     private int dataRetrievalTimeout = 20000; // in milliseconds
     private boolean followRedirects = true; // automatically follow HTTP redirects?
+    private volatile BufferPool bufferPool = BufferPool.getDefault(); // buffers for reading and writing content
+    private boolean decompressResponses = true; // ask for compressed responses and decompress them?
+    private volatile int requestCompressionThreshold = -1; // smallest content body to gzip, -1 never
+    private volatile HttpCache cache; // responses to reuse, null if none
+    private volatile DnsResolver dnsResolver = DnsResolver.SYSTEM; // finds hosts for engines
+    private volatile RetryPolicy retryPolicy; // which failed requests to make again, null for none
+    private volatile CircuitBreaker circuitBreaker; // fails requests to failing hosts straight away, null for none
+    private volatile RateLimiter rateLimiter; // for every request, null for none
+    private final ConcurrentMap<String, RateLimiter> hostRateLimiters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RateLimiter> prefixRateLimiters = new ConcurrentHashMap<>();
+    private volatile HttpEventListener[] eventListeners = new HttpEventListener[0]; // copied on write
+    private volatile HttpMetrics metrics; // null for none
 
     public HttpClient() {
         headers = Collections.synchronizedMap(new LinkedHashMap<String, String>());
@@ -39,72 +61,446 @@ public abstract class HttpClient {
      * @param handler the response handler
      */
     protected void request(String url, HttpRequestMethod method, RequestParams params, HttpResponseHandler handler) {
+        handler = checkCache(url, method, params, handler);
+        if (handler == null) return; // Served from the cache
+
+        send(url, method, params, withRetries(url, method, params, handler));
+    }
+
+    /**
+     * Performs a request on the current thread once its host's circuit and the rate limits allow. Waiting
+     * for a permit blocks the current thread.
+     *
+     * @param url     the URL of the resource to request
+     * @param method  the {@link HttpRequestMethod} to use
+     * @param params  any parameters to send with the request, or null if none
+     * @param handler the response handler
+     */
+    private void send(String url, HttpRequestMethod method, RequestParams params, HttpResponseHandler handler) {
+        handler = withCircuitBreaker(url, handler);
+        if (handler == null) return; // The host's circuit is open
+
+        long wait = reservePermits(url, handler);
+        if (wait < 0) return; // Would have waited too long
+        if (wait > 0 && !sleep(wait, "for a rate limit permit", url, handler)) return;
+
+        perform(url, method, params, handler, newCall(method, url));
+    }
+
+    /**
+     * Starts reporting an attempt at a request to the event listeners.
+     *
+     * @param method the {@link HttpRequestMethod} to use
+     * @param url    the URL of the resource to request
+     * @return the call, or <code>null</code> if there are no listeners
+     */
+    HttpCall newCall(HttpRequestMethod method, String url) {
+        HttpEventListener[] listeners = eventListeners;
+        if (listeners.length == 0) return null;
+        HttpCall call = new HttpCall(method, url, listeners);
+        call.callStart();
+        return call;
+    }
+
+    /**
+     * Takes a permit from each {@link RateLimiter} the request is subject to: the client's, its host's and
+     * the one with the longest prefix of its URL. The request fails if any of them would make it wait too long,
+     * and the permits already taken from the others are given back.
+     *
+     * @param url     the URL of the resource to request
+     * @param handler the response handler
+     * @return the time to wait before making the request in nanoseconds, or -1 if the request was failed
+     */
+    long reservePermits(String url, HttpResponseHandler handler) {
+        RateLimiter hostLimiter = hostRateLimiters.isEmpty() ? null : hostRateLimiters.get(hostOf(url));
+        RateLimiter prefixLimiter = null;
+        if (!prefixRateLimiters.isEmpty()) {
+            String longest = null;
+            for (String prefix : prefixRateLimiters.keySet()) {
+                if (url.startsWith(prefix) && (longest == null || prefix.length() > longest.length())) longest = prefix;
+            }
+            if (longest != null) prefixLimiter = prefixRateLimiters.get(longest);
+        }
+
+        RateLimiter[] limiters = {rateLimiter, hostLimiter, prefixLimiter};
+        long[] waits = new long[limiters.length];
+        long wait = 0;
+        for (int i = 0; i < limiters.length; i++) {
+            if (limiters[i] == null) continue;
+            waits[i] = limiters[i].reserve();
+            if (waits[i] < 0) {
+                // The request won't be made, give back the permits already taken for it
+                for (int j = 0; j < i; j++) {
+                    if (limiters[j] != null) limiters[j].unreserve(waits[j]);
+                }
+                handler.onFailure(new RateLimitExceededException(url));
+                return -1;
+            }
+            wait = Math.max(wait, waits[i]);
+        }
+        return wait;
+    }
+
+    /**
+     * Blocks the current thread, or fails the request if it is interrupted.
+     *
+     * @return <code>true</code> once the time has passed, <code>false</code> if the request was failed
+     */
+    private static boolean sleep(long nanos, String reason, String url, HttpResponseHandler handler) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            handler.onFailure(new InterruptedIOException("Interrupted while waiting " + reason + ": " + url));
+            return false;
+        }
+    }
+
+    /**
+     * Wraps the handler so the outcome of the request is recorded by the client's {@link CircuitBreaker},
+     * or fails the request straight away if its host's circuit is open.
+     *
+     * @param url     the URL of the resource to request
+     * @param handler the response handler
+     * @return the handler to perform the request with, or <code>null</code> if the request was failed
+     */
+    HttpResponseHandler withCircuitBreaker(String url, HttpResponseHandler handler) {
+        CircuitBreaker breaker = circuitBreaker;
+        return breaker == null ? handler : breaker.guard(url, handler);
+    }
+
+    /**
+     * Wraps the handler so the request is retried as the client's {@link RetryPolicy} allows.
+     *
+     * @param url     the URL of the resource to request
+     * @param method  the {@link HttpRequestMethod} to use
+     * @param params  any parameters to send with the request, or null if none
+     * @param handler the response handler
+     * @return the handler to perform the request with
+     */
+    HttpResponseHandler withRetries(String url, HttpRequestMethod method, RequestParams params, HttpResponseHandler handler) {
+        RetryPolicy policy = retryPolicy;
+        if (policy == null) return handler;
+        policy.requestMade();
+        if (!policy.isRetryable(method, params)) return handler;
+        return new RetryingHandler(this, policy, url, method, params, handler);
+    }
+
+    /**
+     * Performs a request again after waiting. The wait blocks the current thread.
+     *
+     * @param url     the URL of the resource to request
+     * @param method  the {@link HttpRequestMethod} to use
+     * @param params  any parameters to send with the request, or null if none
+     * @param handler the response handler
+     * @param delay   the time to wait first in milliseconds
+     */
+    void retry(String url, HttpRequestMethod method, RequestParams params, HttpResponseHandler handler, long delay) {
+        if (sleep(TimeUnit.MILLISECONDS.toNanos(delay), "to retry", url, handler)) send(url, method, params, handler);
+    }
+
+    /**
+     * Performs an HTTP request over the network on the current thread.
+     *
+     * @param url     the URL of the resource to request
+     * @param method  the {@link HttpRequestMethod} to use
+     * @param params  any parameters to send with the request, or null if none
+     * @param handler the response handler
+     * @param call    the call to report events to, or <code>null</code> if there are no listeners
+     */
+    void perform(String url, HttpRequestMethod method, RequestParams params, HttpResponseHandler handler,
+                 HttpCall call) {
 
         HttpURLConnection urlConnection = null;
+        HttpMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
 
         // Create empty params if one isn't specified
         if (params == null) {
             params = new RequestParams();
         }
 
-        // Append params to url for methods other than POST and PUT
-        if (method != HttpRequestMethod.POST && method != HttpRequestMethod.PUT) {
-            if (params.size() > 0) url = url + "?" + params.toEncodedString();
-        }
-
         try {
-            URL resourceUrl = new URL(url);
+            URL resourceUrl = new URL(buildUrl(url, method, params));
             urlConnection = (HttpURLConnection) resourceUrl.openConnection();
 
-            // Settings
-            urlConnection.setConnectTimeout(connectionTimeout);
-            urlConnection.setReadTimeout(dataRetrievalTimeout);
-            urlConnection.setUseCaches(false);
-            urlConnection.setInstanceFollowRedirects(followRedirects);
-            urlConnection.setRequestMethod(method.toString());
-            urlConnection.setDoInput(true);
+            prepareConnection(urlConnection, method);
 
-            // Headers
-            for (Map.Entry<String, String> header : headers.entrySet()) {
-                urlConnection.setRequestProperty(header.getKey(), header.getValue());
-            }
+            checkCancelled(handler);
+            startRequest(urlConnection, handler);
 
-            handler.onStart(urlConnection);
-
-            // Request Body
-            // POST and PUT expect an output body.
-            if (method == HttpRequestMethod.POST || method == HttpRequestMethod.PUT) {
-                urlConnection.setDoOutput(true);
-                if (params.hasFiles()) {
-                    // Use multipart/form-data to send fields and files
-                    urlConnection.setChunkedStreamingMode(32 * 1024); // 32kb at a time
-                    MultipartWriter.write(urlConnection, params);
-                } else {
-                    // Send content as form-urlencoded
-                    byte[] content = params.toEncodedString().getBytes();
-                    urlConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded;charset=" + params.getCharset().name());
-                    urlConnection.setRequestProperty("Content-Length", Long.toString(content.length));
-                    urlConnection.setFixedLengthStreamingMode(content.length); // Stream the data so we don't run out of memory
-                    try (OutputStream os = urlConnection.getOutputStream()) {
-                        os.write(content);
-                    }
-                }
-            }
+            // Count the content as it crosses the connection's streams, whatever its framing and encoding
+            CountingConnection counted = metrics != null ? new CountingConnection(urlConnection) : null;
+            HttpURLConnection exchange = counted != null ? counted : urlConnection;
+
+            writeContent(exchange, method, params);
+
+            // HttpURLConnection doesn't say when it looks up, connects or sends, so only the response is reported
+            if (call != null) call.responseHeadersReceived(urlConnection.getResponseCode());
+            // Read before the handler, which reports its own failures, so a failure is only reported once
+            int statusCode = metrics != null ? urlConnection.getResponseCode() : -1;
 
             // Process the response in the handler because it can be done in different ways
-            handler.processResponse(urlConnection);
+            handler.processResponse(exchange);
+            if (call != null) call.responseBodyComplete();
+            if (counted != null) {
+                metrics.record(method, urlConnection.getURL(), statusCode, counted.getBytesSent(),
+                        counted.getBytesReceived(), System.nanoTime() - start);
+            }
             // Request finished
             handler.onFinish(urlConnection);
+            if (call != null) call.callEnd();
 
         } catch (IOException e) {
-            handler.onFailure(e);
-        } finally {
+            // Don't let a broken connection be reused. Otherwise the connection is left open so it can be
+            // kept alive and reused by the next request to the same host.
             if (urlConnection != null) {
                 urlConnection.disconnect();
             }
+            if (call != null) call.callFailed(e);
+            if (metrics != null) metrics.recordFailure();
+            handler.onFailure(e);
+        } catch (RuntimeException | Error e) {
+            // Thrown by a callback, let go of what the request holds before passing it on
+            handler.abandon();
+            throw e;
+        }
+    }
+
+    /**
+     * Serves a GET request from the cache on the current thread if it holds a fresh response. Requests that
+     * change the resource remove its cached response.
+     *
+     * @param url     the URL of the resource to request
+     * @param method  the {@link HttpRequestMethod} to use
+     * @param params  any parameters to send with the request, or null if none
+     * @param handler the response handler
+     * @return <code>null</code> if the request was served from the cache, otherwise the handler to perform the
+     * request with
+     */
+    HttpResponseHandler checkCache(String url, HttpRequestMethod method, RequestParams params, HttpResponseHandler handler) {
+        HttpCache cache = this.cache;
+        if (cache == null || method == HttpRequestMethod.HEAD) return handler;
+        if (params == null) params = new RequestParams();
+
+        try {
+            URL resourceUrl = new URL(buildUrl(url, method, params));
+            if (method != HttpRequestMethod.GET) {
+                cache.remove(resourceUrl.toString());
+                return handler;
+            }
+
+            BufferedHttpURLConnection connection = new BufferedHttpURLConnection(resourceUrl);
+            prepareConnection(connection, method);
+            // The handler's own headers, such as Cache-Control or Range, decide whether the cache may answer
+            handler.bufferPool = bufferPool;
+            handler.decompress = decompressResponses;
+            handler.prepareRequest(connection);
+            HttpResponseHandler started = StartedHandler.start(connection, handler);
+            HttpResponseHandler cachingHandler = cache.lookup(connection, started);
+            if (cachingHandler == null) {
+                // The cached response was put on the connection
+                handler.processResponse(connection);
+                handler.onFinish(connection);
+            }
+            return cachingHandler;
+        } catch (IOException e) {
+            return handler; // Let the request itself fail
+        }
+    }
+
+    /**
+     * Builds the URL to request. Parameters are appended to the query string for methods
+     * other than POST and PUT, which send them in the content body instead unless a raw
+     * {@link RequestBody} is sent.
+     *
+     * @param url    the URL of the resource to request
+     * @param method the {@link HttpRequestMethod} to use
+     * @param params the parameters to send with the request
+     * @return the URL to request
+     */
+    static String buildUrl(String url, HttpRequestMethod method, RequestParams params) {
+        if (!hasContent(method) && params.size() > 0) {
+            return url + "?" + params.toEncodedString();
+        }
+        if (hasContent(method) && params.getBody() != null && !params.stringEntrySet().isEmpty()) {
+            return url + "?" + params.toEncodedString();
+        }
+        return url;
+    }
+
+    /**
+     * Identifies a request by everything that is sent with it, so identical requests can be recognised.
+     *
+     * @param url    the URL of the resource to request
+     * @param method the {@link HttpRequestMethod} to use
+     * @param params any parameters to send with the request, or null if none
+     * @return the request line and headers of the request
+     */
+    String requestKey(String url, HttpRequestMethod method, RequestParams params) {
+        if (params == null) params = new RequestParams();
+        StringBuilder key = new StringBuilder(method.toString()).append(' ').append(buildUrl(url, method, params));
+        if (decompressResponses) key.append("\nAccept-Encoding: gzip, deflate");
+        synchronized (headers) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                key.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Get the host and port a request is sent to, which requests are grouped by.
+     *
+     * @param url the URL of the resource to request
+     * @return the host, with the port if the URL has one, in lower case
+     */
+    static String hostOf(String url) {
+        try {
+            return new URL(url).getAuthority().toLowerCase();
+        } catch (MalformedURLException e) {
+            return url; // The request itself will fail
+        }
+    }
+
+    /**
+     * Check if requests with the specified method send a content body.
+     *
+     * @param method the {@link HttpRequestMethod} to check
+     * @return <code>true</code> for POST and PUT, <code>false</code> otherwise
+     */
+    static boolean hasContent(HttpRequestMethod method) {
+        return method == HttpRequestMethod.POST || method == HttpRequestMethod.PUT;
+    }
+
+    /**
+     * Applies the client settings and global headers to a connection before the request is made.
+     *
+     * @param urlConnection the connection to prepare
+     * @param method        the {@link HttpRequestMethod} to use
+     * @throws IOException if the request method is not valid for the connection
+     */
+    void prepareConnection(HttpURLConnection urlConnection, HttpRequestMethod method) throws IOException {
+        // Settings
+        urlConnection.setConnectTimeout(connectionTimeout);
+        urlConnection.setReadTimeout(dataRetrievalTimeout);
+        urlConnection.setUseCaches(false);
+        urlConnection.setInstanceFollowRedirects(followRedirects);
+        urlConnection.setRequestMethod(method.toString());
+        urlConnection.setDoInput(true);
+
+        // Headers, a global header replaces the default
+        if (decompressResponses) {
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        }
+        synchronized (headers) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                urlConnection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+    }
+
+    /**
+     * Hands the client settings to the handler and lets it prepare the request, just before the request
+     * content is written.
+     *
+     * @param urlConnection the connection of the request
+     * @param handler       the response handler
+     */
+    void startRequest(HttpURLConnection urlConnection, HttpResponseHandler handler) {
+        handler.bufferPool = bufferPool;
+        handler.decompress = decompressResponses;
+        handler.prepareRequest(urlConnection);
+        handler.onStart(urlConnection);
+    }
+
+    /**
+     * Fails a request that was cancelled before it was sent, such as a hedge that lost while it waited for a
+     * worker, instead of connecting.
+     *
+     * @param handler the response handler
+     * @throws InterruptedIOException if the request was cancelled
+     */
+    static void checkCancelled(HttpResponseHandler handler) throws InterruptedIOException {
+        if (handler.isCancelled()) throw new InterruptedIOException("Request was cancelled");
+    }
+
+    /**
+     * Writes the request content body, if the method has one.
+     *
+     * @param urlConnection the connection to write to
+     * @param method        the {@link HttpRequestMethod} of the request
+     * @param params        the parameters to send as the content body
+     * @throws IOException if an error occurs while writing the content
+     */
+    void writeContent(HttpURLConnection urlConnection, HttpRequestMethod method, RequestParams params) throws IOException {
+        // POST and PUT expect an output body.
+        if (!hasContent(method)) return;
+
+        urlConnection.setDoOutput(true);
+        RequestBody body = params.getBody();
+        if (body != null) {
+            if (params.hasFiles()) throw new ProtocolException("A request body can't be sent with file parameters");
+            writeBody(urlConnection, body);
+        } else if (params.hasFiles()) {
+            // Use multipart/form-data to send fields and files, with a precomputed length
+            MultipartWriter.write(urlConnection, params, bufferPool, requestCompressionThreshold);
+        } else {
+            // Send content as form-urlencoded
+            byte[] content = params.toEncodedString().getBytes();
+            urlConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded;charset=" + params.getCharset().name());
+            try (OutputStream os = openContent(urlConnection, content.length, requestCompressionThreshold)) {
+                os.write(content);
+            }
+        }
+    }
+
+    /**
+     * Writes a raw request body.
+     *
+     * @param urlConnection the connection to write to
+     * @param body          the body to send
+     * @throws IOException if an error occurs while producing or writing the content
+     */
+    private void writeBody(HttpURLConnection urlConnection, RequestBody body) throws IOException {
+        urlConnection.setRequestProperty("Content-Type", body.getContentType());
+        try (OutputStream os = openContent(urlConnection, body.getContentLength(), requestCompressionThreshold)) {
+            body.writeTo(os, bufferPool);
         }
     }
 
+    /**
+     * Opens the stream of the request content body. The content is streamed with a fixed length if it is
+     * known and in chunks otherwise, so it is never held in memory. Content of unknown length, or at least
+     * as long as the compression threshold, is gzip compressed as it is written and sent in chunks.
+     *
+     * @param urlConnection        the connection to write to
+     * @param contentLength        the length of the content, or -1 if unknown
+     * @param compressionThreshold the smallest content to compress, or -1 to never compress
+     * @return the stream to write the content to, which must be closed to finish the content
+     * @throws IOException if the connection can't be opened
+     */
+    static OutputStream openContent(HttpURLConnection urlConnection, long contentLength, int compressionThreshold) throws IOException {
+        if (compresses(contentLength, compressionThreshold)) {
+            // The compressed length isn't known until the content has been written
+            urlConnection.setRequestProperty("Content-Encoding", "gzip");
+            urlConnection.setChunkedStreamingMode(CHUNK_SIZE);
+            return new GZIPOutputStream(urlConnection.getOutputStream(), CHUNK_SIZE);
+        }
+        if (contentLength >= 0) {
+            urlConnection.setRequestProperty("Content-Length", Long.toString(contentLength));
+            urlConnection.setFixedLengthStreamingMode(contentLength); // Stream the data so we don't run out of memory
+        } else {
+            urlConnection.setChunkedStreamingMode(CHUNK_SIZE);
+        }
+        return urlConnection.getOutputStream();
+    }
+
+    private static boolean compresses(long contentLength, int compressionThreshold) {
+        return compressionThreshold >= 0 && (contentLength < 0 || contentLength >= compressionThreshold);
+    }
+
     /**
      * Make a HTTP DELETE request.
      *
@@ -322,6 +718,269 @@ public abstract class HttpClient {
         this.followRedirects = followRedirects;
     }
 
+    /**
+     * Gets the pool that buffers for reading and writing request and response content are taken from.
+     *
+     * @return the buffer pool, by default the shared {@link BufferPool#getDefault()}
+     * @see #setBufferPool(BufferPool)
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Set the pool that buffers for reading and writing request and response content are taken from. The
+     * pool may be shared by several clients.
+     *
+     * @param bufferPool the buffer pool to use
+     * @see #getBufferPool()
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        if (bufferPool == null) throw new IllegalArgumentException("bufferPool must not be null");
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Gets whether compressed responses are asked for and decompressed before they reach the handler.
+     *
+     * @return <code>true</code> if responses are decompressed, <code>false</code> otherwise
+     * @see #setDecompressResponses(boolean)
+     */
+    public boolean getDecompressResponses() {
+        return decompressResponses;
+    }
+
+    /**
+     * Set whether to ask for gzip or deflate compressed responses with an <code>Accept-Encoding</code>
+     * header. Compressed content is decompressed as it is read, so handlers always see the original content
+     * and {@link HttpResponseHandler#onProgressChanged(long, long)} counts decompressed bytes. Enabled by
+     * default.
+     *
+     * @param decompressResponses <code>true</code> to decompress responses, <code>false</code> to receive them as sent
+     * @see #getDecompressResponses()
+     */
+    public void setDecompressResponses(boolean decompressResponses) {
+        this.decompressResponses = decompressResponses;
+    }
+
+    /**
+     * Gets the smallest request content body that is compressed.
+     *
+     * @return the compression threshold in bytes, or -1 if request content is never compressed
+     * @see #setRequestCompressionThreshold(int)
+     */
+    public int getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
+    /**
+     * Set the smallest POST or PUT content body to gzip compress, for servers that accept
+     * <code>Content-Encoding: gzip</code> requests. Form, multipart and raw bodies are compressed as they
+     * are written, and sent in chunks since the compressed length isn't known up front. Bodies of unknown
+     * length are always compressed. Disabled by default, small bodies gain little from compression.
+     *
+     * @param requestCompressionThreshold the smallest content to compress in bytes, or -1 to never compress
+     * @see #getRequestCompressionThreshold()
+     */
+    public void setRequestCompressionThreshold(int requestCompressionThreshold) {
+        this.requestCompressionThreshold = requestCompressionThreshold < 0 ? -1 : requestCompressionThreshold;
+    }
+
+    /**
+     * Gets the cache responses are stored in and served from.
+     *
+     * @return the cache, or <code>null</code> if responses are not cached
+     * @see #setCache(HttpCache)
+     */
+    public HttpCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Set the cache to store GET responses in and serve them from, as their <code>Cache-Control</code> and
+     * <code>Expires</code> headers allow. Cached responses are handed to the handler on the thread making the
+     * request.
+     *
+     * @param cache the cache, or <code>null</code> to stop caching responses
+     * @see #getCache()
+     */
+    public void setCache(HttpCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Gets the resolver that finds the addresses of hosts.
+     *
+     * @return the DNS resolver
+     * @see #setDnsResolver(DnsResolver)
+     */
+    public DnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
+    /**
+     * Set the resolver that finds the addresses of hosts, such as a {@link CachingDnsResolver} with its own
+     * time to live. It is used by requests performed on an {@link HttpEngine}, which opens its own
+     * connections. Requests performed with {@link HttpURLConnection} always resolve hosts through the JVM,
+     * which offers no way to replace its resolver for a single connection.
+     *
+     * @param dnsResolver the DNS resolver, {@link DnsResolver#SYSTEM} by default
+     * @see #getDnsResolver()
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        if (dnsResolver == null) throw new IllegalArgumentException("dnsResolver must not be null");
+        this.dnsResolver = dnsResolver;
+    }
+
+    /**
+     * Gets the policy deciding which failed requests are made again.
+     *
+     * @return the retry policy, or <code>null</code> if requests are not retried
+     * @see #setRetryPolicy(RetryPolicy)
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Set the policy deciding which failed requests are made again, and how long to wait first. The handler
+     * only hears of the last attempt. Requests served from the cache are never retried.
+     *
+     * @param retryPolicy the retry policy, or <code>null</code> to report every failure straight away
+     * @see #getRetryPolicy()
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Gets the circuit breaker that stops requests to failing hosts.
+     *
+     * @return the circuit breaker, or <code>null</code> if requests are always made
+     * @see #setCircuitBreaker(CircuitBreaker)
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Set the circuit breaker that stops requests to failing hosts. While a host's circuit is open, requests
+     * to it fail straight away on the calling thread with a {@link CircuitBreakerOpenException}, before they
+     * are queued. Every attempt of a retried or hedged request is counted.
+     *
+     * @param circuitBreaker the circuit breaker, or <code>null</code> to always make requests
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Gets the metrics the client records its requests in.
+     *
+     * @return the metrics, or <code>null</code> if none are kept
+     * @see #setMetrics(HttpMetrics)
+     */
+    public HttpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set the metrics to record every attempt at a request in: the number of requests, bytes and errors,
+     * and the latency of each response. Without an engine, the bytes are counted as the handler reads them,
+     * through a connection that passes everything else on to the real one; it isn't an
+     * <code>HttpsURLConnection</code>.
+     *
+     * @param metrics the metrics, or <code>null</code> to keep none
+     */
+    public void setMetrics(HttpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the rate limiter every request is subject to.
+     *
+     * @return the rate limiter, or <code>null</code> if there is none
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Set the rate limiter every request is subject to. Each attempt of a retried or hedged request takes
+     * a permit. Requests are also subject to their host's rate limiter and the one with the longest matching
+     * URL prefix, if set. A request waits for the latest of their permits; {@link AsyncHttpClient} waits
+     * without holding a worker thread, other clients block the calling thread.
+     *
+     * @param rateLimiter the rate limiter, or <code>null</code> for none
+     * @see #setHostRateLimiter(String, RateLimiter)
+     * @see #setPrefixRateLimiter(String, RateLimiter)
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Set the rate limiter requests to a host are subject to.
+     *
+     * @param host        the host, with the port if the URLs requested have one
+     * @param rateLimiter the rate limiter, or <code>null</code> to remove the host's rate limiter
+     * @see #setRateLimiter(RateLimiter)
+     */
+    public void setHostRateLimiter(String host, RateLimiter rateLimiter) {
+        if (rateLimiter == null) {
+            hostRateLimiters.remove(host.toLowerCase());
+        } else {
+            hostRateLimiters.put(host.toLowerCase(), rateLimiter);
+        }
+    }
+
+    /**
+     * Set the rate limiter requests to URLs starting with a prefix are subject to, for example
+     * <code>https://api.example.org/v1/search</code>. Only the longest matching prefix applies.
+     *
+     * @param urlPrefix   the start of the URLs, without parameters
+     * @param rateLimiter the rate limiter, or <code>null</code> to remove the prefix's rate limiter
+     * @see #setRateLimiter(RateLimiter)
+     */
+    public void setPrefixRateLimiter(String urlPrefix, RateLimiter rateLimiter) {
+        if (rateLimiter == null) {
+            prefixRateLimiters.remove(urlPrefix);
+        } else {
+            prefixRateLimiters.put(urlPrefix, rateLimiter);
+        }
+    }
+
+    /**
+     * Add a listener to be told when each phase of a request starts or ends.
+     *
+     * @param listener the event listener
+     * @see HttpEventListener
+     */
+    public synchronized void addEventListener(HttpEventListener listener) {
+        if (listener == null) throw new NullPointerException("listener");
+        HttpEventListener[] listeners = Arrays.copyOf(eventListeners, eventListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        eventListeners = listeners;
+    }
+
+    /**
+     * Remove a listener added with {@link #addEventListener(HttpEventListener)}.
+     *
+     * @param listener the event listener
+     */
+    public synchronized void removeEventListener(HttpEventListener listener) {
+        HttpEventListener[] listeners = eventListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                HttpEventListener[] remaining = new HttpEventListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, remaining, 0, i);
+                System.arraycopy(listeners, i + 1, remaining, i, remaining.length - i);
+                eventListeners = remaining;
+                return;
+            }
+        }
+    }
+
     /**
      * Set Basic HTTP Authentication credentials that will be sent with all future requests.
      *
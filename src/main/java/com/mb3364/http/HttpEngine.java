@@ -0,0 +1,74 @@
+package com.mb3364.http;
+
+import java.io.Closeable;
+import java.net.URL;
+
+/**
+ * A transport that performs requests for an {@link AsyncHttpClient} without dedicating a thread to each
+ * request. An engine reads the whole response before handing it to the handler, so requests whose handler
+ * streams the content, such as a {@link StreamingHttpResponseHandler} or a file download, are performed on the client's thread
+ * pool, as are requests the engine does not support.
+ *
+ * @see NioHttpEngine
+ */
+public abstract class HttpEngine implements Closeable {
+
+    /**
+     * Check if this engine is able to perform a request for the specified URL.
+     *
+     * @param url the URL of the resource to request
+     * @return <code>true</code> if the request can be performed by this engine, <code>false</code> otherwise
+     */
+    abstract boolean supports(URL url);
+
+    /**
+     * Starts performing a request and returns immediately. The request settings, headers and content are
+     * taken from the prepared connection. Once the exchange completes the response is supplied to the
+     * connection and the handler's {@link HttpResponseHandler#processResponse(java.net.HttpURLConnection)}
+     * and {@link HttpResponseHandler#onFinish(java.net.HttpURLConnection)} callbacks are made, or
+     * {@link HttpResponseHandler#onFailure(Throwable)} if the exchange failed.
+     *
+     * @param connection the prepared connection holding the request
+     * @param handler    the response handler
+     */
+    abstract void execute(BufferedHttpURLConnection connection, HttpResponseHandler handler);
+
+    /**
+     * Delivers a completed response to the handler.
+     *
+     * @param connection the connection holding the response
+     * @param handler    the response handler
+     */
+    static void deliver(BufferedHttpURLConnection connection, HttpResponseHandler handler) {
+        HttpCall call = connection.call;
+        if (call != null) call.responseBodyComplete();
+        connection.recordResponse();
+        try {
+            handler.processResponse(connection);
+            handler.onFinish(connection);
+            if (call != null) call.callEnd();
+        } catch (RuntimeException e) {
+            // Don't let a misbehaving handler take down the thread delivering the responses
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    /**
+     * Reports a failed exchange to the handler.
+     *
+     * @param throwable  the cause of the failure
+     * @param connection the connection holding the request
+     * @param handler    the response handler
+     */
+    static void fail(Throwable throwable, BufferedHttpURLConnection connection, HttpResponseHandler handler) {
+        if (connection.call != null) connection.call.callFailed(throwable);
+        if (connection.metrics != null) connection.metrics.recordFailure();
+        try {
+            handler.onFailure(throwable);
+        } catch (RuntimeException e) {
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.mb3364.http;
+
+/**
+ * Told when each phase of a request starts or ends, to find out where the time goes. Add one to a client
+ * with {@link HttpClient#addEventListener(HttpEventListener)} and override the callbacks of interest.
+ * <p>
+ * Every attempt at a request, including each retry and hedge, is a separate {@link HttpCall}. Each callback
+ * is given the call and the {@link System#nanoTime()} at which the event happened, so phases are timed by
+ * subtracting one event's time from another's. Callbacks are made on whichever thread is performing the
+ * request, often an event loop, so they must be quick and must not block.
+ * </p>
+ * <p>
+ * Requests performed with <code>HttpURLConnection</code>, without an {@link HttpEngine}, only report
+ * {@link #callStart}, {@link #queued}, {@link #dequeued}, {@link #responseHeadersReceived},
+ * {@link #responseBodyComplete}, {@link #callEnd} and {@link #callFailed}: the connection doesn't say when it
+ * looks up the host, connects, completes a TLS handshake or sends the request, or whether it reused a kept
+ * alive connection. The time to the response headers covers all of them. Use an engine to time them separately.
+ * </p>
+ * Example:
+ * <pre>
+ * client.addEventListener(new HttpEventListener() {
+ *     &#064;Override
+ *     public void connectEnd(HttpCall call, long nanoTime) {
+ *         // ...
+ *     }
+ * });
+ * </pre>
+ */
+public abstract class HttpEventListener {
+
+    /**
+     * Called when an attempt at a request begins, before it is handed to a worker or engine.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void callStart(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called when the request is handed to the thread pool or engine, where it may wait.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void queued(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called when a worker thread starts performing the request, or an engine gives it a connection.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void dequeued(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called before the host's address is looked up.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void dnsStart(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called once the host's address has been looked up, or the lookup failed.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void dnsEnd(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called before connecting to the host. Not called when a pooled connection is reused.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void connectStart(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called once connected to the host.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void connectEnd(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called once the TLS handshake of an <code>https</code> request has completed.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void secureConnectEnd(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called once the request line and headers have been sent.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void requestHeadersSent(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called once the whole request, including any content, has been sent.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void requestBodySent(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called once the response status line and headers have been received.
+     *
+     * @param call       the attempt
+     * @param statusCode the HTTP status code of the response
+     * @param nanoTime   the time of the event, from {@link System#nanoTime()}
+     */
+    public void responseHeadersReceived(HttpCall call, int statusCode, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called once the whole response content has been received. Engines read the content before handing
+     * the response to the handler; with <code>HttpURLConnection</code> the handler reads it, so this is
+     * called once the handler has processed the response.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void responseBodyComplete(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called when the attempt has completed and the handler has finished with the response.
+     *
+     * @param call     the attempt
+     * @param nanoTime the time of the event, from {@link System#nanoTime()}
+     */
+    public void callEnd(HttpCall call, long nanoTime) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called when the attempt failed before a response was handed to the handler.
+     *
+     * @param call      the attempt
+     * @param throwable the cause of the failure
+     * @param nanoTime  the time of the event, from {@link System#nanoTime()}
+     */
+    public void callFailed(HttpCall call, Throwable throwable, long nanoTime) {
+        // Do nothing by default
+    }
+}
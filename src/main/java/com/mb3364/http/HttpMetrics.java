@@ -0,0 +1,422 @@
+package com.mb3364.http;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts the requests a client makes, the bytes it sends and receives and its errors, and keeps
+ * {@link LatencyHistogram}s of response times for all requests, per host and per method. Set it on a client
+ * with {@link HttpClient#setMetrics(HttpMetrics)}; clients sharing it are counted together.
+ * <p>
+ * Every attempt at a request is counted once it completes, including each retry and hedge. The latency is
+ * the time from the attempt being handed to a worker or engine until its response has been received. With
+ * <code>HttpURLConnection</code> the handler reads the response content, so the latency includes reading it.
+ * Failed attempts are counted, but their latency is not recorded.
+ * </p>
+ * <p>
+ * Recording takes no locks and allocates nothing once a host has been seen, so metrics can be kept on every
+ * request. Read them with {@link #getSnapshot()}, the getters, or over JMX once {@link #register(String)}
+ * has been called.
+ * </p>
+ * Example:
+ * <pre>
+ * HttpMetrics metrics = new HttpMetrics();
+ * metrics.register("api-client"); // com.mb3364.http:type=HttpMetrics,name=api-client
+ * client.setMetrics(metrics);
+ * </pre>
+ */
+public class HttpMetrics implements HttpMetricsMBean {
+
+    private static final HttpRequestMethod[] METHODS = HttpRequestMethod.values();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLongArray responses = new AtomicLongArray(6); // by status class, 1xx to 5xx
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram[] methodLatency = new LatencyHistogram[METHODS.length];
+    private final ConcurrentMap<String, LatencyHistogram> hostLatency = new ConcurrentHashMap<>();
+    private volatile int maxHosts = 100;
+
+    private volatile ObjectName objectName; // null while not registered
+
+    public HttpMetrics() {
+        for (int i = 0; i < methodLatency.length; i++) {
+            methodLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records a response.
+     *
+     * @param method        the method of the request
+     * @param url           the URL that answered
+     * @param statusCode    the status code of the response
+     * @param bytesSent     the number of bytes of request content sent
+     * @param bytesReceived the number of bytes of response content received
+     * @param nanos         the time taken in nanoseconds
+     */
+    void record(HttpRequestMethod method, URL url, int statusCode, long bytesSent, long bytesReceived, long nanos) {
+        requests.incrementAndGet();
+        int statusClass = statusCode / 100;
+        if (statusClass >= 1 && statusClass <= 5) responses.incrementAndGet(statusClass);
+        if (bytesSent > 0) this.bytesSent.addAndGet(bytesSent);
+        if (bytesReceived > 0) this.bytesReceived.addAndGet(bytesReceived);
+
+        latency.record(nanos);
+        methodLatency[method.ordinal()].record(nanos);
+        LatencyHistogram host = hostLatency(url);
+        if (host != null) host.record(nanos);
+    }
+
+    /* Records an attempt that failed before a response was received */
+    void recordFailure() {
+        requests.incrementAndGet();
+        failures.incrementAndGet();
+    }
+
+    private LatencyHistogram hostLatency(URL url) {
+        String authority = url.getAuthority();
+        if (authority == null) return null;
+        String host = authority.toLowerCase(); // the same string unless there are capitals
+        LatencyHistogram histogram = hostLatency.get(host);
+        if (histogram != null || hostLatency.size() >= maxHosts) return histogram;
+        histogram = new LatencyHistogram();
+        LatencyHistogram existing = hostLatency.putIfAbsent(host, histogram);
+        return existing != null ? existing : histogram;
+    }
+
+    /**
+     * Set the most hosts latencies are kept for, which bounds the memory used at about 11 KB a host. Requests
+     * to further hosts are still counted in the other metrics.
+     *
+     * @param maxHosts the most hosts, 100 by default
+     */
+    public void setMaxHosts(int maxHosts) {
+        if (maxHosts < 0) throw new IllegalArgumentException("maxHosts must not be negative");
+        this.maxHosts = maxHosts;
+    }
+
+    /**
+     * Get the number of attempts completed, with a response or a failure.
+     *
+     * @return the number of requests
+     */
+    @Override
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of attempts that failed before a response was received, such as by a timeout or a
+     * refused connection.
+     *
+     * @return the number of failures
+     */
+    @Override
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Get the number of errors: failures, and responses with a <code>4xx</code> or <code>5xx</code> status.
+     *
+     * @return the number of errors
+     */
+    @Override
+    public long getErrorCount() {
+        return failures.get() + responses.get(4) + responses.get(5);
+    }
+
+    /**
+     * Get the number of responses with a status code in a class.
+     *
+     * @param statusClass the first digit of the status codes, 2 for <code>2xx</code>
+     * @return the number of responses
+     */
+    public long getResponseCount(int statusClass) {
+        if (statusClass < 1 || statusClass > 5) throw new IllegalArgumentException("statusClass must be from 1 to 5");
+        return responses.get(statusClass);
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return responses.get(2);
+    }
+
+    @Override
+    public long getRedirectCount() {
+        return responses.get(3);
+    }
+
+    @Override
+    public long getClientErrorCount() {
+        return responses.get(4);
+    }
+
+    @Override
+    public long getServerErrorCount() {
+        return responses.get(5);
+    }
+
+    /**
+     * Get the number of bytes of request content sent, after compression.
+     *
+     * @return the number of bytes sent
+     */
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * Get the number of bytes of response content received, before decompression. With
+     * <code>HttpURLConnection</code>, only the content the handler reads is counted.
+     *
+     * @return the number of bytes received
+     */
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Get the latencies of all responses.
+     *
+     * @return the latency histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Get the latencies of responses to requests with a method.
+     *
+     * @param method the {@link HttpRequestMethod}
+     * @return the latency histogram
+     */
+    public LatencyHistogram getLatency(HttpRequestMethod method) {
+        return methodLatency[method.ordinal()];
+    }
+
+    /**
+     * Get the latencies of responses from a host.
+     *
+     * @param host the host and port, if not the default, such as <code>api.example.org:8080</code>
+     * @return the latency histogram, or <code>null</code> if no latencies are kept for the host
+     */
+    public LatencyHistogram getLatency(String host) {
+        return hostLatency.get(host.toLowerCase());
+    }
+
+    @Override
+    public double getLatencyMean() {
+        return latency.getSnapshot().getMean() / 1e6;
+    }
+
+    @Override
+    public double getLatencyMedian() {
+        return latency.getSnapshot().getValueAtPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getLatency90thPercentile() {
+        return latency.getSnapshot().getValueAtPercentile(90) / 1e6;
+    }
+
+    @Override
+    public double getLatency99thPercentile() {
+        return latency.getSnapshot().getValueAtPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getLatency999thPercentile() {
+        return latency.getSnapshot().getValueAtPercentile(99.9) / 1e6;
+    }
+
+    @Override
+    public double getLatencyMax() {
+        return latency.getSnapshot().getMax() / 1e6;
+    }
+
+    /**
+     * Get the hosts latencies are kept for.
+     *
+     * @return the hosts, in order
+     */
+    @Override
+    public String[] getHosts() {
+        return new TreeMap<>(hostLatency).keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Get a percentile of the latencies of responses from a host.
+     *
+     * @param host       the host and port, if not the default
+     * @param percentile the percentage, from 0 to 100
+     * @return the latency in milliseconds, or 0 if no latencies are kept for the host
+     */
+    @Override
+    public double getHostLatencyPercentile(String host, double percentile) {
+        LatencyHistogram histogram = getLatency(host);
+        return histogram == null ? 0 : histogram.getSnapshot().getValueAtPercentile(percentile) / 1e6;
+    }
+
+    /**
+     * Copies all of the metrics as they are now, to be published elsewhere.
+     *
+     * @return the snapshot
+     */
+    public Snapshot getSnapshot() {
+        Map<HttpRequestMethod, LatencyHistogram.Snapshot> byMethod = new EnumMap<>(HttpRequestMethod.class);
+        for (HttpRequestMethod method : METHODS) {
+            LatencyHistogram.Snapshot snapshot = methodLatency[method.ordinal()].getSnapshot();
+            if (snapshot.getCount() > 0) byMethod.put(method, snapshot);
+        }
+        Map<String, LatencyHistogram.Snapshot> byHost = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> host : hostLatency.entrySet()) {
+            byHost.put(host.getKey(), host.getValue().getSnapshot());
+        }
+        long[] responseCounts = new long[responses.length()];
+        for (int i = 0; i < responseCounts.length; i++) {
+            responseCounts[i] = responses.get(i);
+        }
+        return new Snapshot(requests.get(), failures.get(), responseCounts, bytesSent.get(), bytesReceived.get(),
+                latency.getSnapshot(), byMethod, byHost);
+    }
+
+    /**
+     * Sets every metric back to zero and forgets the hosts.
+     */
+    @Override
+    public void reset() {
+        requests.set(0);
+        failures.set(0);
+        for (int i = 0; i < responses.length(); i++) responses.set(i, 0);
+        bytesSent.set(0);
+        bytesReceived.set(0);
+        latency.reset();
+        for (LatencyHistogram histogram : methodLatency) histogram.reset();
+        hostLatency.clear();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as
+     * <code>com.mb3364.http:type=HttpMetrics,name=<i>name</i></code>.
+     *
+     * @param name the name that tells these metrics apart from others
+     * @throws JMException if the name is taken or the metrics can't be registered
+     */
+    public synchronized void register(String name) throws JMException {
+        if (objectName != null) throw new IllegalStateException("Metrics are already registered as " + objectName);
+        ObjectName objectName = new ObjectName("com.mb3364.http:type=HttpMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server, if they were registered.
+     *
+     * @throws JMException if the metrics can't be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (objectName == null) return;
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        objectName = null;
+    }
+
+    /**
+     * The metrics of an {@link HttpMetrics} at one moment. Latencies are in nanoseconds.
+     */
+    public static final class Snapshot {
+
+        private final long requestCount;
+        private final long failureCount;
+        private final long[] responseCounts;
+        private final long bytesSent;
+        private final long bytesReceived;
+        private final LatencyHistogram.Snapshot latency;
+        private final Map<HttpRequestMethod, LatencyHistogram.Snapshot> methodLatency;
+        private final Map<String, LatencyHistogram.Snapshot> hostLatency;
+
+        private Snapshot(long requestCount, long failureCount, long[] responseCounts, long bytesSent,
+                         long bytesReceived, LatencyHistogram.Snapshot latency,
+                         Map<HttpRequestMethod, LatencyHistogram.Snapshot> methodLatency,
+                         Map<String, LatencyHistogram.Snapshot> hostLatency) {
+            this.requestCount = requestCount;
+            this.failureCount = failureCount;
+            this.responseCounts = responseCounts;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.latency = latency;
+            this.methodLatency = Collections.unmodifiableMap(methodLatency);
+            this.hostLatency = Collections.unmodifiableMap(hostLatency);
+        }
+
+        public long getRequestCount() {
+            return requestCount;
+        }
+
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * Get the number of responses with a status code in a class.
+         *
+         * @param statusClass the first digit of the status codes, 2 for <code>2xx</code>
+         * @return the number of responses
+         */
+        public long getResponseCount(int statusClass) {
+            if (statusClass < 1 || statusClass > 5) throw new IllegalArgumentException("statusClass must be from 1 to 5");
+            return responseCounts[statusClass];
+        }
+
+        public long getErrorCount() {
+            return failureCount + responseCounts[4] + responseCounts[5];
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        /**
+         * Get the latencies per method, for the methods that have been used.
+         *
+         * @return the latencies by method
+         */
+        public Map<HttpRequestMethod, LatencyHistogram.Snapshot> getMethodLatency() {
+            return methodLatency;
+        }
+
+        /**
+         * Get the latencies per host, for the hosts latencies are kept for.
+         *
+         * @return the latencies by host, in order of host
+         */
+        public Map<String, LatencyHistogram.Snapshot> getHostLatency() {
+            return hostLatency;
+        }
+    }
+}
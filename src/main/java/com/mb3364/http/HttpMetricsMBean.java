@@ -0,0 +1,44 @@
+package com.mb3364.http;
+
+/**
+ * The JMX management interface of {@link HttpMetrics}, registered with {@link HttpMetrics#register(String)}.
+ * Latencies are in milliseconds.
+ */
+public interface HttpMetricsMBean {
+
+    long getRequestCount();
+
+    long getFailureCount();
+
+    long getErrorCount();
+
+    long getSuccessCount();
+
+    long getRedirectCount();
+
+    long getClientErrorCount();
+
+    long getServerErrorCount();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    double getLatencyMean();
+
+    double getLatencyMedian();
+
+    double getLatency90thPercentile();
+
+    double getLatency99thPercentile();
+
+    double getLatency999thPercentile();
+
+    double getLatencyMax();
+
+    String[] getHosts();
+
+    double getHostLatencyPercentile(String host, double percentile);
+
+    void reset();
+}
@@ -1,11 +1,16 @@
 package com.mb3364.http;
 
-import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.HttpURLConnection;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * The response handler for the HTTP request. This class is meant to be used as an anonymous inner class
@@ -42,6 +47,9 @@ public abstract class HttpResponseHandler {
 
     protected static int BUFFER_SIZE = 1024 * 8; // Size of the buffer when reading data from output stream
 
+    BufferPool bufferPool; // set by the client making the request
+    boolean decompress; // set by the client making the request, true if it asked for compressed content
+
     /**
      * Called after the {@link HttpURLConnection} object is prepared, but before a connection
      * or the request is actually made. This method is meant to be overridden and is best
@@ -54,6 +62,44 @@ public abstract class HttpResponseHandler {
         // Do  nothing by default
     }
 
+    /**
+     * Called by the client just before {@link #onStart(HttpURLConnection)}, so a handler can add request
+     * headers it depends on without relying on subclasses calling <code>super.onStart()</code>.
+     *
+     * @param httpURLConnection the {@link HttpURLConnection} object that will be used for the request
+     */
+    void prepareRequest(HttpURLConnection httpURLConnection) {
+        // Nothing by default
+    }
+
+    /**
+     * Check if the request was cancelled by the client, so its failure says nothing about the server.
+     *
+     * @return <code>true</code> if the request was cancelled
+     */
+    boolean isCancelled() {
+        return false;
+    }
+
+    /**
+     * Called when the client gives up on an attempt at the request without reporting its outcome, because a
+     * callback or the client itself threw. A handler that holds on to something for the attempt lets go of it.
+     */
+    void abandon() {
+        // Nothing by default
+    }
+
+    /**
+     * Check if the handler processes the response content as it arrives instead of needing all of it at once.
+     * Engines hold the whole content in memory before handing the response over, so such requests are
+     * performed on the client's thread pool instead.
+     *
+     * @return <code>true</code> if the content is streamed
+     */
+    boolean streamsContent() {
+        return false;
+    }
+
     /**
      * Called after the request has finished and all data has been received. This method is
      * the very last callback, coming after any onSuccess() or onFailure() methods.
@@ -102,6 +148,32 @@ public abstract class HttpResponseHandler {
         // Default, do nothing.
     }
 
+    /**
+     * Called every time compressed content is received, when the server compressed the response. The
+     * content passed to the other callbacks has already been decompressed, and
+     * {@link #onProgressChanged(long, long)} counts decompressed bytes, so this is the way to track the
+     * bytes actually transferred.
+     *
+     * @param bytesReceived the number of compressed bytes that have already been received
+     * @param totalBytes the total number of compressed bytes, or -1 if unknown
+     * @see HttpClient#setDecompressResponses(boolean)
+     */
+    public void onCompressedProgressChanged(long bytesReceived, long totalBytes) {
+        // Default, do nothing.
+    }
+
+    /**
+     * Gets the pool to take buffers from when reading the response content. This is the pool of the client
+     * that made the request, or the shared default pool if the handler is used on its own.
+     *
+     * @return the buffer pool
+     * @see HttpClient#setBufferPool(BufferPool)
+     */
+    protected BufferPool getBufferPool() {
+        BufferPool pool = bufferPool;
+        return pool == null ? BufferPool.getDefault() : pool;
+    }
+
     /**
      * Reads from the response body {@link InputStream}. This method can be overridden if you need to
      * read the content in a different way.
@@ -114,16 +186,19 @@ public abstract class HttpResponseHandler {
     protected byte[] readFrom(InputStream inputStream, long length) throws IOException {
         if (inputStream == null) return new byte[0];
 
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int bytesRead;
-        while ((bytesRead = inputStream.read(buffer, 0, buffer.length)) != -1) {
-            os.write(buffer, 0, bytesRead);
-            onProgressChanged(bytesRead, length);
+        if (inputStream instanceof BufferedHttpURLConnection.ContentInputStream) {
+            // The whole body is already in memory, take it as is
+            byte[] content = ((BufferedHttpURLConnection.ContentInputStream) inputStream).takeContent();
+            onProgressChanged(content.length, length);
+            return content;
         }
-        os.flush();
-        os.close();
-        return os.toByteArray();
+
+        // Read straight into a buffer of the declared length, or into segments if the length is unknown
+        ContentBuffer content = new ContentBuffer(length);
+        while (content.readFrom(inputStream) != -1) {
+            onProgressChanged(content.size(), length);
+        }
+        return content.toByteArray();
     }
 
     /**
@@ -140,14 +215,130 @@ public abstract class HttpResponseHandler {
 
             // 'Successful' response codes will be in interval [200,300)
             if (responseCode >= 200 && responseCode < 300) {
-                byte[] responseContent = readFrom(connection.getInputStream(), contentLength);
+                InputStream inputStream = connection.getInputStream();
+                byte[] responseContent;
+                try {
+                    InputStream decoded = decode(connection, inputStream);
+                    long length = decoded == inputStream ? contentLength : -1; // decompressed length is unknown
+                    inputStream = decoded;
+                    responseContent = readFrom(inputStream, length);
+                } finally {
+                    close(inputStream);
+                }
                 onSuccess(responseCode, responseHeaders, responseContent);
             } else {
-                byte[] responseContent = readFrom(connection.getErrorStream(), contentLength);
+                InputStream errorStream = connection.getErrorStream();
+                byte[] responseContent;
+                try {
+                    InputStream decoded = decode(connection, errorStream);
+                    long length = decoded == errorStream ? contentLength : -1;
+                    errorStream = decoded;
+                    responseContent = readFrom(errorStream, length);
+                } finally {
+                    close(errorStream);
+                }
                 onFailure(responseCode, responseHeaders, responseContent);
             }
         } catch (IOException e) {
             onFailure(e);
         }
     }
+
+    /**
+     * Wraps a response body stream so the content is decompressed as it is read, if the client asked for
+     * compressed content and the server sent it gzip or deflate encoded.
+     *
+     * @param connection  the {@link HttpURLConnection} object that was used for the request
+     * @param inputStream the response body stream, may be <code>null</code>
+     * @return a stream of the decompressed content, or <code>inputStream</code> itself if it isn't compressed
+     * @throws IOException if the compressed content is malformed
+     */
+    InputStream decode(HttpURLConnection connection, InputStream inputStream) throws IOException {
+        if (!decompress || inputStream == null) return inputStream;
+        String encoding = connection.getContentEncoding();
+        if (encoding == null) return inputStream;
+        encoding = encoding.trim().toLowerCase(Locale.ROOT);
+        boolean gzip = encoding.equals("gzip") || encoding.equals("x-gzip");
+        if (!gzip && !encoding.equals("deflate")) return inputStream;
+
+        PushbackInputStream compressed = new PushbackInputStream(
+                new CompressedInputStream(inputStream, connection.getContentLength()), 2);
+        int first = compressed.read();
+        if (first == -1) return compressed; // No content, as in a HEAD response
+        int second = compressed.read();
+        if (second != -1) compressed.unread(second);
+        compressed.unread(first);
+
+        if (gzip) return new GZIPInputStream(compressed, BUFFER_SIZE);
+
+        // Deflate should be zlib wrapped, but some servers send it raw
+        boolean zlib = (first & 0x0F) == 8 && second != -1 && ((first << 8) | second) % 31 == 0;
+        final Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(compressed, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end(); // Not ended by the stream since it was passed in
+                }
+            }
+        };
+    }
+
+    /**
+     * Closes a response body stream. The body must be closed, even if it was not read to the end, so
+     * the underlying connection can be kept alive and reused.
+     *
+     * @param inputStream the stream to close, may be <code>null</code>
+     */
+    static void close(InputStream inputStream) {
+        if (inputStream == null) return;
+        try {
+            inputStream.close();
+        } catch (IOException ignored) {
+            // The connection won't be reused
+        }
+    }
+
+    /**
+     * Counts the compressed bytes as they are read and reports them to
+     * {@link #onCompressedProgressChanged(long, long)}.
+     */
+    private final class CompressedInputStream extends FilterInputStream {
+
+        private final long totalBytes;
+        private long bytesReceived;
+
+        CompressedInputStream(InputStream in, long totalBytes) {
+            super(in);
+            this.totalBytes = totalBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) received(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int bytesRead = super.read(b, off, len);
+            if (bytesRead > 0) received(bytesRead);
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) received(skipped);
+            return skipped;
+        }
+
+        private void received(long n) {
+            bytesReceived += n;
+            onCompressedProgressChanged(bytesReceived, totalBytes);
+        }
+    }
 }
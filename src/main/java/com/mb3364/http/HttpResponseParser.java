@@ -0,0 +1,254 @@
+package com.mb3364.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental HTTP/1.1 response parser. Bytes are fed in as they arrive from a non-blocking socket and
+ * the parser reports when a complete response, including a fixed length, chunked or close-delimited
+ * body, has been read.
+ */
+class HttpResponseParser {
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private enum State {
+        STATUS_LINE, HEADERS, BODY_FIXED, BODY_UNTIL_CLOSE, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS, DONE
+    }
+
+    private final boolean headRequest;
+
+    private State state = State.STATUS_LINE;
+    private final StringBuilder line = new StringBuilder();
+
+    private int statusCode;
+    private String reasonPhrase;
+    private final List<Map.Entry<String, String>> headers = new ArrayList<>();
+    private ContentBuffer content;
+    private long remaining; // bytes left in the current fixed length body or chunk
+    private boolean keepAlive;
+
+    /**
+     * @param headRequest <code>true</code> if the request was a HEAD request and the response has no body
+     */
+    HttpResponseParser(boolean headRequest) {
+        this.headRequest = headRequest;
+    }
+
+    /**
+     * Consume bytes from the buffer.
+     *
+     * @param buffer the bytes received, ready to be read
+     * @return <code>true</code> once the complete response has been read
+     * @throws IOException if the response is malformed
+     */
+    boolean feed(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && state != State.DONE) {
+            switch (state) {
+                case BODY_FIXED:
+                case CHUNK_DATA: {
+                    int n = (int) Math.min(remaining, buffer.remaining());
+                    copy(buffer, n);
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = state == State.BODY_FIXED ? State.DONE : State.CHUNK_DATA_END;
+                    }
+                    break;
+                }
+                case BODY_UNTIL_CLOSE:
+                    copy(buffer, buffer.remaining());
+                    break;
+                default:
+                    if (readLine(buffer)) {
+                        onLine(line.toString());
+                        line.setLength(0);
+                    }
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Signal that the server closed the connection.
+     *
+     * @throws IOException if the response was not complete
+     */
+    void finish() throws IOException {
+        if (state == State.BODY_UNTIL_CLOSE) {
+            state = State.DONE;
+            keepAlive = false;
+        } else if (state != State.DONE) {
+            throw new EOFException("Connection closed before the response was complete");
+        }
+    }
+
+    boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /* Whether the final status line and headers have been parsed */
+    boolean hasHeaders() {
+        return state != State.STATUS_LINE && state != State.HEADERS;
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    List<Map.Entry<String, String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Get the last value of a response header.
+     *
+     * @param name the case-insensitive header name
+     * @return the header value, or <code>null</code> if not present
+     */
+    String getHeader(String name) {
+        String value = null;
+        for (Map.Entry<String, String> header : headers) {
+            if (header.getKey().equalsIgnoreCase(name)) value = header.getValue();
+        }
+        return value;
+    }
+
+    byte[] getContent() {
+        return content == null ? new byte[0] : content.toByteArray();
+    }
+
+    /**
+     * Check if the connection may be reused for another request once this response is complete.
+     *
+     * @return <code>true</code> if the connection can be kept alive
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    private void copy(ByteBuffer buffer, int n) {
+        content.write(buffer, n);
+    }
+
+    private boolean readLine(ByteBuffer buffer) throws ProtocolException {
+        while (buffer.hasRemaining()) {
+            char c = (char) (buffer.get() & 0xFF);
+            if (c == '\n') {
+                int last = line.length() - 1;
+                if (last >= 0 && line.charAt(last) == '\r') line.setLength(last);
+                return true;
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Response line too long");
+            }
+            line.append(c);
+        }
+        return false;
+    }
+
+    private void onLine(String text) throws IOException {
+        switch (state) {
+            case STATUS_LINE:
+                if (text.isEmpty()) return; // tolerate stray blank lines before the status line
+                parseStatusLine(text);
+                state = State.HEADERS;
+                break;
+            case HEADERS:
+                if (text.isEmpty()) {
+                    startBody();
+                } else {
+                    int colon = text.indexOf(':');
+                    if (colon <= 0) throw new ProtocolException("Malformed response header: " + text);
+                    headers.add(new AbstractMap.SimpleImmutableEntry<>(
+                            text.substring(0, colon).trim(), text.substring(colon + 1).trim()));
+                }
+                break;
+            case CHUNK_SIZE: {
+                int extension = text.indexOf(';');
+                String size = (extension < 0 ? text : text.substring(0, extension)).trim();
+                try {
+                    remaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Malformed chunk size: " + text);
+                }
+                state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                break;
+            }
+            case CHUNK_DATA_END:
+                state = State.CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                if (text.isEmpty()) state = State.DONE;
+                break;
+            default:
+                throw new IllegalStateException(state.toString());
+        }
+    }
+
+    private void parseStatusLine(String text) throws ProtocolException {
+        // HTTP/1.1 200 OK
+        String[] parts = text.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new ProtocolException("Malformed status line: " + text);
+        }
+        try {
+            statusCode = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Malformed status line: " + text);
+        }
+        reasonPhrase = parts.length > 2 ? parts[2] : null;
+        keepAlive = !parts[0].equals("HTTP/1.0");
+    }
+
+    private void startBody() throws ProtocolException {
+        // Informational responses are followed by the real response
+        if (statusCode >= 100 && statusCode < 200) {
+            headers.clear();
+            state = State.STATUS_LINE;
+            return;
+        }
+
+        String connection = getHeader("Connection");
+        if (connection != null) {
+            if (connection.equalsIgnoreCase("close")) keepAlive = false;
+            else if (connection.equalsIgnoreCase("keep-alive")) keepAlive = true;
+        }
+
+        if (headRequest || statusCode == HttpStatusCodes.NO_CONTENT || statusCode == HttpStatusCodes.NOT_MODIFIED) {
+            state = State.DONE;
+            return;
+        }
+
+        String transferEncoding = getHeader("Transfer-Encoding");
+        String contentLength = getHeader("Content-Length");
+        if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            content = new ContentBuffer(-1);
+            state = State.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Malformed Content-Length: " + contentLength);
+            }
+            if (remaining < 0 || remaining > Integer.MAX_VALUE) {
+                throw new ProtocolException("Unsupported Content-Length: " + contentLength);
+            }
+            content = new ContentBuffer(remaining);
+            state = remaining == 0 ? State.DONE : State.BODY_FIXED;
+        } else {
+            content = new ContentBuffer(-1);
+            keepAlive = false;
+            state = State.BODY_UNTIL_CLOSE;
+        }
+    }
+}
@@ -32,9 +32,11 @@ public final class HttpStatusCodes {
     public static final int PAYMENT_REQUIRED = 402;
     public static final int PRECON_FAILED = 412;
     public static final int PROXY_AUTH = 407;
+    public static final int RANGE_NOT_SATISFIABLE = 416;
     public static final int REQ_TOO_LONG = 414;
     public static final int RESET = 205;
     public static final int SEE_OTHER = 303;
+    public static final int TOO_MANY_REQUESTS = 429;
     public static final int UNAUTHORIZED = 401;
     public static final int UNAVAILABLE = 503;
     public static final int UNSUPPORTED_TYPE = 415;
@@ -0,0 +1,171 @@
+package com.mb3364.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of request latencies in a fixed amount of memory. Latencies are counted in buckets whose width
+ * grows with the latency, like an HdrHistogram: every power of two is split into 32 buckets, so a percentile
+ * is accurate to about 3% from a nanosecond up to about 19 hours. Longer latencies are counted in the last
+ * bucket.
+ * <p>
+ * Recording only increments counters, without locking or allocating, so it can be done on every request.
+ * Read the histogram with {@link #getSnapshot()}.
+ * </p>
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // per power of two
+    private static final int MAX_EXPONENT = 45; // 2^46 nanoseconds is about 19.5 hours
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong(); // sum of the latencies, for the mean
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram() {
+    }
+
+    /**
+     * Counts a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(indexOf(nanos));
+        total.addAndGet(nanos);
+        long current;
+        while (nanos < (current = min.get()) && !min.compareAndSet(current, nanos)) {
+            // Lost a race, try again
+        }
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // Lost a race, try again
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    /* Values below SUB_BUCKETS have a bucket each, above that each power of two is split into SUB_BUCKETS */
+    private static int indexOf(long nanos) {
+        if (nanos < SUB_BUCKETS) return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (nanos >>> shift);
+    }
+
+    /* The highest latency counted in a bucket */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) return index;
+        if (index == BUCKETS - 1) return Long.MAX_VALUE; // also counts everything longer
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index - shift * SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Copies the histogram as it is now. Latencies recorded while the copy is made may be left out of some of
+     * its statistics.
+     *
+     * @return the snapshot
+     */
+    public Snapshot getSnapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, total.get(), count == 0 ? 0 : min.get(), max.get());
+    }
+
+    /**
+     * The latencies of a {@link LatencyHistogram} at one moment. All latencies are in nanoseconds.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long min;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long total, long min, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Get the number of latencies recorded.
+         *
+         * @return the number of latencies
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Get the lowest latency recorded.
+         *
+         * @return the lowest latency, or 0 if none were recorded
+         */
+        public long getMin() {
+            return min;
+        }
+
+        /**
+         * Get the highest latency recorded.
+         *
+         * @return the highest latency, or 0 if none were recorded
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Get the mean latency.
+         *
+         * @return the mean latency, or 0 if none were recorded
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * Get the latency that the specified percentage of latencies were at or below, accurate to about 3%.
+         *
+         * @param percentile the percentage, from 0 to 100, such as 99.9
+         * @return the latency, or 0 if none were recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.max(min, Math.min(highestValueOf(i), max));
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + (long) getMean() + "ns p50=" + getValueAtPercentile(50)
+                    + "ns p99=" + getValueAtPercentile(99) + "ns max=" + max + "ns";
+        }
+    }
+}
@@ -3,87 +3,196 @@ package com.mb3364.http;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Writes multipart HTTP data to an OutputStream. Used for uploading files and sending form data.
+ * <p>
+ * The length of the content is worked out from the part headers and file sizes before anything is
+ * written, so it is sent with a <code>Content-Length</code> rather than in chunks, unless it is compressed.
+ * </p>
  */
 public class MultipartWriter {
 
     private static final String EOL = "\r\n";
     private static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+    private static final int FILE_BUFFER_SIZE = 256 * 1024; // Fewer, larger reads of the file
 
     private OutputStream outputStream;
-    private PrintWriter writer;
+    private BufferPool bufferPool;
+    private int compressionThreshold;
 
-    private RequestParams requestParams;
     private String boundary;
-    private String charset;
+    private Charset charset;
+
+    private final List<Part> parts = new ArrayList<>();
+    private byte[] trailer;
 
     public static void write(HttpURLConnection urlConnection, RequestParams requestParams) throws IOException {
-        MultipartWriter mpw = new MultipartWriter(urlConnection, requestParams);
-        mpw.writeParts();
+        write(urlConnection, requestParams, BufferPool.getDefault());
     }
 
-    private MultipartWriter(HttpURLConnection urlConnection, RequestParams requestParams) throws IOException {
-        this.requestParams = requestParams;
-        this.outputStream = urlConnection.getOutputStream();
-        this.boundary = "===" + System.currentTimeMillis() + "===";
+    /**
+     * Writes the parameters as multipart content, taking the buffer for copying files from a pool.
+     *
+     * @param urlConnection the connection to write to
+     * @param requestParams the fields and files to send
+     * @param bufferPool    the pool to take the copy buffer from
+     * @throws IOException if an error occurs while reading a file or writing the content
+     */
+    public static void write(HttpURLConnection urlConnection, RequestParams requestParams, BufferPool bufferPool) throws IOException {
+        write(urlConnection, requestParams, bufferPool, -1);
+    }
 
-        this.charset = requestParams.getCharset().name();
-        if (!charsetSupported(this.charset)) {
-            this.charset = DEFAULT_CHARSET.name();
-        }
+    /**
+     * Writes the parameters as multipart content, gzip compressed if it is at least as long as the
+     * compression threshold.
+     *
+     * @param urlConnection        the connection to write to
+     * @param requestParams        the fields and files to send
+     * @param bufferPool           the pool to take the copy buffer from
+     * @param compressionThreshold the smallest content to compress, or -1 to never compress
+     * @throws IOException if an error occurs while reading a file or writing the content
+     */
+    static void write(HttpURLConnection urlConnection, RequestParams requestParams, BufferPool bufferPool, int compressionThreshold) throws IOException {
+        MultipartWriter mpw = new MultipartWriter(requestParams, bufferPool, compressionThreshold);
+        mpw.writeParts(urlConnection);
+    }
 
-        urlConnection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+    private MultipartWriter(RequestParams requestParams, BufferPool bufferPool, int compressionThreshold) {
+        this.bufferPool = bufferPool;
+        this.compressionThreshold = compressionThreshold;
+        this.boundary = newBoundary();
 
-        try {
-            writer = new PrintWriter(new OutputStreamWriter(outputStream, charset), true);
-        } catch (UnsupportedEncodingException ignored) {/* Will always succeed. */}
-    }
+        String charsetName = requestParams.getCharset().name();
+        this.charset = charsetSupported(charsetName) ? Charset.forName(charsetName) : DEFAULT_CHARSET;
 
-    private void writeParts() throws IOException {
-        // Write fields
-        for (ConcurrentHashMap.Entry<String, String> param : requestParams.stringEntrySet()) {
+        // Prepare every part up front, the parameters could change while they are being written
+        for (Map.Entry<String, String> param : requestParams.stringEntrySet()) {
             add(param.getKey(), param.getValue());
         }
-        for (ConcurrentHashMap.Entry<String, File> param : requestParams.fileEntrySet()) {
+        for (Map.Entry<String, File> param : requestParams.fileEntrySet()) {
             add(param.getKey(), param.getValue());
         }
+        trailer = ("--" + boundary + "--" + EOL).getBytes(charset);
+    }
+
+    /**
+     * Gets the exact length of the multipart content.
+     *
+     * @return the content length in bytes
+     */
+    private long getContentLength() {
+        long length = trailer.length;
+        for (Part part : parts) {
+            length += part.length();
+        }
+        return length;
+    }
+
+    private void writeParts(HttpURLConnection urlConnection) throws IOException {
+        // Headers must be set before the output stream connects
+        urlConnection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        this.outputStream = HttpClient.openContent(urlConnection, getContentLength(), compressionThreshold);
+
+        for (Part part : parts) {
+            outputStream.write(part.header);
+            if (part.file != null) {
+                writeFile(part.file, part.contentLength);
+            } else {
+                outputStream.write(part.content);
+            }
+            outputStream.write(EOL.getBytes(charset));
+        }
         // Finish up
-        writer.append(EOL).flush();
-        writer.append("--").append(boundary).append("--").append(EOL);
-        writer.close();
+        outputStream.write(trailer);
+        outputStream.flush();
+        outputStream.close();
     }
 
     private void add(String name, String value) {
-        writer.append("--").append(boundary).append(EOL);
-        writer.append("Content-Disposition: form-data; name=\"").append(name).append("\"").append(EOL);
-        writer.append("Content-Type: text/plain; charset=").append(charset).append(EOL);
-        writer.append(EOL);
-        writer.append(value).append(EOL);
-        writer.flush();
+        byte[] header = ("--" + boundary + EOL
+                + "Content-Disposition: form-data; name=\"" + name + "\"" + EOL
+                + "Content-Type: text/plain; charset=" + charset.name() + EOL
+                + EOL).getBytes(charset);
+        parts.add(new Part(header, value.getBytes(charset)));
     }
 
-    private void add(String name, File file) throws IOException {
+    private void add(String name, File file) {
         String fileName = file.getName();
-        writer.append("--").append(boundary).append(EOL);
-        writer.append("Content-Disposition: form-data; name=\"").append(name).append("\"; filename=\"").append(fileName).append("\"").append(EOL);
-        writer.append("Content-Type: ").append(URLConnection.guessContentTypeFromName(fileName)).append(EOL);
-        writer.append("Content-Transfer-Encoding: binary").append(EOL);
-        writer.append(EOL);
-        writer.flush();
-        // Send file
-        Files.copy(file.toPath(), outputStream);
-        outputStream.flush();
-        writer.append(EOL);
-        writer.flush();
+        String contentType = URLConnection.guessContentTypeFromName(fileName);
+        byte[] header = ("--" + boundary + EOL
+                + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + fileName + "\"" + EOL
+                + "Content-Type: " + (contentType == null ? "application/octet-stream" : contentType) + EOL
+                + "Content-Transfer-Encoding: binary" + EOL
+                + EOL).getBytes(charset);
+        parts.add(new Part(header, file));
+    }
+
+    /* Sends exactly the number of bytes counted in the content length, the file may have changed since */
+    private void writeFile(File file, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bufferPool.acquire(FILE_BUFFER_SIZE));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear();
+                if (remaining < buffer.capacity()) buffer.limit((int) remaining);
+                int bytesRead = channel.read(buffer);
+                if (bytesRead == -1) {
+                    throw new EOFException(file + " became shorter while it was being uploaded");
+                }
+                outputStream.write(buffer.array(), 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        } finally {
+            bufferPool.release(buffer.array());
+        }
+    }
+
+    /* A random boundary is very unlikely to appear in the content by chance */
+    private static String newBoundary() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return "----" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
     }
 
     private static boolean charsetSupported(String name) {
         return Charset.availableCharsets().keySet().contains(name);
     }
+
+    /**
+     * A part's encoded headers and its content, either in memory or in a file.
+     */
+    private static final class Part {
+
+        final byte[] header;
+        final byte[] content;
+        final File file;
+        final long contentLength;
+
+        Part(byte[] header, byte[] content) {
+            this.header = header;
+            this.content = content;
+            this.file = null;
+            this.contentLength = content.length;
+        }
+
+        Part(byte[] header, File file) {
+            this.header = header;
+            this.content = null;
+            this.file = file;
+            this.contentLength = file.length();
+        }
+
+        long length() {
+            return header.length + contentLength + EOL.length();
+        }
+    }
 }
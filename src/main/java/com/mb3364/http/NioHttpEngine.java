@@ -0,0 +1,789 @@
+package com.mb3364.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A non-blocking HTTP/1.1 engine built on {@link SocketChannel}s and a small, fixed number of
+ * event loop threads. Any number of requests can be in flight without tying up a thread for each one.
+ * <p>
+ * The engine handles plain <code>http</code> URLs. Requests to other URLs, such as <code>https</code>,
+ * are performed by the client's thread pool as usual, and so are requests whose handler streams the content,
+ * since the engine holds each response in memory. Callbacks are made on the event loop threads, so handlers
+ * should not block.
+ * </p>
+ * <p>
+ * Connections are kept alive and pooled per host. All requests to a host are serviced by the same event
+ * loop so that they can share its connections. The pool can be tuned with
+ * {@link #setMaxConnectionsPerHost(int)}, {@link #setIdleTimeout(int)} and {@link #setMaxConnectionLifetime(int)}.
+ * </p>
+ * <p>
+ * Host names are looked up on a few daemon threads of their own, so a slow lookup blocks neither the caller
+ * nor the event loop.
+ * </p>
+ * Example:
+ * <pre>
+ * NioHttpEngine engine = new NioHttpEngine(2); // 2 event loop threads
+ * HttpClient client = new AsyncHttpClient(engine);
+ * </pre>
+ *
+ * @see AsyncHttpClient#AsyncHttpClient(HttpEngine)
+ */
+public class NioHttpEngine extends HttpEngine {
+
+    public static final int DEFAULT_IDLE_TIMEOUT = 30000; // in milliseconds
+
+    private static final int MAX_REDIRECTS = 20; // Same limit as HttpURLConnection
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final long TIMEOUT_CHECK_INTERVAL = 100; // in milliseconds
+    private static final int RESOLVER_THREADS = 4;
+
+    private final EventLoop[] eventLoops;
+    private final ExecutorService resolver = newResolver();
+
+    private volatile int maxConnectionsPerHost = 0; // 0 for no limit
+    private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT; // in milliseconds
+    private volatile int maxConnectionLifetime = 0; // in milliseconds, 0 for no limit
+
+    private final AtomicLong poolHits = new AtomicLong();
+    private final AtomicLong poolMisses = new AtomicLong();
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    /**
+     * Create an engine with one event loop per available processor.
+     *
+     * @throws IOException if a selector could not be opened
+     */
+    public NioHttpEngine() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an engine with the specified number of event loop threads.
+     *
+     * @param eventLoopCount the number of event loop threads
+     * @throws IOException if a selector could not be opened
+     */
+    public NioHttpEngine(int eventLoopCount) throws IOException {
+        if (eventLoopCount < 1) throw new IllegalArgumentException("eventLoopCount must be at least 1");
+        eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(i);
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.thread.start();
+        }
+    }
+
+    @Override
+    boolean supports(URL url) {
+        return "http".equalsIgnoreCase(url.getProtocol());
+    }
+
+    @Override
+    void execute(BufferedHttpURLConnection connection, HttpResponseHandler handler) {
+        Exchange exchange;
+        try {
+            exchange = new Exchange(connection, handler);
+        } catch (IOException e) {
+            fail(e, connection, handler);
+            return;
+        }
+        resolve(exchange);
+    }
+
+    private static ExecutorService newResolver() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "nio-http-dns");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /* Looks up the exchange's host off the event loops, then hands the exchange to its host's event loop */
+    private void resolve(final Exchange exchange) {
+        try {
+            resolver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    HttpCall call = exchange.connection.call;
+                    if (call != null) call.dnsStart();
+                    try {
+                        exchange.address = exchange.connection.resolveAddress();
+                    } catch (IOException e) {
+                        fail(e, exchange.connection, exchange.handler);
+                        return;
+                    } finally {
+                        if (call != null) call.dnsEnd();
+                    }
+                    eventLoopFor(exchange.hostKey).submit(exchange);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            fail(new IOException("HTTP engine was closed"), exchange.connection, exchange.handler);
+        }
+    }
+
+    /* All requests to a host go to the same event loop so they share its connection pool */
+    private EventLoop eventLoopFor(String hostKey) {
+        return eventLoops[(hostKey.hashCode() & Integer.MAX_VALUE) % eventLoops.length];
+    }
+
+    /**
+     * Get the number of requests currently in flight on this engine.
+     *
+     * @return the number of requests in flight
+     */
+    public int getActiveRequestCount() {
+        int count = 0;
+        for (EventLoop eventLoop : eventLoops) {
+            count += eventLoop.active.get();
+        }
+        return count;
+    }
+
+    /**
+     * Get the maximum number of connections that are opened to a single host. Requests beyond this
+     * wait for a connection to become available.
+     *
+     * @return the maximum number of connections per host, 0 if there is no limit
+     * @see #setMaxConnectionsPerHost(int)
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * Set the maximum number of connections that are opened to a single host. Requests beyond this
+     * wait for a connection to become available. There is no limit by default.
+     *
+     * @param maxConnectionsPerHost the maximum number of connections per host, 0 for no limit
+     * @see #getMaxConnectionsPerHost()
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost < 0) throw new IllegalArgumentException("maxConnectionsPerHost must not be negative");
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * Get how long an idle connection is kept in the pool in milliseconds.
+     *
+     * @return the idle timeout in milliseconds
+     * @see #setIdleTimeout(int)
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Set how long an idle connection is kept in the pool in milliseconds. Set to 0 to close connections
+     * after each request instead of keeping them alive.
+     *
+     * @param idleTimeout the idle timeout in milliseconds
+     * @see #getIdleTimeout()
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        if (idleTimeout < 0) throw new IllegalArgumentException("idleTimeout must not be negative");
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Get the maximum time in milliseconds a connection is used for before it is closed.
+     *
+     * @return the maximum connection lifetime in milliseconds, 0 if there is no limit
+     * @see #setMaxConnectionLifetime(int)
+     */
+    public int getMaxConnectionLifetime() {
+        return maxConnectionLifetime;
+    }
+
+    /**
+     * Set the maximum time in milliseconds a connection is used for before it is closed, for example so
+     * that DNS changes are picked up. There is no limit by default.
+     *
+     * @param maxConnectionLifetime the maximum connection lifetime in milliseconds, 0 for no limit
+     * @see #getMaxConnectionLifetime()
+     */
+    public void setMaxConnectionLifetime(int maxConnectionLifetime) {
+        if (maxConnectionLifetime < 0) throw new IllegalArgumentException("maxConnectionLifetime must not be negative");
+        this.maxConnectionLifetime = maxConnectionLifetime;
+    }
+
+    /**
+     * Get the number of requests that reused a pooled connection.
+     *
+     * @return the number of pool hits
+     */
+    public long getPoolHitCount() {
+        return poolHits.get();
+    }
+
+    /**
+     * Get the number of requests that had to open a new connection.
+     *
+     * @return the number of pool misses
+     */
+    public long getPoolMissCount() {
+        return poolMisses.get();
+    }
+
+    /**
+     * Get the number of connections that are currently open, both in use and idle.
+     *
+     * @return the number of open connections
+     */
+    public int getOpenConnectionCount() {
+        return openConnections.get();
+    }
+
+    /**
+     * Stops the event loop threads and closes all connections. Requests that are still in flight fail
+     * with an {@link IOException}.
+     */
+    @Override
+    public void close() {
+        resolver.shutdown();
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.running = false;
+            eventLoop.selector.wakeup();
+        }
+    }
+
+    private static long timeoutFrom(long now, int timeout) {
+        return timeout > 0 ? now + timeout : 0;
+    }
+
+    /**
+     * A selector, the thread that services it and the connections registered with it.
+     */
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Exchange> submitted = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger active = new AtomicInteger();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Map<String, Host> hosts = new HashMap<>();
+        private volatile boolean running = true;
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "nio-http-" + index);
+            thread.setDaemon(true);
+        }
+
+        void submit(Exchange exchange) {
+            exchange.eventLoop = this;
+            active.incrementAndGet();
+            submitted.add(exchange);
+            selector.wakeup();
+            if (!running) failSubmitted();
+        }
+
+        @Override
+        public void run() {
+            long nextTimeoutCheck = System.currentTimeMillis() + TIMEOUT_CHECK_INTERVAL;
+            try {
+                while (running) {
+                    selector.select(TIMEOUT_CHECK_INTERVAL);
+
+                    Exchange exchange;
+                    while ((exchange = submitted.poll()) != null) {
+                        acquire(exchange);
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Connection) key.attachment()).handle(key);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now >= nextTimeoutCheck) {
+                        checkTimeouts(now);
+                        nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL;
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                running = false;
+            } finally {
+                shutdown();
+            }
+        }
+
+        /**
+         * Finds a connection for the exchange: an idle pooled one, a new one, or a place in line if the
+         * host is at its connection limit.
+         */
+        void acquire(Exchange exchange) {
+            if (exchange.connection.isCancelled()) {
+                exchange.fail(new InterruptedIOException("Request was cancelled"));
+                return;
+            }
+
+            Host host = hosts.get(exchange.hostKey);
+            if (host == null) {
+                host = new Host();
+                hosts.put(exchange.hostKey, host);
+            }
+
+            long now = System.currentTimeMillis();
+            Connection connection;
+            while ((connection = host.idle.pollLast()) != null) {
+                if (connection.isReusable(now)) {
+                    poolHits.incrementAndGet();
+                    connection.assign(exchange, now);
+                    return;
+                }
+                connection.close();
+            }
+
+            int max = maxConnectionsPerHost;
+            if (max > 0 && host.open >= max) {
+                exchange.deadline = timeoutFrom(now, exchange.connection.getConnectTimeout());
+                host.waiting.add(exchange);
+                return;
+            }
+
+            poolMisses.incrementAndGet();
+            try {
+                connection = new Connection(this, host, exchange.hostKey);
+            } catch (IOException e) {
+                exchange.fail(e);
+                return;
+            }
+            connection.connect(exchange, now);
+        }
+
+        /**
+         * Returns a connection to the pool once its exchange is complete, or closes it, and hands it to the
+         * next waiting exchange.
+         */
+        void release(Connection connection, boolean reusable) {
+            Host host = connection.host;
+            if (reusable && running && idleTimeout > 0 && connection.isReusable(System.currentTimeMillis())) {
+                connection.idle(System.currentTimeMillis());
+            } else {
+                connection.close();
+            }
+            Exchange next = host.waiting.poll();
+            if (next != null) acquire(next);
+        }
+
+        private void checkTimeouts(long now) {
+            // Copied because timing out an exchange may hand its host's next waiting exchange a new connection
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                ((Connection) key.attachment()).checkTimeout(now);
+            }
+            for (Iterator<Host> hostIterator = hosts.values().iterator(); hostIterator.hasNext(); ) {
+                Host host = hostIterator.next();
+                for (Iterator<Exchange> waiting = host.waiting.iterator(); waiting.hasNext(); ) {
+                    Exchange exchange = waiting.next();
+                    if (exchange.connection.isCancelled()) {
+                        waiting.remove();
+                        exchange.fail(new InterruptedIOException("Request was cancelled"));
+                    } else if (exchange.deadline != 0 && now >= exchange.deadline) {
+                        waiting.remove();
+                        exchange.fail(new SocketTimeoutException("Timed out waiting for a connection"));
+                    }
+                }
+                if (host.open == 0 && host.waiting.isEmpty()) hostIterator.remove();
+            }
+        }
+
+        private void shutdown() {
+            IOException closed = new IOException("HTTP engine was closed");
+            List<Exchange> waiting = new ArrayList<>();
+            for (Host host : hosts.values()) {
+                waiting.addAll(host.waiting);
+                host.waiting.clear();
+            }
+            for (Exchange exchange : waiting) {
+                exchange.fail(closed);
+            }
+            try {
+                for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                    Connection connection = (Connection) key.attachment();
+                    if (connection.exchange != null) {
+                        connection.exchange.fail(closed);
+                    } else {
+                        connection.close();
+                    }
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException ignored) {
+                // Closing anyway
+            }
+            failSubmitted();
+        }
+
+        private void failSubmitted() {
+            Exchange exchange;
+            while ((exchange = submitted.poll()) != null) {
+                exchange.fail(new IOException("HTTP engine was closed"));
+            }
+        }
+    }
+
+    /**
+     * The connections to a single host on an event loop.
+     */
+    private static final class Host {
+        final ArrayDeque<Connection> idle = new ArrayDeque<>(); // most recently used last
+        final ArrayDeque<Exchange> waiting = new ArrayDeque<>();
+        int open = 0;
+    }
+
+    /**
+     * A socket connection, either in use by an exchange or idle in the pool.
+     */
+    private final class Connection {
+
+        private final EventLoop eventLoop;
+        private final Host host;
+        private final String hostKey;
+        private final SocketChannel channel;
+        private final long createdAt;
+        private SelectionKey key;
+        private long idleSince;
+        private Exchange exchange;
+        private boolean reused = false;
+        private boolean closed = false;
+
+        Connection(EventLoop eventLoop, Host host, String hostKey) throws IOException {
+            this.eventLoop = eventLoop;
+            this.host = host;
+            this.hostKey = hostKey;
+            this.channel = SocketChannel.open();
+            this.createdAt = System.currentTimeMillis();
+            host.open++;
+            openConnections.incrementAndGet();
+        }
+
+        void connect(Exchange exchange, long now) {
+            this.exchange = exchange;
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                HttpCall call = exchange.connection.call;
+                if (call != null) {
+                    call.dequeued();
+                    call.connectStart();
+                }
+                if (channel.connect(exchange.address)) {
+                    if (call != null) call.connectEnd();
+                    key = channel.register(eventLoop.selector, SelectionKey.OP_WRITE, this);
+                    exchange.start(this, timeoutFrom(now, exchange.connection.getReadTimeout()));
+                } else {
+                    key = channel.register(eventLoop.selector, SelectionKey.OP_CONNECT, this);
+                    exchange.start(this, timeoutFrom(now, exchange.connection.getConnectTimeout()));
+                }
+            } catch (IOException e) {
+                this.exchange = null;
+                close();
+                exchange.fail(e);
+            }
+        }
+
+        void assign(Exchange exchange, long now) {
+            this.exchange = exchange;
+            this.reused = true;
+            if (exchange.connection.call != null) exchange.connection.call.dequeued();
+            key.interestOps(SelectionKey.OP_WRITE);
+            exchange.start(this, timeoutFrom(now, exchange.connection.getReadTimeout()));
+        }
+
+        void idle(long now) {
+            exchange = null;
+            idleSince = now;
+            // Watch for the server closing the connection while it sits in the pool
+            key.interestOps(SelectionKey.OP_READ);
+            host.idle.addLast(this);
+        }
+
+        boolean isReusable(long now) {
+            int lifetime = maxConnectionLifetime;
+            return !closed && channel.isOpen() && (lifetime == 0 || now - createdAt < lifetime)
+                    && (exchange != null || now - idleSince < idleTimeout);
+        }
+
+        void handle(SelectionKey key) {
+            if (exchange != null) {
+                exchange.handle(key);
+            } else if (key.isValid() && key.isReadable()) {
+                // An idle connection is only readable if it was closed, or the server sent something unexpected
+                host.idle.remove(this);
+                close();
+            }
+        }
+
+        void checkTimeout(long now) {
+            if (exchange != null) {
+                exchange.checkTimeout(now);
+            } else if (!isReusable(now)) {
+                host.idle.remove(this);
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            exchange = null;
+            try {
+                channel.close(); // Also cancels the selection key
+            } catch (IOException ignored) {
+                // Already done with the channel
+            }
+            host.open--;
+            openConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * A single request and response exchange, including any redirects that are followed.
+     */
+    private final class Exchange {
+
+        private final BufferedHttpURLConnection connection;
+        private final HttpResponseHandler handler;
+        private final String method;
+        private final Map<String, List<String>> requestHeaders;
+        private final ByteBuffer requestContent;
+
+        private String hostKey;
+        private InetSocketAddress address;
+        private ByteBuffer[] request; // the request line and headers, then the content, written together
+        private boolean headersSent;
+        private boolean headersReceived;
+        private HttpResponseParser parser;
+        private EventLoop eventLoop;
+        private Connection socket; // the connection the exchange is currently using
+        private boolean responseStarted;
+        private long deadline; // time at which the current connect or read times out, 0 for never
+        private int redirects = 0;
+        private boolean done = false;
+
+        Exchange(BufferedHttpURLConnection connection, HttpResponseHandler handler) throws IOException {
+            this.connection = connection;
+            this.handler = handler;
+            this.method = connection.getRequestMethod();
+            this.requestHeaders = connection.getRequestProperties();
+            this.requestContent = connection.getRequestContent();
+            connection.connect();
+            prepare();
+        }
+
+        /* Encodes the request for the connection's current URL, whose address is looked up by resolve() */
+        private void prepare() {
+            URL url = connection.getURL();
+            int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+            hostKey = url.getHost().toLowerCase() + ":" + port;
+            address = null;
+            request = new ByteBuffer[] {ByteBuffer.wrap(encodeHead(url)), requestContent.duplicate()};
+        }
+
+        private byte[] encodeHead(URL url) {
+            String path = url.getFile().isEmpty() ? "/" : url.getFile();
+            StringBuilder head = new StringBuilder(256);
+            head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(url.getHost());
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) head.append(':').append(url.getPort());
+            head.append("\r\n");
+            for (Map.Entry<String, List<String>> header : requestHeaders.entrySet()) {
+                String name = header.getKey();
+                if (name == null || name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Connection")
+                        || name.equalsIgnoreCase("Content-Length")) continue;
+                for (String value : header.getValue()) {
+                    head.append(name).append(": ").append(value).append("\r\n");
+                }
+            }
+            if (requestContent.hasRemaining() || connection.getDoOutput()) {
+                head.append("Content-Length: ").append(requestContent.remaining()).append("\r\n");
+            }
+            if (idleTimeout == 0) {
+                head.append("Connection: close\r\n");
+            }
+            head.append("\r\n");
+            return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        /* Called by the connection once it has been assigned to this exchange */
+        void start(Connection socket, long deadline) {
+            this.socket = socket;
+            this.deadline = deadline;
+            this.responseStarted = false;
+            this.headersSent = false;
+            this.headersReceived = false;
+            this.parser = new HttpResponseParser(method.equals("HEAD"));
+            request[0].rewind();
+            request[1].rewind();
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (!key.isValid()) return;
+                if (key.isConnectable()) {
+                    if (socket.channel.finishConnect()) {
+                        if (connection.call != null) connection.call.connectEnd();
+                        deadline = timeoutFrom(System.currentTimeMillis(), connection.getReadTimeout());
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                } else if (key.isWritable()) {
+                    socket.channel.write(request);
+                    HttpCall call = connection.call;
+                    if (call != null && !headersSent && !request[0].hasRemaining()) {
+                        headersSent = true;
+                        call.requestHeadersSent();
+                    }
+                    if (!request[1].hasRemaining()) {
+                        if (call != null) call.requestBodySent();
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                if (canRetry()) {
+                    retry();
+                } else {
+                    fail(e);
+                }
+            }
+        }
+
+        private void read() throws IOException {
+            ByteBuffer buffer = eventLoop.readBuffer;
+            buffer.clear();
+            int n = socket.channel.read(buffer);
+            if (n == -1) {
+                if (canRetry()) {
+                    retry();
+                    return;
+                }
+                parser.finish();
+                complete();
+                return;
+            }
+            responseStarted = true;
+            deadline = timeoutFrom(System.currentTimeMillis(), connection.getReadTimeout());
+            buffer.flip();
+            boolean complete = parser.feed(buffer);
+            if (connection.call != null && !headersReceived && parser.hasHeaders()) {
+                headersReceived = true;
+                connection.call.responseHeadersReceived(parser.getStatusCode());
+            }
+            if (complete) {
+                complete();
+            }
+        }
+
+        /*
+         * A pooled connection may have been closed by the server just as it was reused. If nothing was
+         * received yet the request never reached the server, so it is safe to try again unless it was a POST.
+         */
+        private boolean canRetry() {
+            return socket != null && socket.reused && !responseStarted && !method.equals("POST");
+        }
+
+        private void retry() {
+            Connection stale = socket;
+            socket = null;
+            eventLoop.release(stale, false);
+            eventLoop.acquire(this);
+        }
+
+        private void complete() throws IOException {
+            Connection used = socket;
+            socket = null;
+            eventLoop.release(used, parser.isKeepAlive());
+
+            int statusCode = parser.getStatusCode();
+            String location = parser.getHeader("Location");
+            if (connection.getInstanceFollowRedirects() && isRedirect(statusCode) && location != null
+                    && (method.equals("GET") || method.equals("HEAD")) && redirects < MAX_REDIRECTS) {
+                URL target;
+                try {
+                    target = new URL(connection.getURL(), location);
+                } catch (MalformedURLException e) {
+                    target = null;
+                }
+                // Like HttpURLConnection, redirects are not followed to a different protocol
+                if (target != null && target.getProtocol().equalsIgnoreCase(connection.getURL().getProtocol())) {
+                    redirects++;
+                    connection.setURL(target);
+                    prepare();
+                    // The new host is looked up off this event loop, then the exchange starts over
+                    eventLoop.active.decrementAndGet();
+                    resolve(this);
+                    return;
+                }
+            }
+
+            done = true;
+            eventLoop.active.decrementAndGet();
+            connection.setResponse(statusCode, parser.getReasonPhrase(), parser.getHeaders(), parser.getContent());
+            deliver(connection, handler);
+        }
+
+        void checkTimeout(long now) {
+            if (connection.isCancelled()) {
+                fail(new InterruptedIOException("Request was cancelled")); // Closes its connection
+            } else if (deadline != 0 && now >= deadline) {
+                boolean connecting = socket != null && socket.channel.isConnectionPending();
+                fail(new SocketTimeoutException(connecting ? "connect timed out" : "Read timed out"));
+            }
+        }
+
+        void fail(IOException e) {
+            if (done) return;
+            done = true;
+            eventLoop.active.decrementAndGet();
+            if (socket != null) {
+                Connection broken = socket;
+                socket = null;
+                eventLoop.release(broken, false);
+            }
+            HttpEngine.fail(e, connection, handler);
+        }
+    }
+
+    private static boolean isRedirect(int statusCode) {
+        return statusCode == HttpStatusCodes.MOVED_PERM || statusCode == HttpStatusCodes.MOVED_TEMP
+                || statusCode == HttpStatusCodes.SEE_OTHER || statusCode == 307 || statusCode == 308;
+    }
+}
@@ -0,0 +1,25 @@
+package com.mb3364.http;
+
+/**
+ * What an {@link AsyncHttpClient} with a bounded thread pool does with a new request when all of its
+ * workers are busy and its queue is full.
+ *
+ * @see AsyncHttpClient#AsyncHttpClient(int, int, OverflowPolicy)
+ */
+public enum OverflowPolicy {
+    /**
+     * Reject the new request. Its handler's {@link HttpResponseHandler#onFailure(Throwable)} is called
+     * with a {@link java.util.concurrent.RejectedExecutionException} on the calling thread.
+     */
+    REJECT,
+    /**
+     * Block the calling thread until there is room in the queue.
+     */
+    BLOCK,
+    /**
+     * Drop the oldest queued request to make room for the new one. The dropped request's handler's
+     * {@link HttpResponseHandler#onFailure(Throwable)} is called with a
+     * {@link java.util.concurrent.RejectedExecutionException} on the calling thread.
+     */
+    SHED_OLDEST
+}
@@ -0,0 +1,29 @@
+package com.mb3364.http;
+
+import java.io.IOException;
+
+/**
+ * Signals that a request was not made because a {@link RateLimiter} would have made it wait too long.
+ *
+ * @see RateLimiter#setMaxWait(long)
+ */
+public class RateLimitExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String url;
+
+    public RateLimitExceededException(String url) {
+        super("Rate limit exceeded for " + url);
+        this.url = url;
+    }
+
+    /**
+     * Get the URL of the request that was not made.
+     *
+     * @return the URL
+     */
+    public String getUrl() {
+        return url;
+    }
+}
@@ -0,0 +1,187 @@
+package com.mb3364.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate requests are made at, with a token bucket. The bucket holds up to <code>burst</code>
+ * permits and refills at <code>permitsPerSecond</code>; each request takes a permit, and a request that finds
+ * the bucket empty waits for the next one. Set it on a client for every request, for a host or for URLs
+ * starting with a prefix; see {@link HttpClient#setRateLimiter(RateLimiter)}.
+ * <p>
+ * Permits are taken with a single compare-and-set, without locking. An {@link AsyncHttpClient} schedules a
+ * waiting request to be sent later rather than holding a worker thread, so requests wait in the order they
+ * were made. A request that would wait longer than the maximum wait fails straight away with a
+ * {@link RateLimitExceededException}; set it to 0 to never wait.
+ * </p>
+ * Example:
+ * <pre>
+ * RateLimiter limiter = new RateLimiter(50, 10); // 50 requests a second, 10 at once
+ * limiter.setMaxWait(2000);                      // fail requests that would wait over 2 seconds
+ * client.setHostRateLimiter("api.example.org", limiter);
+ * </pre>
+ */
+public class RateLimiter {
+
+    private volatile long interval; // between permits, in nanoseconds
+    private volatile long tolerance; // how far ahead of the rate permits may be taken, in nanoseconds
+    private volatile int burst;
+    private volatile long maxWait = Long.MAX_VALUE; // in nanoseconds
+
+    // The time at which the bucket will be full again if no more permits are taken, in System.nanoTime()
+    private final AtomicLong full = new AtomicLong(System.nanoTime());
+
+    private final AtomicLong permits = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Create a rate limiter that allows one second's worth of permits at once.
+     *
+     * @param permitsPerSecond the rate requests may be made at
+     */
+    public RateLimiter(double permitsPerSecond) {
+        this(permitsPerSecond, (int) Math.max(1, Math.ceil(permitsPerSecond)));
+    }
+
+    /**
+     * Create a rate limiter.
+     *
+     * @param permitsPerSecond the rate requests may be made at
+     * @param burst            the most requests that may be made at once after a quiet period
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        setRate(permitsPerSecond, burst);
+    }
+
+    /**
+     * Takes a permit.
+     *
+     * @return the time to wait before making the request in nanoseconds, or -1 if it would wait too long,
+     * in which case no permit was taken
+     */
+    long reserve() {
+        while (true) {
+            long now = System.nanoTime();
+            long full = this.full.get();
+            long interval = this.interval;
+            long wait = full - tolerance - now;
+            if (wait <= 0) {
+                wait = 0;
+            } else if (wait > maxWait) {
+                rejected.incrementAndGet();
+                return -1;
+            }
+            long next = (full - now > 0 ? full : now) + interval;
+            if (this.full.compareAndSet(full, next)) {
+                permits.incrementAndGet();
+                if (wait > 0) delayed.incrementAndGet();
+                return wait;
+            }
+        }
+    }
+
+    /**
+     * Gives back a permit taken with {@link #reserve()} for a request that won't be made after all, such as
+     * one another limiter turned away.
+     *
+     * @param wait the time {@link #reserve()} returned
+     */
+    void unreserve(long wait) {
+        full.addAndGet(-interval);
+        permits.decrementAndGet();
+        if (wait > 0) delayed.decrementAndGet();
+    }
+
+    /**
+     * Gets the rate requests may be made at.
+     *
+     * @return the number of permits a second
+     */
+    public double getRate() {
+        return (double) TimeUnit.SECONDS.toNanos(1) / interval;
+    }
+
+    /**
+     * Gets the most requests that may be made at once after a quiet period.
+     *
+     * @return the size of the bucket
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Set the rate requests may be made at. Takes effect straight away, for requests not yet waiting.
+     *
+     * @param permitsPerSecond the number of permits a second
+     */
+    public void setRate(double permitsPerSecond) {
+        setRate(permitsPerSecond, burst);
+    }
+
+    /**
+     * Set the rate requests may be made at, and the size of the bucket. Takes effect straight away, for
+     * requests not yet waiting.
+     *
+     * @param permitsPerSecond the number of permits a second
+     * @param burst            the most requests that may be made at once after a quiet period
+     */
+    public synchronized void setRate(double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond > 0)) throw new IllegalArgumentException("permitsPerSecond must be positive");
+        if (burst < 1) throw new IllegalArgumentException("burst must be at least 1");
+        long interval = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.interval = interval;
+        this.tolerance = interval * (burst - 1);
+        this.burst = burst;
+    }
+
+    /**
+     * Gets the longest a request may wait for a permit.
+     *
+     * @return the maximum wait in milliseconds, or {@link Long#MAX_VALUE} if requests always wait
+     */
+    public long getMaxWait() {
+        long maxWait = this.maxWait;
+        return maxWait == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(maxWait);
+    }
+
+    /**
+     * Set the longest a request may wait for a permit. A request that would wait longer fails straight away
+     * with a {@link RateLimitExceededException}.
+     *
+     * @param maxWait the maximum wait in milliseconds, 0 to fail requests instead of waiting, or
+     *                {@link Long#MAX_VALUE} (the default) to always wait
+     */
+    public void setMaxWait(long maxWait) {
+        if (maxWait < 0) throw new IllegalArgumentException("maxWait must not be negative");
+        this.maxWait = maxWait == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(maxWait);
+    }
+
+    /**
+     * Get the number of permits taken.
+     *
+     * @return the number of requests let through
+     */
+    public long getPermitCount() {
+        return permits.get();
+    }
+
+    /**
+     * Get the number of requests that had to wait for their permit.
+     *
+     * @return the number of delayed requests
+     */
+    public long getDelayedCount() {
+        return delayed.get();
+    }
+
+    /**
+     * Get the number of requests failed because they would have waited too long.
+     *
+     * @return the number of rejected requests
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,254 @@
+package com.mb3364.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * The raw content body of a POST or PUT request, sent as is instead of encoded parameters. Set it with
+ * {@link RequestParams#setBody(RequestBody)}.
+ * <p>
+ * A body of known length is sent with a <code>Content-Length</code>, otherwise it is sent in chunks as it
+ * is produced. Nothing is copied into an intermediate buffer on the way, except when the request is
+ * performed by an {@link HttpEngine}, which needs the whole body before sending it.
+ * </p>
+ * Example:
+ * <pre>
+ * RequestParams params = new RequestParams();
+ * params.setBody(RequestBody.create("application/octet-stream", bytes));
+ * client.post(url, params, handler);
+ * </pre>
+ */
+public abstract class RequestBody {
+
+    public static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final String contentType;
+    private final long contentLength;
+
+    /**
+     * @param contentType   the media type of the content, or <code>null</code> for binary content
+     * @param contentLength the length of the content in bytes, or -1 if unknown
+     */
+    protected RequestBody(String contentType, long contentLength) {
+        this.contentType = contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+        this.contentLength = contentLength < 0 ? -1 : contentLength;
+    }
+
+    /**
+     * Create a body from a byte array. The array is not copied, so it must not change until the request
+     * has been sent.
+     *
+     * @param contentType the media type of the content, or <code>null</code> for binary content
+     * @param content     the content
+     * @return the body
+     */
+    public static RequestBody create(String contentType, byte[] content) {
+        return create(contentType, content, 0, content.length);
+    }
+
+    /**
+     * Create a body from part of a byte array. The array is not copied, so it must not change until the
+     * request has been sent.
+     *
+     * @param contentType the media type of the content, or <code>null</code> for binary content
+     * @param content     the array holding the content
+     * @param offset      the offset of the content in the array
+     * @param length      the length of the content
+     * @return the body
+     */
+    public static RequestBody create(String contentType, final byte[] content, final int offset, final int length) {
+        if (offset < 0 || length < 0 || offset > content.length - length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", array length " + content.length);
+        }
+        return new RequestBody(contentType, length) {
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(OutputStream outputStream) throws IOException {
+                outputStream.write(content, offset, length);
+            }
+        };
+    }
+
+    /**
+     * Create a body from the remaining bytes of a buffer. The buffer's content is not copied, and its
+     * position is left unchanged, so the body can be sent again.
+     *
+     * @param contentType the media type of the content, or <code>null</code> for binary content
+     * @param content     the buffer holding the content between its position and limit
+     * @return the body
+     */
+    public static RequestBody create(String contentType, ByteBuffer content) {
+        final ByteBuffer slice = content.slice();
+        return new RequestBody(contentType, slice.remaining()) {
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(OutputStream outputStream) throws IOException {
+                writeTo(outputStream, BufferPool.getDefault());
+            }
+
+            @Override
+            void writeTo(OutputStream outputStream, BufferPool bufferPool) throws IOException {
+                write(outputStream, slice.duplicate(), bufferPool);
+            }
+        };
+    }
+
+    /**
+     * Create a body that is read from a stream as it is sent. The stream is closed once it has been read.
+     * It can only be sent once.
+     *
+     * @param contentType   the media type of the content, or <code>null</code> for binary content
+     * @param inputStream   the stream to read the content from
+     * @param contentLength the number of bytes the stream holds, or -1 if unknown
+     * @return the body
+     */
+    public static RequestBody create(String contentType, final InputStream inputStream, long contentLength) {
+        return new RequestBody(contentType, contentLength) {
+            @Override
+            public void writeTo(OutputStream outputStream) throws IOException {
+                writeTo(outputStream, BufferPool.getDefault());
+            }
+
+            @Override
+            void writeTo(OutputStream outputStream, BufferPool bufferPool) throws IOException {
+                byte[] buffer = bufferPool.acquire(HttpResponseHandler.BUFFER_SIZE);
+                try (InputStream in = inputStream) {
+                    long remaining = getContentLength();
+                    int bytesRead;
+                    while (remaining != 0 && (bytesRead = in.read(buffer, 0, maxRead(buffer, remaining))) != -1) {
+                        outputStream.write(buffer, 0, bytesRead);
+                        if (remaining > 0) remaining -= bytesRead;
+                    }
+                    if (remaining > 0) {
+                        throw new ProtocolException("The stream ended " + remaining + " bytes short of the content length");
+                    }
+                } finally {
+                    bufferPool.release(buffer);
+                }
+            }
+        };
+    }
+
+    /**
+     * Create a body whose content is pulled from a {@link Generator} as it is sent. It can only be sent once.
+     *
+     * @param contentType   the media type of the content, or <code>null</code> for binary content
+     * @param generator     the generator producing the content
+     * @param contentLength the total number of bytes the generator produces, or -1 if unknown
+     * @return the body
+     */
+    public static RequestBody create(String contentType, final Generator generator, long contentLength) {
+        return new RequestBody(contentType, contentLength) {
+            @Override
+            public void writeTo(OutputStream outputStream) throws IOException {
+                writeTo(outputStream, BufferPool.getDefault());
+            }
+
+            @Override
+            void writeTo(OutputStream outputStream, BufferPool bufferPool) throws IOException {
+                ByteBuffer chunk;
+                while ((chunk = generator.next()) != null) {
+                    write(outputStream, chunk, bufferPool);
+                }
+            }
+        };
+    }
+
+    /**
+     * Gets the media type of the content, sent as the <code>Content-Type</code>.
+     *
+     * @return the content type, {@value #DEFAULT_CONTENT_TYPE} if none was given
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Gets the length of the content.
+     *
+     * @return the content length in bytes, or -1 if unknown and the content is sent in chunks
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Check if the body can be sent more than once, for example when a request is repeated.
+     *
+     * @return <code>true</code> if the body can be sent again, <code>false</code> if it is consumed by sending it
+     */
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    /**
+     * Writes the content to the request.
+     *
+     * @param outputStream the stream of the request content body
+     * @throws IOException if an error occurs while producing or writing the content
+     */
+    public abstract void writeTo(OutputStream outputStream) throws IOException;
+
+    /**
+     * Writes the content to the request, taking any buffer needed from the client's pool.
+     *
+     * @param outputStream the stream of the request content body
+     * @param bufferPool   the pool to take buffers from
+     * @throws IOException if an error occurs while producing or writing the content
+     */
+    void writeTo(OutputStream outputStream, BufferPool bufferPool) throws IOException {
+        writeTo(outputStream);
+    }
+
+    /* Writes the remaining bytes of the buffer, straight from its array if it has one */
+    static void write(OutputStream outputStream, ByteBuffer buffer, BufferPool bufferPool) throws IOException {
+        if (buffer.hasArray()) {
+            outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        byte[] bytes = bufferPool.acquire(HttpResponseHandler.BUFFER_SIZE);
+        try {
+            while (buffer.hasRemaining()) {
+                int n = Math.min(bytes.length, buffer.remaining());
+                buffer.get(bytes, 0, n);
+                outputStream.write(bytes, 0, n);
+            }
+        } finally {
+            bufferPool.release(bytes);
+        }
+    }
+
+    private static int maxRead(byte[] buffer, long remaining) {
+        return remaining < 0 ? buffer.length : (int) Math.min(buffer.length, remaining);
+    }
+
+    /**
+     * Produces the content of a request body piece by piece, as it is sent.
+     *
+     * @see RequestBody#create(String, Generator, long)
+     */
+    public interface Generator {
+
+        /**
+         * Produce the next piece of the content. The buffer is written out before this method is called
+         * again, so it may be reused.
+         *
+         * @return a buffer holding the next piece of content between its position and limit, or
+         *         <code>null</code> when there is no more content
+         * @throws IOException if the content can't be produced
+         */
+        ByteBuffer next() throws IOException;
+    }
+}
@@ -0,0 +1,68 @@
+package com.mb3364.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits extra requests, such as retries or hedges, to a fraction of the requests made. Every request adds
+ * <code>ratio</code> of an extra request to the budget, up to <code>burst</code> of them, and every extra
+ * request takes one. The budget is kept in thousandths of a request and taken without locking.
+ */
+final class RequestBudget {
+
+    private static final int MILLI_REQUEST = 1000;
+
+    private volatile long deposit = MILLI_REQUEST / 10; // per request
+    private volatile long capacity = 10 * MILLI_REQUEST;
+    private final AtomicLong budget = new AtomicLong(10 * MILLI_REQUEST);
+
+    private final AtomicLong taken = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    /**
+     * Set the share of requests that may be followed by an extra request, and refill the budget.
+     *
+     * @param ratio the most extra requests per request over time
+     * @param burst the most extra requests saved up, also the budget to start with
+     */
+    void set(double ratio, int burst) {
+        if (ratio < 0) throw new IllegalArgumentException("ratio must not be negative");
+        if (burst < 0) throw new IllegalArgumentException("burst must not be negative");
+        this.deposit = Math.round(ratio * MILLI_REQUEST);
+        this.capacity = (long) burst * MILLI_REQUEST;
+        this.budget.set(capacity);
+    }
+
+    /* Every request adds to the budget */
+    void requestMade() {
+        long deposit = this.deposit;
+        long capacity = this.capacity;
+        while (true) {
+            long current = budget.get();
+            if (current >= capacity) return;
+            if (budget.compareAndSet(current, Math.min(capacity, current + deposit))) return;
+        }
+    }
+
+    /* Takes an extra request from the budget */
+    boolean tryTake() {
+        while (true) {
+            long current = budget.get();
+            if (current < MILLI_REQUEST) {
+                exhausted.incrementAndGet();
+                return false;
+            }
+            if (budget.compareAndSet(current, current - MILLI_REQUEST)) {
+                taken.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    long getTakenCount() {
+        return taken.get();
+    }
+
+    long getExhaustedCount() {
+        return exhausted.get();
+    }
+}
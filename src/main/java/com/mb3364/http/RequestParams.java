@@ -12,6 +12,10 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * Parameters to send with HTTP requests. These can be {@link String}'s or {@link File}'s.
  * Other primitive types will be converted to {@link String} before being sent.
+ * <p>
+ * POST and PUT requests may send a raw {@link RequestBody} instead, in which case any {@link String}
+ * parameters are sent in the query string.
+ * </p>
  */
 public class RequestParams {
 
@@ -21,6 +25,7 @@ public class RequestParams {
     private ConcurrentHashMap<String, File> fileParams = new ConcurrentHashMap<>();
 
     private Charset charset;
+    private volatile RequestBody body;
 
     /**
      * Create an empty Request Params object.
@@ -233,6 +238,27 @@ public class RequestParams {
         return stringParams.size() + fileParams.size();
     }
 
+    /**
+     * Get the raw content body to send instead of encoded parameters.
+     *
+     * @return the body, or <code>null</code> if the parameters are sent as the content body
+     * @see #setBody(RequestBody)
+     */
+    public RequestBody getBody() {
+        return body;
+    }
+
+    /**
+     * Set a raw content body to send with POST and PUT requests instead of the encoded parameters.
+     * {@link String} parameters are then sent in the query string. A body can't be combined with
+     * {@link File} parameters.
+     *
+     * @param body the body, or <code>null</code> to send the parameters as the content body
+     */
+    public void setBody(RequestBody body) {
+        this.body = body;
+    }
+
     /**
      * Get the currently set Charset of the values in this object. If not explicitly set, UTF_8 is default.
      *
@@ -0,0 +1,231 @@
+package com.mb3364.http;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failed requests a client makes again, and how long it waits first. Set it on a client with
+ * {@link HttpClient#setRetryPolicy(RetryPolicy)}.
+ * <p>
+ * By default only idempotent requests (GET, HEAD, PUT, DELETE, OPTIONS and TRACE) are retried, after an
+ * {@link IOException} before the response arrived, or a <code>429</code>, <code>502</code>, <code>503</code>
+ * or <code>504</code> response. The wait grows exponentially with each attempt and a random part of it is
+ * skipped, so clients that failed together don't retry together. A <code>Retry-After</code> header sets the
+ * wait instead.
+ * </p>
+ * <p>
+ * Retries are limited by a budget that grows with every request made, so retries can never exceed a
+ * fraction of the traffic when a server is down, plus a small allowance for quiet periods. The budget is
+ * kept by the policy, so clients sharing a policy share its budget.
+ * </p>
+ * Example:
+ * <pre>
+ * RetryPolicy policy = new RetryPolicy();
+ * policy.setMaxRetries(5);
+ * policy.setBudget(0.1, 20); // retries at most 10% of requests, plus 20
+ * client.setRetryPolicy(policy);
+ * </pre>
+ */
+public class RetryPolicy {
+
+    private volatile int maxRetries = 3;
+    private volatile long initialBackoff = 100; // in milliseconds
+    private volatile long maxBackoff = 10000; // in milliseconds
+    private volatile double backoffMultiplier = 2;
+    private volatile long maxRetryAfter = 60000; // in milliseconds, longer waits are not retried
+    private volatile boolean retryNonIdempotent = false;
+    private volatile Set<Integer> retryStatusCodes = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(
+            HttpStatusCodes.TOO_MANY_REQUESTS, HttpStatusCodes.BAD_GATEWAY, HttpStatusCodes.UNAVAILABLE,
+            HttpStatusCodes.GATEWAY_TIMEOUT)));
+
+    private final RequestBudget budget = new RequestBudget();
+
+    /**
+     * Check if a request with the specified method may be retried.
+     *
+     * @param method the {@link HttpRequestMethod} of the request
+     * @param params the parameters of the request
+     * @return <code>true</code> if the request may be sent again
+     */
+    boolean isRetryable(HttpRequestMethod method, RequestParams params) {
+        if (method == HttpRequestMethod.POST && !retryNonIdempotent) return false;
+        RequestBody body = params == null ? null : params.getBody();
+        return body == null || body.isRepeatable();
+    }
+
+    /**
+     * Check if a failure before the response arrived is worth retrying. Connection failures, timeouts and
+     * broken connections are; an unknown host, a request that can't be made at all, an open circuit or a
+     * rate limit is not.
+     *
+     * @param throwable the cause of the failure
+     * @return <code>true</code> if the request should be retried
+     */
+    boolean isRetryable(Throwable throwable) {
+        return throwable instanceof IOException && !(throwable instanceof UnknownHostException)
+                && !(throwable instanceof ProtocolException) && !(throwable instanceof MalformedURLException)
+                && !(throwable instanceof CircuitBreakerOpenException)
+                && !(throwable instanceof RateLimitExceededException);
+    }
+
+    /**
+     * Check if a response status code is worth retrying.
+     *
+     * @param statusCode the HTTP status code of the response
+     * @return <code>true</code> if the request should be retried
+     */
+    boolean isRetryable(int statusCode) {
+        return retryStatusCodes.contains(statusCode);
+    }
+
+    /**
+     * Works out how long to wait before a retry.
+     *
+     * @param retry      the number of the retry, 1 for the first
+     * @param retryAfter the wait asked for by the server in milliseconds, or -1 if none
+     * @return the wait in milliseconds, or -1 if the request should not be retried
+     */
+    long backoff(int retry, long retryAfter) {
+        if (retryAfter >= 0) return retryAfter <= maxRetryAfter ? retryAfter : -1;
+        double backoff = initialBackoff * Math.pow(backoffMultiplier, retry - 1);
+        long cap = (long) Math.min(backoff, maxBackoff);
+        return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1); // Full jitter
+    }
+
+    /* Every request adds to the retry budget */
+    void requestMade() {
+        budget.requestMade();
+    }
+
+    /* Takes a retry from the budget */
+    boolean tryRetry() {
+        return budget.tryTake();
+    }
+
+    /**
+     * Gets the most times a request is retried.
+     *
+     * @return the maximum number of retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Set the most times a request is retried, after which the last failure is reported.
+     *
+     * @param maxRetries the maximum number of retries, 3 by default
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) throw new IllegalArgumentException("maxRetries must not be negative");
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Set the exponential backoff. The wait before retry <code>n</code> is a random time of up to
+     * <code>initialBackoff * multiplier<sup>n-1</sup></code>, capped at <code>maxBackoff</code>.
+     *
+     * @param initialBackoff the longest wait before the first retry in milliseconds, 100 by default
+     * @param maxBackoff     the longest wait before any retry in milliseconds, 10000 by default
+     * @param multiplier     how much longer each wait may be than the last, 2 by default
+     */
+    public void setBackoff(long initialBackoff, long maxBackoff, double multiplier) {
+        if (initialBackoff < 0 || maxBackoff < 0) throw new IllegalArgumentException("Backoff must not be negative");
+        if (multiplier < 1) throw new IllegalArgumentException("multiplier must be at least 1");
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.backoffMultiplier = multiplier;
+    }
+
+    /**
+     * Gets the longest <code>Retry-After</code> wait that is honoured.
+     *
+     * @return the longest wait in milliseconds
+     */
+    public long getMaxRetryAfter() {
+        return maxRetryAfter;
+    }
+
+    /**
+     * Set the longest <code>Retry-After</code> wait that is honoured. A response asking for a longer wait is
+     * reported instead of retried.
+     *
+     * @param maxRetryAfter the longest wait in milliseconds, 60000 by default
+     */
+    public void setMaxRetryAfter(long maxRetryAfter) {
+        this.maxRetryAfter = maxRetryAfter;
+    }
+
+    /**
+     * Gets whether POST requests are retried too.
+     *
+     * @return <code>true</code> if requests that aren't idempotent are retried, <code>false</code> otherwise
+     */
+    public boolean getRetryNonIdempotent() {
+        return retryNonIdempotent;
+    }
+
+    /**
+     * Set whether POST requests are retried too. Only enable this if the server tolerates receiving a
+     * request twice. Requests with a {@link RequestBody} that isn't repeatable are never retried.
+     *
+     * @param retryNonIdempotent <code>true</code> to retry requests that aren't idempotent
+     */
+    public void setRetryNonIdempotent(boolean retryNonIdempotent) {
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+
+    /**
+     * Gets the response status codes that are retried.
+     *
+     * @return the retried status codes
+     */
+    public Set<Integer> getRetryStatusCodes() {
+        return retryStatusCodes;
+    }
+
+    /**
+     * Set the response status codes that are retried.
+     *
+     * @param statusCodes the status codes, 429, 502, 503 and 504 by default
+     */
+    public void setRetryStatusCodes(Integer... statusCodes) {
+        this.retryStatusCodes = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(statusCodes)));
+    }
+
+    /**
+     * Set the retry budget. Every request adds <code>ratio</code> of a retry to the budget, up to
+     * <code>burst</code> retries, and every retry takes one. A retry that finds the budget empty is not made.
+     *
+     * @param ratio the most retries per request over time, 0.1 by default
+     * @param burst the most retries saved up, also the budget to start with, 10 by default
+     */
+    public void setBudget(double ratio, int burst) {
+        budget.set(ratio, burst);
+    }
+
+    /**
+     * Get the number of retries made.
+     *
+     * @return the number of retries
+     */
+    public long getRetryCount() {
+        return budget.getTakenCount();
+    }
+
+    /**
+     * Get the number of retries that were not made because the budget was empty.
+     *
+     * @return the number of retries denied by the budget
+     */
+    public long getBudgetExhaustedCount() {
+        return budget.getExhaustedCount();
+    }
+}
@@ -0,0 +1,107 @@
+package com.mb3364.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Makes a request again when it fails in a way its {@link RetryPolicy} retries, and hands the final
+ * response or failure to the real handler. The real handler's {@link #onStart(HttpURLConnection)} is only
+ * called for the first attempt, and the request headers it sets there are set again on every retry.
+ * {@link #onFinish(HttpURLConnection)} is only called for the attempt whose response it was given.
+ */
+final class RetryingHandler extends DelegatingHandler {
+
+    private final HttpClient client;
+    private final RetryPolicy policy;
+    private final String url;
+    private final HttpRequestMethod method;
+    private final RequestParams params;
+
+    private volatile int retries = 0;
+    private volatile Map<String, List<String>> startHeaders; // set by the real handler's onStart
+    private volatile HttpURLConnection delivered; // the connection whose response the real handler was given
+
+    RetryingHandler(HttpClient client, RetryPolicy policy, String url, HttpRequestMethod method, RequestParams params,
+                    HttpResponseHandler handler) {
+        super(handler);
+        this.client = client;
+        this.policy = policy;
+        this.url = url;
+        this.method = method;
+        this.params = params;
+    }
+
+    @Override
+    void prepareRequest(HttpURLConnection httpURLConnection) {
+        super.prepareRequest(httpURLConnection);
+        Map<String, List<String>> startHeaders = this.startHeaders;
+        if (startHeaders != null) StartedHandler.setHeaders(httpURLConnection, startHeaders);
+    }
+
+    @Override
+    public void onStart(HttpURLConnection httpURLConnection) {
+        if (retries == 0) startHeaders = StartedHandler.callOnStart(httpURLConnection, handler);
+    }
+
+    @Override
+    public void onFinish(HttpURLConnection httpURLConnection) {
+        if (httpURLConnection == delivered) handler.onFinish(httpURLConnection);
+    }
+
+    @Override
+    protected void processResponse(HttpURLConnection connection) {
+        try {
+            int responseCode = connection.getResponseCode();
+            if (policy.isRetryable(responseCode) && !handler.isCancelled()) {
+                long delay = retryDelay(retryAfter(connection));
+                if (delay >= 0) {
+                    // Discard the body of the response being retried
+                    close(responseCode < 400 ? connection.getInputStream() : connection.getErrorStream());
+                    client.retry(url, method, params, this, delay);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            onFailure(e);
+            return;
+        }
+        delivered = connection;
+        handler.processResponse(connection);
+    }
+
+    @Override
+    public void onFailure(Throwable throwable) {
+        if (policy.isRetryable(throwable) && !handler.isCancelled()) {
+            long delay = retryDelay(-1);
+            if (delay >= 0) {
+                client.retry(url, method, params, this, delay);
+                return;
+            }
+        }
+        handler.onFailure(throwable);
+    }
+
+    /* The wait before the next retry, or -1 if there is none left */
+    private long retryDelay(long retryAfter) {
+        if (retries >= policy.getMaxRetries()) return -1;
+        long delay = policy.backoff(retries + 1, retryAfter);
+        if (delay < 0 || !policy.tryRetry()) return -1;
+        retries++;
+        return delay;
+    }
+
+    /* Retry-After is either a number of seconds or a date, RFC 7231 7.1.3 */
+    private static long retryAfter(HttpURLConnection connection) {
+        String value = connection.getHeaderField("Retry-After");
+        if (value == null) return -1;
+        try {
+            long seconds = Long.parseLong(value.trim());
+            return seconds < 0 ? -1 : Math.min(seconds, Long.MAX_VALUE / 1000) * 1000;
+        } catch (NumberFormatException e) {
+            long date = connection.getHeaderFieldDate("Retry-After", -1);
+            return date < 0 ? -1 : Math.max(0, date - System.currentTimeMillis());
+        }
+    }
+}
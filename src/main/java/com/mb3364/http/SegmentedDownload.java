@@ -0,0 +1,341 @@
+package com.mb3364.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a file as several byte ranges fetched at the same time, each written straight to its offset
+ * in the file. The server is probed with a HEAD request first and if it doesn't accept byte ranges, or
+ * the file is too small to be worth splitting, the file is downloaded as a single stream instead.
+ * <p>
+ * The handler's {@link HttpResponseHandler#onStart(HttpURLConnection)} is only called for the probe. The
+ * request headers it sets are copied to the ranges. Each range is retried by the client's
+ * {@link RetryPolicy}, carrying on from the last byte written. The first range to fail for good cancels the
+ * others.
+ * </p>
+ *
+ * @see AsyncHttpClient#download(String, int, FileHttpResponseHandler)
+ */
+class SegmentedDownload {
+
+    /* Ranges smaller than this aren't worth a request of their own */
+    static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final AsyncHttpClient client;
+    private final String url;
+    private final int maxSegments;
+    private final FileHttpResponseHandler handler;
+
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final List<Segment> segments = new ArrayList<>();
+    private Map<String, List<String>> startHeaders = Collections.emptyMap(); // set by the handler's onStart
+    private FileChannel channel;
+    private long length;
+    private long received; // guarded by this
+    private String validator; // ETag or Last-Modified sent as If-Range, so all ranges come from the same file
+    private int statusCode;
+    private Map<String, List<String>> headers;
+
+    SegmentedDownload(AsyncHttpClient client, String url, int maxSegments, FileHttpResponseHandler handler) {
+        this.client = client;
+        this.url = url;
+        this.maxSegments = maxSegments;
+        this.handler = handler;
+    }
+
+    void start() {
+        client.request(url, HttpRequestMethod.HEAD, null, new Probe());
+    }
+
+    /* Falls back to downloading the file in a single stream */
+    private void single(String resourceUrl) {
+        client.request(resourceUrl, HttpRequestMethod.GET, null, new Single());
+    }
+
+    private void begin(String resourceUrl) {
+        int segments = (int) Math.min(maxSegments, length / MIN_SEGMENT_SIZE);
+        if (segments < 2) {
+            single(resourceUrl);
+            return;
+        }
+
+        try {
+            RandomAccessFile output = new RandomAccessFile(handler.getFile(), "rw");
+            channel = output.getChannel(); // closing the channel closes the file
+            output.setLength(handler.getPreallocate() ? length : 0);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+
+        long segmentSize = (length + segments - 1) / segments;
+        remaining.set(segments);
+        for (int i = 0; i < segments; i++) {
+            long first = i * segmentSize;
+            long last = Math.min(first + segmentSize, length) - 1;
+            this.segments.add(new Segment(first, last));
+        }
+        // Bypass the cache, each segment needs its own range from the server
+        for (Segment segment : this.segments) {
+            segment.outer = client.withRetries(resourceUrl, HttpRequestMethod.GET, null, segment);
+            client.dispatch(resourceUrl, HttpRequestMethod.GET, null, segment.outer);
+        }
+    }
+
+    private synchronized void progress(long bytes) {
+        received += bytes;
+        handler.onProgressChanged(received, length);
+    }
+
+    private void segmentDone(HttpURLConnection connection) {
+        if (remaining.decrementAndGet() > 0 || !finished.compareAndSet(false, true)) return;
+        try {
+            FileSyncPolicy syncPolicy = handler.getSyncPolicy();
+            if (syncPolicy != FileSyncPolicy.NONE) {
+                channel.force(syncPolicy == FileSyncPolicy.DATA_AND_METADATA);
+            }
+            channel.close();
+        } catch (IOException e) {
+            handler.onFailure(e);
+            return;
+        }
+        handler.onSuccess(statusCode, headers, handler.getFile());
+        handler.onFinish(connection);
+    }
+
+    private void fail(Throwable throwable) {
+        if (!finished.compareAndSet(false, true)) return;
+        cancel();
+        handler.onFailure(throwable);
+    }
+
+    private void fail(HttpURLConnection connection, int statusCode, Map<String, List<String>> headers) {
+        if (!finished.compareAndSet(false, true)) return;
+        cancel();
+        handler.onFailure(statusCode, headers, handler.getFile());
+        handler.onFinish(connection);
+    }
+
+    /* Stops the segments still in flight, which then fail without being retried or reported */
+    private void cancel() {
+        for (Segment segment : segments) {
+            HttpURLConnection connection = segment.connection;
+            if (connection != null) connection.disconnect();
+        }
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing more to do
+        }
+    }
+
+    /**
+     * Downloads the whole file through the handler, whose onStart was already called for the probe.
+     */
+    private class Single extends DelegatingHandler {
+
+        Single() {
+            super(SegmentedDownload.this.handler);
+        }
+
+        @Override
+        public void onStart(HttpURLConnection httpURLConnection) {
+            StartedHandler.setHeaders(httpURLConnection, startHeaders);
+        }
+    }
+
+    /**
+     * Asks for the length of the file and whether the server accepts byte ranges.
+     */
+    private class Probe extends HttpResponseHandler {
+
+        @Override
+        void prepareRequest(HttpURLConnection httpURLConnection) {
+            // The length must be that of the file itself, not of a compressed copy
+            httpURLConnection.setRequestProperty("Accept-Encoding", "identity");
+        }
+
+        @Override
+        public void onStart(HttpURLConnection httpURLConnection) {
+            startHeaders = StartedHandler.callOnStart(httpURLConnection, handler);
+        }
+
+        @Override
+        protected void processResponse(HttpURLConnection connection) {
+            try {
+                int responseCode = connection.getResponseCode();
+                String resourceUrl = connection.getURL().toString(); // after any redirects
+                if (responseCode < 200 || responseCode >= 300) {
+                    // The server may not allow HEAD, try a plain download
+                    close(connection.getErrorStream());
+                    single(resourceUrl);
+                    return;
+                }
+                close(connection.getInputStream());
+
+                statusCode = responseCode;
+                headers = connection.getHeaderFields();
+                length = connection.getContentLengthLong();
+                String etag = connection.getHeaderField("ETag");
+                // If-Range only accepts strong validators
+                validator = etag != null && !etag.startsWith("W/") ? etag : connection.getHeaderField("Last-Modified");
+
+                String acceptRanges = connection.getHeaderField("Accept-Ranges");
+                if (acceptRanges != null && acceptRanges.toLowerCase().contains("bytes") && length > 0) {
+                    begin(resourceUrl);
+                } else {
+                    single(resourceUrl);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onSuccess(int statusCode, Map<String, List<String>> headers, byte[] content) {
+            // Never called, processResponse handles the response
+        }
+
+        @Override
+        public void onFailure(int statusCode, Map<String, List<String>> headers, byte[] content) {
+            // Never called, processResponse handles the response
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            fail(throwable);
+        }
+    }
+
+    /**
+     * Fetches one byte range and writes it to its offset in the file.
+     */
+    private class Segment extends HttpResponseHandler {
+
+        private final long first; // the range still to fetch starts at position
+        private final long last;
+        private volatile long position;
+        private volatile HttpURLConnection connection; // of the current attempt
+        private HttpResponseHandler outer; // the handler the segment is requested with, which retries it
+
+        Segment(long first, long last) {
+            this.first = first;
+            this.last = last;
+            this.position = first;
+        }
+
+        /* Called for every attempt, unlike onStart, so a retry asks for the rest of the range */
+        @Override
+        void prepareRequest(HttpURLConnection httpURLConnection) {
+            connection = httpURLConnection;
+            StartedHandler.setHeaders(httpURLConnection, startHeaders);
+            httpURLConnection.setRequestProperty("Accept-Encoding", "identity"); // Ranges are of the file itself
+            httpURLConnection.setRequestProperty("Range", "bytes=" + position + "-" + last);
+            if (validator != null) httpURLConnection.setRequestProperty("If-Range", validator);
+        }
+
+        @Override
+        boolean isCancelled() {
+            return finished.get();
+        }
+
+        @Override
+        boolean streamsContent() {
+            return true; // Each range goes straight to the file, never all in memory
+        }
+
+        @Override
+        protected void processResponse(HttpURLConnection connection) {
+            try {
+                int responseCode = connection.getResponseCode();
+                if (responseCode < 200 || responseCode >= 300) {
+                    close(connection.getErrorStream());
+                    fail(connection, responseCode, connection.getHeaderFields());
+                    return;
+                }
+                if (responseCode != HttpStatusCodes.PARTIAL) {
+                    // The file changed since it was probed, or the server stopped honouring ranges
+                    close(connection.getInputStream());
+                    fail(new ProtocolException("Expected a partial response for bytes " + first + "-" + last
+                            + " but got " + responseCode));
+                    return;
+                }
+                checkContentRange(connection.getHeaderField("Content-Range"));
+
+                InputStream inputStream = connection.getInputStream();
+                try {
+                    readFrom(inputStream, last - position + 1);
+                } finally {
+                    close(inputStream);
+                }
+                segmentDone(connection);
+            } catch (IOException e) {
+                outer.onFailure(e); // Retried from the last byte written if the policy allows
+            }
+        }
+
+        private void checkContentRange(String contentRange) throws ProtocolException {
+            // Content-Range: bytes 0-499/1234
+            String expected = "bytes " + position + "-" + last + "/";
+            if (contentRange == null || !contentRange.trim().startsWith(expected)) {
+                throw new ProtocolException("Expected Content-Range " + expected + length + " but got " + contentRange);
+            }
+        }
+
+        @Override
+        protected byte[] readFrom(InputStream inputStream, long length) throws IOException {
+            long start = position;
+            BufferPool pool = getBufferPool();
+            byte[] buffer = pool.acquire(BUFFER_SIZE);
+            try {
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer, 0, buffer.length)) != -1) {
+                    if (position + bytesRead > last + 1) throw new ProtocolException("Range " + first + "-" + last + " is too long");
+                    wrapped.clear().limit(bytesRead);
+                    while (wrapped.hasRemaining()) {
+                        position += channel.write(wrapped, position);
+                    }
+                    progress(bytesRead);
+                }
+            } finally {
+                pool.release(buffer);
+            }
+            if (position != last + 1) {
+                throw new EOFException("Range " + start + "-" + last + " ended after " + (position - start) + " bytes");
+            }
+            return null;
+        }
+
+        @Override
+        public void onSuccess(int statusCode, Map<String, List<String>> headers, byte[] content) {
+            // Never called, processResponse handles the response
+        }
+
+        @Override
+        public void onFailure(int statusCode, Map<String, List<String>> headers, byte[] content) {
+            // Never called, processResponse handles the response
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            fail(throwable);
+        }
+    }
+}
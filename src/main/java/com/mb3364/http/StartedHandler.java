@@ -0,0 +1,102 @@
+package com.mb3364.http;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hands the response to a handler whose {@link #onStart(HttpURLConnection)} was already called on another
+ * connection, such as the one the cache was looked up with. Instead of calling it again, the request headers
+ * it added there are set on the connection that is actually sent.
+ */
+final class StartedHandler extends DelegatingHandler {
+
+    private final Map<String, List<String>> startHeaders; // added or changed by the handler's onStart
+
+    private StartedHandler(HttpResponseHandler handler, Map<String, List<String>> startHeaders) {
+        super(handler);
+        this.startHeaders = startHeaders;
+    }
+
+    /**
+     * Calls the handler's {@link #onStart(HttpURLConnection)} on a connection that hasn't been sent, and
+     * remembers the request headers it adds.
+     *
+     * @param connection the connection to start the request on
+     * @param handler    the response handler, already prepared on the connection
+     * @return the handler to send the request with
+     */
+    static StartedHandler start(BufferedHttpURLConnection connection, HttpResponseHandler handler) {
+        return new StartedHandler(handler, callOnStart(connection, handler));
+    }
+
+    /**
+     * Calls a handler's {@link #onStart(HttpURLConnection)} for a connection that hasn't been sent, and finds
+     * the request headers it adds so they can be set on other connections with
+     * {@link #setHeaders(HttpURLConnection, Map)}.
+     *
+     * @param connection the connection to start the request on
+     * @param handler    the response handler, already prepared on the connection
+     * @return the headers added or changed by the handler
+     */
+    static Map<String, List<String>> callOnStart(HttpURLConnection connection, HttpResponseHandler handler) {
+        HttpURLConnection started = connection;
+        if (!(connection instanceof BufferedHttpURLConnection)) {
+            // HttpURLConnection hides Authorization from getRequestProperties(), so the handler is given a
+            // connection that hides nothing and what it sets is copied over
+            started = new BufferedHttpURLConnection(connection.getURL());
+            setHeaders(started, connection.getRequestProperties());
+            started.setConnectTimeout(connection.getConnectTimeout());
+            started.setReadTimeout(connection.getReadTimeout());
+            started.setInstanceFollowRedirects(connection.getInstanceFollowRedirects());
+        }
+        Map<String, List<String>> before = started.getRequestProperties();
+        handler.onStart(started);
+        Map<String, List<String>> added = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> header : started.getRequestProperties().entrySet()) {
+            if (header.getKey() != null && !header.getValue().equals(before.get(header.getKey()))) {
+                added.put(header.getKey(), header.getValue());
+            }
+        }
+        if (started != connection) {
+            setHeaders(connection, added);
+            connection.setConnectTimeout(started.getConnectTimeout());
+            connection.setReadTimeout(started.getReadTimeout());
+            connection.setInstanceFollowRedirects(started.getInstanceFollowRedirects());
+        }
+        return added.isEmpty() ? Collections.<String, List<String>>emptyMap() : added;
+    }
+
+    /**
+     * Sets request headers on a connection, replacing any it has of the same names.
+     *
+     * @param connection the connection to set the headers on
+     * @param headers    the headers
+     */
+    static void setHeaders(HttpURLConnection connection, Map<String, List<String>> headers) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            boolean first = true;
+            for (String value : header.getValue()) {
+                if (first) {
+                    connection.setRequestProperty(header.getKey(), value);
+                    first = false;
+                } else {
+                    connection.addRequestProperty(header.getKey(), value);
+                }
+            }
+        }
+    }
+
+    @Override
+    void prepareRequest(HttpURLConnection httpURLConnection) {
+        super.prepareRequest(httpURLConnection);
+        setHeaders(httpURLConnection, startHeaders);
+    }
+
+    @Override
+    public void onStart(HttpURLConnection httpURLConnection) {
+        // Already called
+    }
+}
@@ -0,0 +1,151 @@
+package com.mb3364.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The response handler for the HTTP request when the content should be processed as it arrives rather
+ * than collected into a byte array. The content is passed to {@link #onChunk(ByteBuffer)} one buffer at a
+ * time, so memory use stays constant regardless of the response size and processing can begin as soon as
+ * the first bytes are received.
+ * <p />
+ * Example:
+ * <pre>
+ * client.get(url, params, new StreamingHttpResponseHandler() {
+ *     &#064;Override
+ *     public void onHeaders(int statusCode, Map<String, List<String>> headers) {
+ *          // Response headers were received, the content follows
+ *     }
+ *
+ *     &#064;Override
+ *     public void onChunk(ByteBuffer chunk) {
+ *          // The next part of the content. Only valid until this method returns.
+ *     }
+ *
+ *     &#064;Override
+ *     public void onComplete(int statusCode, Map<String, List<String>> headers) {
+ *          // All content was received
+ *     }
+ *
+ *     &#064;Override
+ *     public void onFailure(Throwable throwable) {
+ *          // An exception occurred during the request. Usually unable to connect or there was an error reading the response
+ *     }
+ * });
+ * </pre>
+ *
+ * @see HttpResponseHandler
+ */
+public abstract class StreamingHttpResponseHandler extends HttpResponseHandler {
+
+    /**
+     * Called when the response headers have been received, before any content. The status code may be
+     * an error code, in which case the content that follows is the error body.
+     *
+     * @param statusCode the HTTP status code of the response
+     * @param headers the HTTP response headers
+     */
+    public void onHeaders(int statusCode, Map<String, List<String>> headers) {
+        // Do nothing by default
+    }
+
+    /**
+     * Called for each part of the content body as it is read. The buffer is reused for the next chunk,
+     * so it must be consumed or copied before this method returns.
+     *
+     * @param chunk the next part of the content body, positioned for reading
+     */
+    public abstract void onChunk(ByteBuffer chunk);
+
+    /**
+     * Called when the whole content body has been read.
+     *
+     * @param statusCode the HTTP status code of the response
+     * @param headers the HTTP response headers
+     */
+    public abstract void onComplete(int statusCode, Map<String, List<String>> headers);
+
+    @Override
+    public abstract void onFailure(Throwable throwable);
+
+    /**
+     * Not called, the content is passed to {@link #onChunk(ByteBuffer)} instead.
+     */
+    @Override
+    public final void onSuccess(int statusCode, Map<String, List<String>> headers, byte[] content) {
+    }
+
+    /**
+     * Not called, the content is passed to {@link #onChunk(ByteBuffer)} instead.
+     */
+    @Override
+    public final void onFailure(int statusCode, Map<String, List<String>> headers, byte[] content) {
+    }
+
+    /**
+     * Reads the response body and passes it to {@link #onChunk(ByteBuffer)} as it arrives.
+     *
+     * @param inputStream the {@link InputStream} of the response body
+     * @param length the total length of the response body
+     * @return <code>null</code> since the content was passed on in chunks
+     * @throws IOException if an exception occurs while reading the content body
+     */
+    @Override
+    protected byte[] readFrom(InputStream inputStream, long length) throws IOException {
+        if (inputStream == null) return null;
+
+        BufferPool pool = getBufferPool();
+        byte[] buffer = pool.acquire(BUFFER_SIZE);
+        try {
+            ByteBuffer chunk = ByteBuffer.wrap(buffer);
+            long totalBytesRead = 0;
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer, 0, buffer.length)) != -1) {
+                if (bytesRead == 0) continue;
+                chunk.clear().limit(bytesRead);
+                onChunk(chunk);
+                totalBytesRead += bytesRead;
+                onProgressChanged(totalBytesRead, length);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        return null;
+    }
+
+    @Override
+    boolean streamsContent() {
+        return true;
+    }
+
+    @Override
+    protected void processResponse(HttpURLConnection connection) {
+        try {
+            int responseCode = connection.getResponseCode();
+            long contentLength = connection.getContentLength();
+            Map<String, List<String>> responseHeaders = connection.getHeaderFields();
+
+            onHeaders(responseCode, responseHeaders);
+
+            // 'Successful' response codes will be in interval [200,300)
+            InputStream inputStream = responseCode >= 200 && responseCode < 300
+                    ? connection.getInputStream()
+                    : connection.getErrorStream();
+            try {
+                InputStream decoded = decode(connection, inputStream);
+                long length = decoded == inputStream ? contentLength : -1; // decompressed length is unknown
+                inputStream = decoded;
+                readFrom(inputStream, length);
+            } finally {
+                close(inputStream);
+            }
+            onComplete(responseCode, responseHeaders);
+        } catch (IOException e) {
+            onFailure(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.mb3364.http;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+
+    @Test
+    public void reusesReleasedArrays() {
+        BufferPool pool = new BufferPool();
+        byte[] array = pool.acquire(5000);
+        assertEquals(8192, array.length);
+        pool.release(array);
+        assertSame(array, pool.acquire(6000));
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(1, pool.getReuseCount());
+    }
+
+    @Test
+    public void poolsAnArrayReleasedTwiceOnce() {
+        BufferPool pool = new BufferPool();
+        byte[] kept = pool.acquire(4096); // Kept by this thread
+        pool.release(kept);
+        pool.release(kept);
+        byte[] shared = pool.acquire(128 * 1024); // Too large to be kept by a thread
+        pool.release(shared);
+        pool.release(shared);
+        assertEquals(128 * 1024, pool.getPooledBytes());
+
+        assertSame(kept, pool.acquire(4096));
+        assertNotSame(kept, pool.acquire(4096));
+        assertSame(shared, pool.acquire(128 * 1024));
+        assertNotSame(shared, pool.acquire(128 * 1024));
+    }
+
+    @Test
+    public void poolsABufferReleasedTwiceOnce() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer first = pool.acquireBuffer(128 * 1024);
+        ByteBuffer second = pool.acquireBuffer(128 * 1024); // Equal to the first, both are all zeros
+        pool.release(first);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(2 * 128 * 1024, pool.getPooledBytes());
+        assertNotSame(pool.acquireBuffer(128 * 1024), pool.acquireBuffer(128 * 1024));
+    }
+
+    @Test
+    public void boundsTheSharedPool() {
+        BufferPool pool = new BufferPool(256 * 1024, false);
+        byte[][] arrays = new byte[4][];
+        for (int i = 0; i < arrays.length; i++) arrays[i] = pool.acquire(128 * 1024);
+        for (byte[] array : arrays) pool.release(array);
+        assertEquals(256 * 1024, pool.getPooledBytes());
+    }
+}
@@ -0,0 +1,119 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Trips circuits against a local server that fails every request.
+ */
+public class CircuitBreakerTest {
+
+    private HttpServer server;
+    private String url;
+    private String host;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        host = "127.0.0.1:" + server.getAddress().getPort();
+        url = "http://" + host + "/";
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    /* Opens after two failures and lets a single trial request through straight away */
+    private static CircuitBreaker quickBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setWindow(2, 2);
+        breaker.setOpenDuration(0);
+        breaker.setHalfOpenCalls(1);
+        return breaker;
+    }
+
+    private void assertTrialRequestIsGivenBackWhenOnStartThrows(HttpClient client) throws InterruptedException {
+        CircuitBreaker breaker = quickBreaker();
+        client.setCircuitBreaker(breaker);
+        for (int i = 0; i < 2; i++) {
+            RecordingHandler failed = new RecordingHandler();
+            client.get(url, failed);
+            assertEquals(500, failed.await().statusCode);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(host));
+
+        try {
+            client.get(url, new RecordingHandler() {
+                @Override
+                public void onStart(HttpURLConnection httpURLConnection) {
+                    throw new IllegalStateException("from onStart");
+                }
+            });
+            fail("The exception from onStart was swallowed");
+        } catch (IllegalStateException expected) {
+            assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(host));
+        }
+
+        // The trial request that threw is given back, so the next one is let through
+        RecordingHandler handler = new RecordingHandler();
+        client.get(url, handler);
+        handler.await();
+        assertNull(handler.throwable);
+        assertEquals(500, handler.statusCode);
+    }
+
+    @Test
+    public void givesBackTheTrialRequestWhenOnStartThrows() throws InterruptedException {
+        assertTrialRequestIsGivenBackWhenOnStartThrows(new SyncHttpClient());
+    }
+
+    @Test
+    public void givesBackTheTrialRequestOnTheEngineWhenOnStartThrows() throws Exception {
+        NioHttpEngine engine = new NioHttpEngine(1);
+        try {
+            assertTrialRequestIsGivenBackWhenOnStartThrows(new AsyncHttpClient(engine));
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void rejectsRequestsWhileOpen() throws InterruptedException {
+        SyncHttpClient client = new SyncHttpClient();
+        CircuitBreaker breaker = quickBreaker();
+        breaker.setOpenDuration(60000);
+        client.setCircuitBreaker(breaker);
+        for (int i = 0; i < 2; i++) {
+            RecordingHandler failed = new RecordingHandler();
+            client.get(url, failed);
+            assertEquals(500, failed.await().statusCode);
+        }
+        RecordingHandler handler = new RecordingHandler();
+        client.get(url, handler);
+        handler.await();
+        assertTrue(handler.throwable instanceof CircuitBreakerOpenException);
+        assertEquals(1, breaker.getRejectedCount());
+    }
+}
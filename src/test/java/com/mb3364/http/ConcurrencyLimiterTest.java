@@ -0,0 +1,243 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the limiter against a local server that works on a fixed number of requests at once and queues the
+ * rest, so each request takes longer the more are sent at once.
+ */
+public class ConcurrencyLimiterTest {
+
+    private static final int SERVER_CAPACITY = 10;
+    private static final long SERVER_LATENCY = 20; // in milliseconds
+    private static final int INITIAL_LIMIT = 50;
+    private static final int CALLERS = 100;
+
+    private final Semaphore capacity = new Semaphore(SERVER_CAPACITY);
+    private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+    private HttpServer server;
+    private String url;
+    private String host;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1000);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    capacity.acquire();
+                    try {
+                        Thread.sleep(SERVER_LATENCY);
+                    } finally {
+                        capacity.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = "ok".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        host = "127.0.0.1:" + server.getAddress().getPort();
+        url = "http://" + host + "/";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    public void aimdLimitConvergesTowardsServerCapacity() throws Exception {
+        assertConverges(ConcurrencyLimiter.Algorithm.AIMD);
+    }
+
+    @Test
+    public void gradientLimitConvergesTowardsServerCapacity() throws Exception {
+        assertConverges(ConcurrencyLimiter.Algorithm.GRADIENT);
+    }
+
+    private void assertConverges(ConcurrencyLimiter.Algorithm algorithm) throws Exception {
+        AsyncHttpClient client = new AsyncHttpClient();
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(algorithm);
+        limiter.setLimits(INITIAL_LIMIT, 1, 200);
+        client.setConcurrencyLimiter(limiter);
+        // The quickest round trip is measured while the server is idle
+        for (int i = 0; i < 5; i++) {
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            CountDownLatch done = new CountDownLatch(1);
+            loop(client, System.nanoTime() + 1, new AtomicInteger(), failure, done);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertNull(failure.get());
+        }
+
+        // Closed loop: each caller sends its next request when the last one completes
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(4);
+        AtomicInteger completed = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch callers = new CountDownLatch(CALLERS);
+        for (int i = 0; i < CALLERS; i++) {
+            loop(client, end, completed, failure, callers);
+        }
+        assertTrue(callers.await(30, TimeUnit.SECONDS));
+
+        assertNull(failure.get());
+        assertTrue(completed.get() > CALLERS);
+        // Over the initial limit requests only queue at the server; the limit comes down towards its capacity,
+        // allowing for the tolerated slowdown, and never below it by much
+        int limit = limiter.getLimit(host);
+        assertTrue(algorithm + " limit " + limit, limit < INITIAL_LIMIT * 0.9);
+        assertTrue(algorithm + " limit " + limit, limit >= SERVER_CAPACITY / 2);
+        assertTrue(limiter.getMinRtt(host) >= TimeUnit.MILLISECONDS.toNanos(SERVER_LATENCY));
+        assertEquals(0, limiter.getInFlight(host));
+        assertEquals(0, limiter.getQueueDepth(host));
+    }
+
+    private void loop(final AsyncHttpClient client, final long end, final AtomicInteger completed,
+                      final AtomicReference<Throwable> failure, final CountDownLatch callers) {
+        if (System.nanoTime() - end > 0) {
+            callers.countDown();
+            return;
+        }
+        client.get(url, new HttpResponseHandler() {
+            @Override
+            public void onSuccess(int statusCode, Map<String, List<String>> headers, byte[] content) {
+                completed.incrementAndGet();
+                loop(client, end, completed, failure, callers);
+            }
+
+            @Override
+            public void onFailure(int statusCode, Map<String, List<String>> headers, byte[] content) {
+                failure.compareAndSet(null, new AssertionError("HTTP " + statusCode));
+                callers.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                failure.compareAndSet(null, throwable);
+                callers.countDown();
+            }
+        });
+    }
+
+    @Test
+    public void queuedRequestsThatFailWhileSentDoNotRecurse() throws Exception {
+        // One worker and no queue: while the first request is in flight, the pool rejects every other request
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        AsyncHttpClient client = new AsyncHttpClient(pool);
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+        limiter.setLimits(1, 1, 1);
+        client.setConcurrencyLimiter(limiter);
+
+        int queued = 20000;
+        final CountDownLatch done = new CountDownLatch(queued + 1);
+        final AtomicInteger rejected = new AtomicInteger();
+        final AtomicReference<Throwable> unexpected = new AtomicReference<>();
+        capacity.acquire(SERVER_CAPACITY); // Hold the first request at the server until all the others are queued
+        try {
+            for (int i = 0; i <= queued; i++) {
+                client.get(url, new HttpResponseHandler() {
+                    @Override
+                    public void onSuccess(int statusCode, Map<String, List<String>> headers, byte[] content) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(int statusCode, Map<String, List<String>> headers, byte[] content) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        if (throwable instanceof RejectedExecutionException) {
+                            rejected.incrementAndGet();
+                        } else {
+                            unexpected.compareAndSet(null, throwable);
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            assertEquals(queued, limiter.getQueueDepth(host));
+        } finally {
+            capacity.release(SERVER_CAPACITY);
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertNull(unexpected.get());
+        assertEquals(queued, rejected.get());
+        assertEquals(0, limiter.getInFlight(host));
+        pool.shutdown();
+    }
+
+    @Test
+    public void releasesTheSlotWhenOnStartThrows() throws Exception {
+        assertReleasedWhenOnStartThrows(new AsyncHttpClient());
+    }
+
+    @Test
+    public void releasesTheSlotOnTheEngineWhenOnStartThrows() throws Exception {
+        NioHttpEngine engine = new NioHttpEngine(1);
+        try {
+            assertReleasedWhenOnStartThrows(new AsyncHttpClient(engine));
+        } finally {
+            engine.close();
+        }
+    }
+
+    private void assertReleasedWhenOnStartThrows(AsyncHttpClient client) throws InterruptedException {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter();
+        limiter.setLimits(1, 1, 1);
+        client.setConcurrencyLimiter(limiter);
+        try {
+            // On the thread pool the exception ends the worker's task instead of reaching the caller
+            client.get(url, new RecordingHandler() {
+                @Override
+                public void onStart(HttpURLConnection httpURLConnection) {
+                    throw new IllegalStateException("from onStart");
+                }
+            });
+        } catch (IllegalStateException expected) {
+            // Thrown on the engine
+        }
+
+        // Would be queued behind the request that threw for good if its slot was kept
+        RecordingHandler handler = new RecordingHandler();
+        client.get(url, handler);
+        handler.await();
+        assertNull(handler.throwable);
+        assertEquals(200, handler.statusCode);
+        assertEquals(0, limiter.getInFlight(host));
+    }
+}
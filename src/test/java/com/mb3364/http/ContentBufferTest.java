@@ -0,0 +1,84 @@
+package com.mb3364.http;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ContentBufferTest {
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) content[i] = (byte) (i * 31);
+        return content;
+    }
+
+    private static void readAll(ContentBuffer buffer, byte[] content) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(content);
+        while (buffer.readFrom(in) != -1) {
+            // Keep reading
+        }
+    }
+
+    @Test
+    public void returnsThePreallocatedArrayWhenFilledExactly() {
+        byte[] content = content(1000);
+        ContentBuffer buffer = new ContentBuffer(content.length);
+        buffer.write(content, 0, 400);
+        buffer.write(content, 400, 600);
+        byte[] first = buffer.toByteArray();
+        assertArrayEquals(content, first);
+        assertSame(first, buffer.toByteArray());
+    }
+
+    @Test
+    public void readsUnknownLengthAcrossSegments() throws IOException {
+        byte[] content = content(3 * 1024 * 1024 + 17);
+        ContentBuffer buffer = new ContentBuffer(-1);
+        readAll(buffer, content);
+        assertEquals(content.length, buffer.size());
+        assertArrayEquals(content, buffer.toByteArray());
+    }
+
+    @Test
+    public void writesFromArraysAndBuffers() {
+        byte[] content = content(50000);
+        ContentBuffer buffer = new ContentBuffer(-1);
+        buffer.write(content, 0, 10000);
+        ByteBuffer rest = ByteBuffer.wrap(content, 10000, 40000);
+        buffer.write(rest, 30000);
+        assertEquals(10000, rest.remaining());
+        buffer.write(rest, 10000);
+        assertArrayEquals(content, buffer.toByteArray());
+    }
+
+    @Test
+    public void returnsOnlyTheBytesReceivedWhenShorterThanDeclared() throws IOException {
+        byte[] content = content(100);
+        ContentBuffer buffer = new ContentBuffer(1000);
+        readAll(buffer, content);
+        assertArrayEquals(content, buffer.toByteArray());
+    }
+
+    @Test
+    public void growsPastTheDeclaredLength() throws IOException {
+        byte[] content = content(20000);
+        ContentBuffer buffer = new ContentBuffer(100);
+        readAll(buffer, content);
+        assertEquals(content.length, buffer.size());
+        assertArrayEquals(content, buffer.toByteArray());
+    }
+
+    @Test
+    public void emptyContent() throws IOException {
+        assertEquals(0, new ContentBuffer(-1).toByteArray().length);
+        ContentBuffer buffer = new ContentBuffer(0);
+        readAll(buffer, new byte[0]);
+        assertEquals(0, buffer.toByteArray().length);
+    }
+}
@@ -0,0 +1,150 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads files from a local server that sends them in chunks, with no Content-Length, or with a length.
+ */
+public class FileHttpResponseHandlerTest {
+
+    private static final int FILE_LENGTH = 4 * 1024 * 1024;
+    private static final int LARGE_FILE_REPEATS = 64; // of the content, for a 256 MB file
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[FILE_LENGTH];
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void start() throws IOException {
+        for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 31);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    for (int i = 0; i < content.length; i += 64 * 1024) out.write(content, i, 64 * 1024);
+                }
+            }
+        });
+        server.createContext("/large", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, LARGE_FILE_REPEATS * (long) content.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    for (int i = 0; i < LARGE_FILE_REPEATS; i++) out.write(content);
+                }
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static final class Download extends FileHttpResponseHandler {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger progressCalls = new AtomicInteger();
+        volatile int statusCode;
+        volatile Throwable throwable;
+
+        Download(File file) {
+            super(file);
+        }
+
+        @Override
+        public void onSuccess(int statusCode, Map<String, List<String>> headers, File file) {
+            this.statusCode = statusCode;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(int statusCode, Map<String, List<String>> headers, File file) {
+            onSuccess(statusCode, headers, file);
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            this.throwable = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onProgressChanged(long bytesReceived, long totalBytes) {
+            progressCalls.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void writesTheFileAsItArrivesWithAnEngine() throws Exception {
+        NioHttpEngine engine = new NioHttpEngine(1);
+        try {
+            File file = folder.newFile();
+            Download handler = new Download(file);
+            new AsyncHttpClient(engine).get(url, handler);
+            assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+            assertNull(handler.throwable);
+            assertEquals(200, handler.statusCode);
+            assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+            assertTrue(handler.progressCalls.get() > 1); // Written a buffer at a time, not in one go
+            assertEquals(0, engine.getPoolMissCount()); // Performed on the thread pool
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void writesALargeFileThroughOnePooledBuffer() throws Exception {
+        File file = folder.newFile();
+        Download handler = new Download(file);
+        handler.setPreallocate(true);
+        handler.setSyncPolicy(FileSyncPolicy.DATA);
+        SyncHttpClient client = new SyncHttpClient();
+        BufferPool pool = new BufferPool();
+        client.setBufferPool(pool);
+        client.get(url + "large", handler);
+        assertTrue(handler.done.await(60, TimeUnit.SECONDS));
+        assertNull(handler.throwable);
+        assertEquals(200, handler.statusCode);
+        assertEquals(LARGE_FILE_REPEATS * (long) content.length, file.length());
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] read = new byte[content.length];
+            for (int i = 0; i < LARGE_FILE_REPEATS; i++) {
+                in.readFully(read);
+                assertArrayEquals(content, read);
+            }
+        }
+        assertEquals(1, pool.getAllocationCount());
+    }
+}
@@ -0,0 +1,118 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hedges requests to a local server whose first response is slow.
+ */
+public class HedgedRequestTest {
+
+    private static final long SLOW = 1000; // in milliseconds
+
+    private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+    private String url;
+    private AsyncHttpClient client;
+    private HedgePolicy policy;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int request = requests.incrementAndGet();
+                if (request == 1) {
+                    try {
+                        Thread.sleep(SLOW);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                byte[] content = ("response " + request).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, content.length);
+                exchange.getResponseBody().write(content);
+                exchange.close();
+            }
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        client = new AsyncHttpClient();
+        policy = new HedgePolicy();
+        policy.setDelay(50);
+        client.setHedgePolicy(policy);
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    public void handsOverTheHedgeWhenItAnswersFirst() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler();
+        long start = System.nanoTime();
+        client.get(url, handler);
+        handler.await();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(SLOW));
+        assertNull(handler.throwable);
+        assertEquals("response 2", handler.body());
+        assertEquals(1, policy.getHedgeCount());
+        assertEquals(1, policy.getHedgeWinCount());
+    }
+
+    @Test
+    public void doesNotHedgeFileDownloads() throws Exception {
+        File file = File.createTempFile("hedge", ".tmp");
+        file.deleteOnExit();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger succeeded = new AtomicInteger();
+        client.get(url, new FileHttpResponseHandler(file) {
+            @Override
+            public void onSuccess(int statusCode, Map<String, List<String>> headers, File file) {
+                succeeded.incrementAndGet();
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(int statusCode, Map<String, List<String>> headers, File file) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, succeeded.get());
+        assertEquals(1, requests.get());
+        assertEquals(0, policy.getHedgeCount());
+        assertEquals("response 1", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+}
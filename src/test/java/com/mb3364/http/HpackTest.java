@@ -0,0 +1,146 @@
+package com.mb3364.http;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checked against the examples in RFC 7541 appendix C.
+ */
+public class HpackTest {
+
+    private static byte[] hex(String hex) {
+        hex = hex.replace(" ", "");
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void assertField(String name, String value, Map.Entry<String, String> field) {
+        assertEquals(name, field.getKey());
+        assertEquals(value, field.getValue());
+    }
+
+    @Test
+    public void encodesRequestsWithHuffmanAndDynamicTable() {
+        // C.4.1 and C.4.2
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.encode(block, ":method", "GET", true);
+        encoder.encode(block, ":scheme", "http", true);
+        encoder.encode(block, ":path", "/", true);
+        encoder.encode(block, ":authority", "www.example.com", true);
+        assertArrayEquals(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"), block.toByteArray());
+
+        block.reset();
+        encoder.encode(block, ":method", "GET", true);
+        encoder.encode(block, ":scheme", "http", true);
+        encoder.encode(block, ":path", "/", true);
+        encoder.encode(block, ":authority", "www.example.com", true);
+        encoder.encode(block, "cache-control", "no-cache", true);
+        assertArrayEquals(hex("8286 84be 5886 a8eb 1064 9cbf"), block.toByteArray());
+    }
+
+    @Test
+    public void decodesRequestsWithoutHuffman() throws IOException {
+        // C.3.1 and C.3.2
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        List<Map.Entry<String, String>> first = decoder.decode(hex(
+                "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(4, first.size());
+        assertField(":authority", "www.example.com", first.get(3));
+
+        List<Map.Entry<String, String>> second = decoder.decode(hex("8286 84be 5808 6e6f 2d63 6163 6865"));
+        assertEquals(5, second.size());
+        assertField(":authority", "www.example.com", second.get(3)); // From the dynamic table
+        assertField("cache-control", "no-cache", second.get(4));
+    }
+
+    @Test
+    public void decodesResponsesWithHuffman() throws IOException {
+        // C.6.1 and C.6.2
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        List<Map.Entry<String, String>> first = decoder.decode(hex(
+                "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6 2d1b ff6e "
+                        + "919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"));
+        assertField(":status", "302", first.get(0));
+        assertField("cache-control", "private", first.get(1));
+        assertField("date", "Mon, 21 Oct 2013 20:13:21 GMT", first.get(2));
+        assertField("location", "https://www.example.com", first.get(3));
+
+        List<Map.Entry<String, String>> second = decoder.decode(hex("4883 640e ffc1 c0bf"));
+        assertField(":status", "307", second.get(0));
+        assertField("location", "https://www.example.com", second.get(3));
+    }
+
+    @Test
+    public void roundTripsRandomHeaders() throws IOException {
+        Random random = new Random(42);
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            block.reset();
+            List<String[]> sent = new ArrayList<>();
+            for (int j = 0; j < 5; j++) {
+                char[] value = new char[random.nextInt(100)];
+                for (int k = 0; k < value.length; k++) value[k] = (char) random.nextInt(256);
+                String[] field = {"x-header-" + random.nextInt(20), random.nextInt(3) == 0 ? "same" : new String(value)};
+                sent.add(field);
+                encoder.encode(block, field[0], field[1], random.nextBoolean());
+            }
+            List<Map.Entry<String, String>> received = decoder.decode(block.toByteArray());
+            assertEquals(sent.size(), received.size());
+            for (int j = 0; j < sent.size(); j++) {
+                assertField(sent.get(j)[0], sent.get(j)[1], received.get(j));
+            }
+        }
+    }
+
+    @Test
+    public void shrinksTheTableWhenThePeerAsks() throws IOException {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.encode(block, "x-first", "value", true);
+        decoder.decode(block.toByteArray());
+
+        encoder.setMaxTableSize(0);
+        block.reset();
+        encoder.encode(block, "x-first", "value", true);
+        assertEquals(0x20, block.toByteArray()[0] & 0xFF); // Table size update to 0
+        List<Map.Entry<String, String>> fields = decoder.decode(block.toByteArray());
+        assertEquals(1, fields.size());
+        assertField("x-first", "value", fields.get(0));
+    }
+
+    @Test
+    public void rejectsInvalidBlocks() {
+        String[] invalid = {
+                "3fe21f", // Table size update to 4096 + 1024, over the size we announce
+                "be", // Index 62 with an empty dynamic table
+                "80", // Index 0
+                "410f7777", // String longer than the block
+        };
+        for (String block : invalid) {
+            try {
+                new Hpack.Decoder().decode(hex(block));
+                throw new AssertionError("Accepted " + block);
+            } catch (IOException e) {
+                assertTrue(block, e instanceof ProtocolException);
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.mb3364.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the engine against a minimal local h2c server that takes requests with prior knowledge. It answers
+ * every request once the whole of it has arrived, with the method and path as the content.
+ */
+public class Http2EngineTest {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_CONTINUATION = 0x9;
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final List<Socket> sockets = new ArrayList<>();
+    private ServerSocket server;
+    private String url;
+    private Http2Engine engine;
+    private AsyncHttpClient client;
+
+    @Before
+    public void start() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        connections.incrementAndGet();
+                        synchronized (sockets) {
+                            sockets.add(socket);
+                        }
+                        Thread reader = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    serve(socket);
+                                } catch (IOException e) {
+                                    // Closed
+                                }
+                            }
+                        });
+                        reader.setDaemon(true);
+                        reader.start();
+                    }
+                } catch (IOException e) {
+                    // Server stopped
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        url = "http://127.0.0.1:" + server.getLocalPort();
+        engine = new Http2Engine();
+        client = new AsyncHttpClient(engine);
+    }
+
+    @After
+    public void stop() throws IOException {
+        engine.close();
+        server.close();
+        synchronized (sockets) {
+            for (Socket socket : sockets) socket.close();
+        }
+    }
+
+    private static final class Request {
+        final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        final Map<String, String> headers = new HashMap<>();
+    }
+
+    private void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        OutputStream out = socket.getOutputStream();
+        byte[] preface = new byte[PREFACE.length];
+        in.readFully(preface);
+        assertArrayEquals(PREFACE, preface);
+        writeFrame(out, TYPE_SETTINGS, 0, 0, new byte[0]);
+
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Map<Integer, Request> requests = new HashMap<>();
+        while (true) {
+            int length = in.readUnsignedShort() << 8 | in.readUnsignedByte();
+            int type = in.readUnsignedByte();
+            int flags = in.readUnsignedByte();
+            int streamId = in.readInt() & 0x7FFFFFFF;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            if (type == TYPE_SETTINGS && (flags & FLAG_ACK) == 0) {
+                writeFrame(out, TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]);
+            } else if (type == TYPE_GOAWAY) {
+                return;
+            } else if (type == TYPE_HEADERS || type == TYPE_CONTINUATION || type == TYPE_DATA) {
+                Request request = requests.get(streamId);
+                if (request == null) {
+                    request = new Request();
+                    requests.put(streamId, request);
+                }
+                if (type == TYPE_DATA) {
+                    request.content.write(payload);
+                } else {
+                    request.headerBlock.write(payload);
+                    if ((flags & FLAG_END_HEADERS) != 0) {
+                        for (Map.Entry<String, String> header : decoder.decode(request.headerBlock.toByteArray())) {
+                            request.headers.put(header.getKey(), header.getValue());
+                        }
+                    }
+                }
+                // CONTINUATION frames carry the END_STREAM of the HEADERS frame they follow
+                if ((flags & FLAG_END_STREAM) != 0 && type != TYPE_CONTINUATION) {
+                    request.headers.put("end-stream", "true");
+                }
+                if (request.headers.containsKey("end-stream") && request.headers.containsKey(":path")) {
+                    requests.remove(streamId);
+                    respond(out, encoder, streamId, request);
+                }
+            }
+        }
+    }
+
+    private void respond(OutputStream out, Hpack.Encoder encoder, int streamId, Request request) throws IOException {
+        String method = request.headers.get(":method");
+        String path = request.headers.get(":path");
+        String status = "200";
+        String location = null;
+        if (path.equals("/redirect")) {
+            status = "302";
+            location = "/done";
+        } else if (path.equals("/missing")) {
+            status = "404";
+        }
+        byte[] content = (method + " " + path + (request.content.size() > 0 ? " " + request.content : ""))
+                .getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.encode(block, ":status", status, true);
+        encoder.encode(block, "content-length", Integer.toString(content.length), true);
+        if (location != null) encoder.encode(block, "location", location, true);
+        writeFrame(out, TYPE_HEADERS, FLAG_END_HEADERS, streamId, block.toByteArray());
+        writeFrame(out, TYPE_DATA, FLAG_END_STREAM, streamId, content);
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        byte[] header = {(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+                (byte) type, (byte) flags, (byte) (streamId >>> 24), (byte) (streamId >>> 16),
+                (byte) (streamId >>> 8), (byte) streamId};
+        out.write(header);
+        out.write(payload);
+        out.flush();
+    }
+
+    @Test
+    public void multiplexesRequestsOverOneConnection() throws InterruptedException {
+        List<RecordingHandler> handlers = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            RecordingHandler handler = new RecordingHandler();
+            client.get(url + "/item" + i, handler);
+            handlers.add(handler);
+        }
+        for (int i = 0; i < handlers.size(); i++) {
+            RecordingHandler response = handlers.get(i).await();
+            assertNull(response.throwable);
+            assertEquals(200, response.statusCode);
+            assertEquals("GET /item" + i, response.body());
+        }
+        assertEquals(1, connections.get());
+        assertEquals(1, engine.getOpenConnectionCount());
+        assertEquals(0, engine.getActiveStreamCount());
+    }
+
+    @Test
+    public void sendsRequestContent() throws InterruptedException {
+        RecordingHandler response = new RecordingHandler();
+        client.post(url + "/form", new RequestParams("key", "value"), response);
+        assertEquals(200, response.await().statusCode);
+        assertEquals("POST /form key=value", response.body());
+    }
+
+    @Test
+    public void deliversFailureResponses() throws InterruptedException {
+        RecordingHandler response = new RecordingHandler();
+        client.get(url + "/missing", response);
+        assertEquals(404, response.await().statusCode);
+        assertEquals("GET /missing", response.body());
+    }
+
+    @Test
+    public void followsRedirects() throws InterruptedException {
+        RecordingHandler response = new RecordingHandler();
+        client.get(url + "/redirect", response);
+        assertEquals(200, response.await().statusCode);
+        assertEquals("GET /done", response.body());
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    public void compressesRepeatedHeaders() throws InterruptedException {
+        long[] sent = new long[3];
+        for (int i = 0; i < sent.length; i++) {
+            long before = engine.getHeaderBytesSent();
+            RecordingHandler response = new RecordingHandler();
+            client.get(url + "/same", response);
+            assertEquals(200, response.await().statusCode);
+            sent[i] = engine.getHeaderBytesSent() - before;
+        }
+        // Once the headers are in the dynamic table each of them is sent as an index
+        assertTrue(sent[0] + " then " + sent[1], sent[1] * 3 < sent[0]);
+        assertEquals(sent[1], sent[2]);
+    }
+}
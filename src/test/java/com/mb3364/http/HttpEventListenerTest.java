@@ -0,0 +1,152 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpEventListenerTest {
+
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] content = "ok".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, content.length);
+                exchange.getResponseBody().write(content);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    /* Records the name of every event, and the status code of the response headers */
+    private final HttpEventListener recorder = new HttpEventListener() {
+        @Override
+        public void callStart(HttpCall call, long nanoTime) {
+            events.add("callStart");
+        }
+
+        @Override
+        public void queued(HttpCall call, long nanoTime) {
+            events.add("queued");
+        }
+
+        @Override
+        public void dequeued(HttpCall call, long nanoTime) {
+            events.add("dequeued");
+        }
+
+        @Override
+        public void dnsStart(HttpCall call, long nanoTime) {
+            events.add("dnsStart");
+        }
+
+        @Override
+        public void dnsEnd(HttpCall call, long nanoTime) {
+            events.add("dnsEnd");
+        }
+
+        @Override
+        public void connectStart(HttpCall call, long nanoTime) {
+            events.add("connectStart");
+        }
+
+        @Override
+        public void connectEnd(HttpCall call, long nanoTime) {
+            events.add("connectEnd");
+        }
+
+        @Override
+        public void secureConnectEnd(HttpCall call, long nanoTime) {
+            events.add("secureConnectEnd");
+        }
+
+        @Override
+        public void requestHeadersSent(HttpCall call, long nanoTime) {
+            events.add("requestHeadersSent");
+        }
+
+        @Override
+        public void requestBodySent(HttpCall call, long nanoTime) {
+            events.add("requestBodySent");
+        }
+
+        @Override
+        public void responseHeadersReceived(HttpCall call, int statusCode, long nanoTime) {
+            events.add("responseHeadersReceived " + statusCode);
+        }
+
+        @Override
+        public void responseBodyComplete(HttpCall call, long nanoTime) {
+            events.add("responseBodyComplete");
+        }
+
+        @Override
+        public void callEnd(HttpCall call, long nanoTime) {
+            events.add("callEnd");
+        }
+
+        @Override
+        public void callFailed(HttpCall call, Throwable throwable, long nanoTime) {
+            events.add("callFailed");
+        }
+    };
+
+    @Test
+    public void reportsOnlyTheResponseWithoutAnEngine() throws InterruptedException {
+        SyncHttpClient client = new SyncHttpClient();
+        client.addEventListener(recorder);
+        RecordingHandler handler = new RecordingHandler();
+        client.get(url, handler);
+        assertEquals(200, handler.await().statusCode);
+        assertEquals("[callStart, responseHeadersReceived 200, responseBodyComplete, callEnd]", events.toString());
+    }
+
+    @Test
+    public void reportsEveryPhaseOnTheEngine() throws Exception {
+        NioHttpEngine engine = new NioHttpEngine(1);
+        try {
+            AsyncHttpClient client = new AsyncHttpClient(engine);
+            client.addEventListener(recorder);
+            RecordingHandler handler = new RecordingHandler();
+            client.get(url, handler);
+            assertEquals(200, handler.await().statusCode);
+            // callEnd follows the handler's callbacks on the event loop
+            for (int i = 0; i < 100 && !events.contains("callEnd"); i++) Thread.sleep(10);
+            String[] inOrder = {"callStart", "dnsStart", "dnsEnd", "connectStart", "connectEnd", "requestHeadersSent",
+                    "requestBodySent", "responseHeadersReceived 200", "responseBodyComplete"};
+            int last = -1;
+            for (String event : inOrder) {
+                int index = events.indexOf(event);
+                assertTrue(events.toString(), index > last);
+                last = index;
+            }
+            assertEquals(events.toString(), "callEnd", events.get(events.size() - 1));
+        } finally {
+            engine.close();
+        }
+    }
+}
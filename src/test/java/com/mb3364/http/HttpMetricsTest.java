@@ -0,0 +1,85 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts bytes against a local server that streams its responses in chunks, with no Content-Length.
+ */
+public class HttpMetricsTest {
+
+    private static final int RESPONSE_LENGTH = 100000;
+
+    private final AtomicLong requestBytes = new AtomicLong(); // as received by the server, still compressed
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] buffer = new byte[8192];
+                try (InputStream in = exchange.getRequestBody()) {
+                    int n;
+                    while ((n = in.read(buffer)) != -1) requestBytes.addAndGet(n);
+                }
+                exchange.sendResponseHeaders(200, 0); // Chunked
+                try (OutputStream out = exchange.getResponseBody()) {
+                    for (int sent = 0; sent < RESPONSE_LENGTH; sent += 1000) out.write(new byte[1000]);
+                }
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    public void countsChunkedResponses() throws InterruptedException {
+        SyncHttpClient client = new SyncHttpClient();
+        HttpMetrics metrics = new HttpMetrics();
+        client.setMetrics(metrics);
+        RecordingHandler handler = new RecordingHandler();
+        client.get(url, handler);
+        assertEquals(RESPONSE_LENGTH, handler.await().content.length);
+        assertEquals(RESPONSE_LENGTH, metrics.getBytesReceived());
+        assertEquals(0, metrics.getBytesSent());
+        assertEquals(1, metrics.getRequestCount());
+    }
+
+    @Test
+    public void countsCompressedRequestContentAsSent() throws InterruptedException {
+        SyncHttpClient client = new SyncHttpClient();
+        client.setRequestCompressionThreshold(0);
+        HttpMetrics metrics = new HttpMetrics();
+        client.setMetrics(metrics);
+        char[] content = new char[50000];
+        Arrays.fill(content, 'a');
+        RecordingHandler handler = new RecordingHandler();
+        client.post(url, new RequestParams("key", new String(content)), handler);
+        assertEquals(200, handler.await().statusCode);
+        assertTrue(requestBytes.get() > 0 && requestBytes.get() < content.length);
+        assertEquals(requestBytes.get(), metrics.getBytesSent());
+        assertEquals(RESPONSE_LENGTH, metrics.getBytesReceived());
+    }
+}
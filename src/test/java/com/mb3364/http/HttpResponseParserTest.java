@@ -0,0 +1,166 @@
+package com.mb3364.http;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpResponseParserTest {
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String content(HttpResponseParser parser) {
+        return new String(parser.getContent(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void parsesFixedLengthResponse() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(false);
+        assertTrue(parser.feed(bytes("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 5\r\n\r\nhello")));
+        assertEquals(200, parser.getStatusCode());
+        assertEquals("OK", parser.getReasonPhrase());
+        assertEquals("text/plain", parser.getHeader("content-type"));
+        assertEquals(2, parser.getHeaders().size());
+        assertEquals("hello", content(parser));
+        assertTrue(parser.isKeepAlive());
+    }
+
+    @Test
+    public void parsesResponseFedOneByteAtATime() throws IOException {
+        String response = "HTTP/1.1 201 Created\r\nContent-Length: 3\r\n\r\nabc";
+        HttpResponseParser parser = new HttpResponseParser(false);
+        ByteBuffer all = bytes(response);
+        for (int i = 0; i < response.length(); i++) {
+            ByteBuffer one = ByteBuffer.wrap(new byte[]{all.get(i)});
+            assertEquals(i == response.length() - 1, parser.feed(one));
+            assertFalse(one.hasRemaining());
+            if (i < response.indexOf("\r\n\r\n")) assertFalse(parser.hasHeaders());
+        }
+        assertTrue(parser.hasHeaders());
+        assertEquals(201, parser.getStatusCode());
+        assertEquals("abc", content(parser));
+    }
+
+    @Test
+    public void leavesTheNextResponseInTheBuffer() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(false);
+        ByteBuffer buffer = bytes("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nokHTTP/1.1 204 No Content\r\n\r\n");
+        assertTrue(parser.feed(buffer));
+        assertEquals("ok", content(parser));
+
+        HttpResponseParser next = new HttpResponseParser(false);
+        assertTrue(next.feed(buffer));
+        assertEquals(204, next.getStatusCode());
+        assertEquals(0, next.getContent().length);
+    }
+
+    @Test
+    public void parsesChunkedResponseWithExtensionsAndTrailers() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(false);
+        assertFalse(parser.feed(bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5;name=value\r\nhello\r\n")));
+        assertFalse(parser.feed(bytes("7\r\n, world\r\n0\r\nExpires: never\r\n")));
+        assertTrue(parser.feed(bytes("\r\n")));
+        assertEquals("hello, world", content(parser));
+        assertTrue(parser.isKeepAlive());
+    }
+
+    @Test
+    public void readsBodyUntilTheConnectionCloses() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(false);
+        assertFalse(parser.feed(bytes("HTTP/1.1 200 OK\r\n\r\nsome ")));
+        assertFalse(parser.feed(bytes("content")));
+        parser.finish();
+        assertTrue(parser.isComplete());
+        assertEquals("some content", content(parser));
+        assertFalse(parser.isKeepAlive());
+    }
+
+    @Test
+    public void skipsInformationalResponses() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(false);
+        assertTrue(parser.feed(bytes("HTTP/1.1 100 Continue\r\nX-Interim: yes\r\n\r\n"
+                + "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n")));
+        assertEquals(200, parser.getStatusCode());
+        assertNull(parser.getHeader("X-Interim"));
+    }
+
+    @Test
+    public void responsesWithoutBodyCompleteAfterHeaders() throws IOException {
+        HttpResponseParser head = new HttpResponseParser(true);
+        assertTrue(head.feed(bytes("HTTP/1.1 200 OK\r\nContent-Length: 1000\r\n\r\n")));
+        assertEquals(0, head.getContent().length);
+
+        HttpResponseParser notModified = new HttpResponseParser(false);
+        assertTrue(notModified.feed(bytes("HTTP/1.1 304 Not Modified\r\nContent-Length: 1000\r\n\r\n")));
+    }
+
+    @Test
+    public void decidesWhetherTheConnectionIsKeptAlive() throws IOException {
+        HttpResponseParser http10 = new HttpResponseParser(false);
+        http10.feed(bytes("HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n"));
+        assertFalse(http10.isKeepAlive());
+
+        HttpResponseParser http10KeepAlive = new HttpResponseParser(false);
+        http10KeepAlive.feed(bytes("HTTP/1.0 200 OK\r\nConnection: keep-alive\r\nContent-Length: 0\r\n\r\n"));
+        assertTrue(http10KeepAlive.isKeepAlive());
+
+        HttpResponseParser close = new HttpResponseParser(false);
+        close.feed(bytes("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n"));
+        assertFalse(close.isKeepAlive());
+    }
+
+    @Test
+    public void keepsFixedLengthContentInOneArray() throws IOException {
+        byte[] body = new byte[100000];
+        for (int i = 0; i < body.length; i++) body[i] = (byte) i;
+        HttpResponseParser parser = new HttpResponseParser(false);
+        parser.feed(bytes("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n"));
+        assertTrue(parser.feed(ByteBuffer.wrap(body)));
+        assertArrayEquals(body, parser.getContent());
+        assertTrue(parser.getContent() == parser.getContent()); // Not copied
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsMalformedStatusLine() throws IOException {
+        new HttpResponseParser(false).feed(bytes("ICY 200 OK\r\n\r\n"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsMalformedHeader() throws IOException {
+        new HttpResponseParser(false).feed(bytes("HTTP/1.1 200 OK\r\nno colon here\r\n\r\n"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsMalformedChunkSize() throws IOException {
+        new HttpResponseParser(false).feed(bytes("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\n"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsNegativeContentLength() throws IOException {
+        new HttpResponseParser(false).feed(bytes("HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\n"));
+    }
+
+    @Test
+    public void failsWhenClosedBeforeTheResponseIsComplete() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(false);
+        parser.feed(bytes("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nshort"));
+        try {
+            parser.finish();
+            fail("Truncated response was accepted");
+        } catch (EOFException expected) {
+            assertFalse(parser.isComplete());
+        }
+    }
+}
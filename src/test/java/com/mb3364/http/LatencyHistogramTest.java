@@ -0,0 +1,87 @@
+package com.mb3364.http;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptySnapshotIsAllZeros() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().getSnapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getMean(), 0);
+        assertEquals(0, snapshot.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void keepsMinMaxAndMeanExactly() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000003);
+        histogram.record(7);
+        histogram.record(123456789);
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(3, snapshot.getCount());
+        assertEquals(7, snapshot.getMin());
+        assertEquals(123456789, snapshot.getMax());
+        assertEquals((1000003 + 7 + 123456789) / 3.0, snapshot.getMean(), 1e-6);
+        assertEquals(7, snapshot.getValueAtPercentile(0));
+        assertEquals(123456789, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentilesAreWithinThreePercent() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(7);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            // Spread over several orders of magnitude, from microseconds to seconds
+            values[i] = (long) Math.pow(10, 3 + 6 * random.nextDouble());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        for (double percentile : new double[]{1, 10, 50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long value = snapshot.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + value + " vs " + exact, Math.abs(value - exact) <= exact * 0.03);
+        }
+    }
+
+    @Test
+    public void countsHugeLatenciesInTheLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(Long.MAX_VALUE / 2);
+        histogram.record(-5); // Counted as 0
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(3, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(Long.MAX_VALUE / 2, snapshot.getMax());
+        assertEquals(Long.MAX_VALUE / 2, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(500);
+        LatencyHistogram.Snapshot before = histogram.getSnapshot();
+        histogram.reset();
+        assertEquals(1, before.getCount()); // Snapshots are copies
+        assertEquals(0, histogram.getSnapshot().getCount());
+        assertEquals(0, histogram.getSnapshot().getMax());
+        histogram.record(300);
+        assertEquals(300, histogram.getSnapshot().getMin());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPercentileOverOneHundred() {
+        new LatencyHistogram().getSnapshot().getValueAtPercentile(100.1);
+    }
+}
@@ -0,0 +1,240 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the engine against a local keep-alive server.
+ */
+public class NioHttpEngineTest {
+
+    private static final int IN_FLIGHT = 500;
+
+    private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+    private final Set<Integer> clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>()); // one per connection
+    private final AtomicInteger requests = new AtomicInteger();
+    private final CountDownLatch gathered = new CountDownLatch(IN_FLIGHT); // counted down by requests for /gather
+    private HttpServer server;
+    private String url;
+    private NioHttpEngine engine;
+    private AsyncHttpClient client;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                requests.incrementAndGet();
+                String path = exchange.getRequestURI().getPath();
+                int status = 200;
+                String body = exchange.getRequestMethod() + " " + path;
+                if (path.equals("/echo")) {
+                    ByteArrayOutputStream received = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = exchange.getRequestBody().read(buffer)) != -1) received.write(buffer, 0, n);
+                    body = received.toString("UTF-8");
+                } else if (path.startsWith("/redirect/")) {
+                    // Counts down to /done
+                    int remaining = Integer.parseInt(path.substring("/redirect/".length()));
+                    status = 302;
+                    exchange.getResponseHeaders().set("Location", remaining > 1 ? "/redirect/" + (remaining - 1) : "/done");
+                } else if (path.equals("/loop")) {
+                    status = 302;
+                    exchange.getResponseHeaders().set("Location", "/loop");
+                } else if (path.equals("/gather")) {
+                    // Answers once every request is in flight at the same time
+                    gathered.countDown();
+                    try {
+                        if (!gathered.await(10, TimeUnit.SECONDS)) status = 503;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                } else if (path.equals("/close")) {
+                    exchange.getResponseHeaders().set("Connection", "close");
+                } else if (path.equals("/slow")) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                byte[] content = body.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, content.length);
+                exchange.getResponseBody().write(content);
+                exchange.close();
+            }
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort();
+        engine = new NioHttpEngine(1);
+        client = new AsyncHttpClient(engine);
+    }
+
+    @After
+    public void stop() {
+        engine.close();
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private RecordingHandler get(String path) throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler();
+        client.get(url + path, handler);
+        return handler.await();
+    }
+
+    @Test
+    public void deliversResponses() throws InterruptedException {
+        RecordingHandler response = get("/hello");
+        assertNull(response.throwable);
+        assertEquals(200, response.statusCode);
+        assertEquals("GET /hello", response.body());
+
+        RecordingHandler posted = new RecordingHandler();
+        client.post(url + "/form", new RequestParams("key", "value"), posted);
+        assertEquals("POST /form", posted.await().body());
+    }
+
+    @Test
+    public void sendsRequestContentWrittenInParts() throws InterruptedException {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 1000000) value.append(value.length() % 10);
+        byte[] content = value.toString().getBytes(StandardCharsets.UTF_8);
+        RequestParams params = new RequestParams();
+        params.setBody(RequestBody.create("text/plain", new ByteArrayInputStream(content), content.length));
+        RecordingHandler posted = new RecordingHandler();
+        client.post(url + "/echo", params, posted);
+        assertNull(posted.await().throwable);
+        assertEquals(value.toString(), posted.body());
+    }
+
+    @Test
+    public void reusesKeptAliveConnections() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            RecordingHandler response = get("/item" + i);
+            assertNull(response.throwable);
+            assertEquals(200, response.statusCode);
+            assertEquals("GET /item" + i, response.body());
+        }
+        assertEquals(1, engine.getPoolMissCount());
+        assertEquals(9, engine.getPoolHitCount());
+        assertEquals(1, engine.getOpenConnectionCount());
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void doesNotReuseConnectionsTheServerCloses() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, get("/close").statusCode);
+        }
+        assertEquals(3, engine.getPoolMissCount());
+        assertEquals(0, engine.getPoolHitCount());
+        assertEquals(3, clientPorts.size());
+    }
+
+    @Test
+    public void limitsConnectionsPerHost() throws InterruptedException {
+        engine.setMaxConnectionsPerHost(2);
+        List<RecordingHandler> handlers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            RecordingHandler handler = new RecordingHandler();
+            client.get(url + "/slow", handler);
+            handlers.add(handler);
+        }
+        for (RecordingHandler handler : handlers) {
+            assertEquals(200, handler.await().statusCode);
+        }
+        assertTrue(clientPorts.toString(), clientPorts.size() <= 2);
+        assertEquals(20, engine.getPoolHitCount() + engine.getPoolMissCount());
+        assertEquals(0, engine.getActiveRequestCount());
+    }
+
+    @Test
+    public void keepsManyRequestsInFlightOnOneThread() throws InterruptedException {
+        final AtomicInteger workers = new AtomicInteger();
+        ExecutorService threadPool = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                workers.incrementAndGet();
+                return new Thread(runnable);
+            }
+        });
+        try {
+            AsyncHttpClient client = new AsyncHttpClient(threadPool, engine);
+            List<RecordingHandler> handlers = new ArrayList<>();
+            for (int i = 0; i < IN_FLIGHT; i++) {
+                RecordingHandler handler = new RecordingHandler();
+                client.get(url + "/gather", handler);
+                handlers.add(handler);
+            }
+            for (RecordingHandler handler : handlers) {
+                assertNull(handler.await().throwable);
+                assertEquals(200, handler.statusCode);
+            }
+            assertEquals(0, workers.get()); // Only the engine's event loop thread performed them
+            assertEquals(IN_FLIGHT, engine.getPoolMissCount());
+            assertEquals(0, engine.getActiveRequestCount());
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+
+    @Test
+    public void followsRedirects() throws InterruptedException {
+        RecordingHandler response = get("/redirect/3");
+        assertEquals(200, response.statusCode);
+        assertEquals("GET /done", response.body());
+        assertEquals(1, clientPorts.size()); // Redirects reuse the connection
+    }
+
+    @Test
+    public void stopsFollowingRedirectLoops() throws InterruptedException {
+        RecordingHandler response = get("/loop");
+        assertEquals(302, response.statusCode);
+        assertEquals(21, requests.get()); // The request and 20 redirects
+    }
+
+    @Test
+    public void doesNotFollowRedirectsWhenTurnedOff() throws InterruptedException {
+        client.setFollowRedirects(false);
+        RecordingHandler response = get("/redirect/1");
+        assertEquals(302, response.statusCode);
+        assertEquals("/done", response.headers.get("Location").get(0));
+    }
+
+    @Test
+    public void doesNotFollowRedirectsForPost() throws InterruptedException {
+        RecordingHandler response = new RecordingHandler();
+        client.post(url + "/redirect/1", new RequestParams("key", "value"), response);
+        assertEquals(302, response.await().statusCode);
+    }
+}
@@ -0,0 +1,89 @@
+package com.mb3364.http;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100); // at 10 a second
+
+    @Test
+    public void letsTheBurstThroughThenSpacesRequests() {
+        RateLimiter limiter = new RateLimiter(10, 3);
+        for (int i = 0; i < 3; i++) assertEquals(0, limiter.reserve());
+        long previous = 0;
+        for (int i = 0; i < 5; i++) {
+            long wait = limiter.reserve();
+            assertTrue("wait " + wait, wait > previous && wait <= (i + 1) * INTERVAL);
+            if (i > 0) assertTrue("gap " + (wait - previous), Math.abs(wait - previous - INTERVAL) < INTERVAL / 2);
+            previous = wait;
+        }
+        assertEquals(8, limiter.getPermitCount());
+        assertEquals(5, limiter.getDelayedCount());
+        assertEquals(0, limiter.getRejectedCount());
+    }
+
+    @Test
+    public void rejectsInsteadOfWaitingTooLong() {
+        RateLimiter limiter = new RateLimiter(10, 1);
+        limiter.setMaxWait(0);
+        assertEquals(0, limiter.reserve());
+        assertEquals(-1, limiter.reserve());
+        assertEquals(-1, limiter.reserve());
+        assertEquals(1, limiter.getPermitCount());
+        assertEquals(2, limiter.getRejectedCount());
+
+        limiter.setMaxWait(1000);
+        assertTrue(limiter.reserve() > 0);
+        assertEquals(1000, limiter.getMaxWait());
+    }
+
+    @Test
+    public void unreserveGivesThePermitBack() {
+        RateLimiter limiter = new RateLimiter(10, 1);
+        limiter.setMaxWait(0);
+        long wait = limiter.reserve();
+        assertEquals(0, wait);
+        limiter.unreserve(wait);
+        assertEquals(0, limiter.getPermitCount());
+        assertEquals(0, limiter.reserve());
+
+        limiter.setMaxWait(Long.MAX_VALUE);
+        wait = limiter.reserve();
+        assertTrue(wait > 0);
+        limiter.unreserve(wait);
+        assertEquals(1, limiter.getPermitCount());
+        assertEquals(0, limiter.getDelayedCount());
+        assertTrue(Math.abs(limiter.reserve() - wait) < INTERVAL / 2);
+    }
+
+    @Test
+    public void changesRate() {
+        RateLimiter limiter = new RateLimiter(2.5);
+        assertEquals(2.5, limiter.getRate(), 1e-9);
+        assertEquals(3, limiter.getBurst());
+        limiter.setRate(1000);
+        assertEquals(1000, limiter.getRate(), 1e-9);
+        assertEquals(3, limiter.getBurst());
+        assertEquals(Long.MAX_VALUE, limiter.getMaxWait());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroRate() {
+        new RateLimiter(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBurst() {
+        new RateLimiter(10, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeMaxWait() {
+        new RateLimiter(10).setMaxWait(-1);
+    }
+}
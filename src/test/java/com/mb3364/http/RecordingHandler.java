@@ -0,0 +1,55 @@
+package com.mb3364.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records the response a request ended with, for tests to wait for and check.
+ */
+class RecordingHandler extends HttpResponseHandler {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    volatile int statusCode = -1;
+    volatile Map<String, List<String>> headers;
+    volatile byte[] content;
+    volatile Throwable throwable;
+
+    /**
+     * Waits for the response.
+     *
+     * @return this handler
+     * @throws InterruptedException if interrupted while waiting
+     */
+    RecordingHandler await() throws InterruptedException {
+        assertTrue("No response in time", done.await(10, TimeUnit.SECONDS));
+        return this;
+    }
+
+    String body() {
+        return content == null ? null : new String(content, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void onSuccess(int statusCode, Map<String, List<String>> headers, byte[] content) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.content = content;
+        done.countDown();
+    }
+
+    @Override
+    public void onFailure(int statusCode, Map<String, List<String>> headers, byte[] content) {
+        onSuccess(statusCode, headers, content);
+    }
+
+    @Override
+    public void onFailure(Throwable throwable) {
+        this.throwable = throwable;
+        done.countDown();
+    }
+}
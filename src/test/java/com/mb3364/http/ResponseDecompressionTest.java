@@ -0,0 +1,122 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fetches a compressible JSON document from a local server that gzips it when asked to, and counts the bytes
+ * that cross the wire.
+ */
+public class ResponseDecompressionTest {
+
+    private byte[] document;
+    private byte[] compressed;
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void start() throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 5000; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"id\":").append(i).append(",\"name\":\"item\",\"tags\":[\"a\",\"b\"],\"active\":true}");
+        }
+        document = json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(document);
+        }
+        compressed = gzipped.toByteArray();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                byte[] content = document;
+                if (accepted != null && accepted.contains("gzip")) {
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    content = compressed;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, content.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(content);
+                }
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static final class CompressedProgress extends RecordingHandler {
+        volatile long compressedBytes = -1;
+
+        @Override
+        public void onCompressedProgressChanged(long bytesReceived, long totalBytes) {
+            compressedBytes = bytesReceived;
+        }
+    }
+
+    private CompressedProgress fetch(HttpClient client, HttpMetrics metrics) throws InterruptedException {
+        client.setMetrics(metrics);
+        CompressedProgress handler = new CompressedProgress();
+        client.get(url, handler);
+        handler.await();
+        assertNull(handler.throwable);
+        assertEquals(200, handler.statusCode);
+        assertArrayEquals(document, handler.content);
+        return handler;
+    }
+
+    @Test
+    public void receivesCompressedBytesOnTheWire() throws InterruptedException {
+        assertTrue(compressed.length * 10 < document.length); // Worth compressing
+
+        HttpMetrics metrics = new HttpMetrics();
+        CompressedProgress handler = fetch(new SyncHttpClient(), metrics);
+        assertEquals(compressed.length, metrics.getBytesReceived());
+        assertEquals(compressed.length, handler.compressedBytes);
+
+        SyncHttpClient uncompressed = new SyncHttpClient();
+        uncompressed.setDecompressResponses(false);
+        HttpMetrics uncompressedMetrics = new HttpMetrics();
+        fetch(uncompressed, uncompressedMetrics);
+        assertEquals(document.length, uncompressedMetrics.getBytesReceived());
+    }
+
+    @Test
+    public void receivesCompressedBytesOnTheWireWithAnEngine() throws Exception {
+        NioHttpEngine engine = new NioHttpEngine(1);
+        try {
+            HttpMetrics metrics = new HttpMetrics();
+            CompressedProgress handler = fetch(new AsyncHttpClient(engine), metrics);
+            assertEquals(1, engine.getPoolMissCount()); // Performed by the engine
+            assertEquals(compressed.length, metrics.getBytesReceived());
+            assertEquals(compressed.length, handler.compressedBytes);
+        } finally {
+            engine.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.mb3364.http;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void retriesOnlyIdempotentMethodsByDefault() {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue(policy.isRetryable(HttpRequestMethod.GET, null));
+        assertTrue(policy.isRetryable(HttpRequestMethod.PUT, new RequestParams()));
+        assertFalse(policy.isRetryable(HttpRequestMethod.POST, new RequestParams()));
+        policy.setRetryNonIdempotent(true);
+        assertTrue(policy.isRetryable(HttpRequestMethod.POST, new RequestParams()));
+    }
+
+    @Test
+    public void doesNotRetryBodiesThatCanOnlyBeSentOnce() {
+        RetryPolicy policy = new RetryPolicy();
+        RequestParams params = new RequestParams();
+        params.setBody(RequestBody.create("text/plain", "body".getBytes()));
+        assertTrue(policy.isRetryable(HttpRequestMethod.PUT, params));
+        params.setBody(RequestBody.create("text/plain", new ByteArrayInputStream("body".getBytes()), 4));
+        assertFalse(policy.isRetryable(HttpRequestMethod.PUT, params));
+    }
+
+    @Test
+    public void retriesConnectionFailuresOnly() {
+        RetryPolicy policy = new RetryPolicy();
+        assertTrue(policy.isRetryable(new IOException("Connection reset")));
+        assertTrue(policy.isRetryable(new SocketTimeoutException()));
+        assertFalse(policy.isRetryable(new UnknownHostException("nowhere")));
+        assertFalse(policy.isRetryable(new ProtocolException()));
+        assertFalse(policy.isRetryable(new MalformedURLException()));
+        assertFalse(policy.isRetryable(new CircuitBreakerOpenException("example.org")));
+        assertFalse(policy.isRetryable(new RateLimitExceededException("http://example.org/")));
+        assertFalse(policy.isRetryable(new IllegalStateException()));
+    }
+
+    @Test
+    public void retriesOverloadStatusCodes() {
+        RetryPolicy policy = new RetryPolicy();
+        for (int statusCode : new int[]{429, 502, 503, 504}) assertTrue(policy.isRetryable(statusCode));
+        for (int statusCode : new int[]{200, 400, 404, 500}) assertFalse(policy.isRetryable(statusCode));
+        policy.setRetryStatusCodes(500);
+        assertTrue(policy.isRetryable(500));
+        assertFalse(policy.isRetryable(503));
+    }
+
+    @Test
+    public void backsOffExponentiallyWithJitter() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(100, 1000, 2);
+        long[] caps = {100, 200, 400, 800, 1000, 1000};
+        for (int retry = 1; retry <= caps.length; retry++) {
+            long highest = 0;
+            for (int i = 0; i < 1000; i++) {
+                long backoff = policy.backoff(retry, -1);
+                assertTrue("retry " + retry + ": " + backoff, backoff >= 0 && backoff <= caps[retry - 1]);
+                highest = Math.max(highest, backoff);
+            }
+            assertTrue(highest > caps[retry - 1] / 2); // Spread over the range
+        }
+    }
+
+    @Test
+    public void honoursRetryAfter() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxRetryAfter(5000);
+        assertEquals(0, policy.backoff(1, 0));
+        assertEquals(5000, policy.backoff(3, 5000));
+        assertEquals(-1, policy.backoff(1, 5001));
+    }
+
+    @Test
+    public void limitsRetriesToTheBudget() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBudget(0.5, 2);
+        assertTrue(policy.tryRetry());
+        assertTrue(policy.tryRetry());
+        assertFalse(policy.tryRetry());
+        policy.requestMade();
+        assertFalse(policy.tryRetry()); // Half a retry saved
+        policy.requestMade();
+        assertTrue(policy.tryRetry());
+        for (int i = 0; i < 100; i++) policy.requestMade();
+        assertTrue(policy.tryRetry());
+        assertTrue(policy.tryRetry());
+        assertFalse(policy.tryRetry()); // Never more than the burst
+        assertEquals(5, policy.getRetryCount());
+        assertEquals(3, policy.getBudgetExhaustedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeBudget() {
+        new RetryPolicy().setBudget(-0.1, 10);
+    }
+}
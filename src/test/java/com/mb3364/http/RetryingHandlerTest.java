@@ -0,0 +1,126 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Retries requests against a local server that is unavailable for the first attempt of every request.
+ */
+public class RetryingHandlerTest {
+
+    private final List<String> tokens = new CopyOnWriteArrayList<>(); // X-Token of every attempt
+    private final List<String> authorizations = new CopyOnWriteArrayList<>();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                tokens.add(String.valueOf(exchange.getRequestHeaders().getFirst("X-Token")));
+                authorizations.add(String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+                // Every odd attempt is turned away
+                boolean unavailable = attempts.incrementAndGet() % 2 == 1;
+                byte[] content = (unavailable ? "unavailable" : "ok").getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(unavailable ? 503 : 200, content.length);
+                exchange.getResponseBody().write(content);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static RetryPolicy quickPolicy() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setBackoff(1, 1, 1);
+        return policy;
+    }
+
+    /* Sets its headers in onStart, which is only called for the first attempt */
+    private static final class TokenHandler extends RecordingHandler {
+        final AtomicInteger started = new AtomicInteger();
+
+        @Override
+        public void onStart(HttpURLConnection httpURLConnection) {
+            started.incrementAndGet();
+            httpURLConnection.setRequestProperty("X-Token", "token");
+            httpURLConnection.setRequestProperty("Authorization", "Bearer secret");
+        }
+    }
+
+    private void assertRetriedWithHeaders(HttpClient client) throws InterruptedException {
+        client.setRetryPolicy(quickPolicy());
+        TokenHandler handler = new TokenHandler();
+        client.get(url, handler);
+        handler.await();
+        assertNull(handler.throwable);
+        assertEquals(200, handler.statusCode);
+        assertEquals("ok", handler.body());
+        assertEquals(1, handler.started.get());
+        assertEquals(2, attempts.get());
+        assertEquals("[token, token]", tokens.toString());
+        assertEquals("[Bearer secret, Bearer secret]", authorizations.toString());
+        assertEquals(1, client.getRetryPolicy().getRetryCount());
+    }
+
+    @Test
+    public void retriesWithTheHeadersSetInOnStart() throws InterruptedException {
+        assertRetriedWithHeaders(new SyncHttpClient());
+    }
+
+    @Test
+    public void retriesOnTheEngineWithTheHeadersSetInOnStart() throws Exception {
+        NioHttpEngine engine = new NioHttpEngine(1);
+        try {
+            assertRetriedWithHeaders(new AsyncHttpClient(engine));
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void doesNotRetryPost() throws InterruptedException {
+        SyncHttpClient client = new SyncHttpClient();
+        client.setRetryPolicy(quickPolicy());
+        RecordingHandler handler = new RecordingHandler();
+        client.post(url, new RequestParams("key", "value"), handler);
+        assertEquals(503, handler.await().statusCode);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void deliversTheLastResponseWhenRetriesRunOut() throws InterruptedException {
+        SyncHttpClient client = new SyncHttpClient();
+        RetryPolicy policy = quickPolicy();
+        policy.setMaxRetries(0);
+        client.setRetryPolicy(policy);
+        RecordingHandler handler = new RecordingHandler();
+        client.get(url, handler);
+        assertEquals(503, handler.await().statusCode);
+        assertEquals("unavailable", handler.body());
+    }
+}
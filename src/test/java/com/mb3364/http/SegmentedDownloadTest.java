@@ -0,0 +1,133 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads a file in byte ranges from a local server that accepts them.
+ */
+public class SegmentedDownloadTest {
+
+    private static final int FILE_LENGTH = 3 * (int) SegmentedDownload.MIN_SEGMENT_SIZE;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] content = new byte[FILE_LENGTH];
+    private final AtomicInteger ranges = new AtomicInteger();
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void start() throws IOException {
+        for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 31);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                if (exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                    return;
+                }
+                // Range: bytes=first-last
+                String[] range = exchange.getRequestHeaders().getFirst("Range").substring(6).split("-");
+                int first = Integer.parseInt(range[0]);
+                int last = Integer.parseInt(range[1]);
+                ranges.incrementAndGet();
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + content.length);
+                exchange.sendResponseHeaders(HttpStatusCodes.PARTIAL, last - first + 1);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(content, first, last - first + 1);
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdown();
+    }
+
+    private static final class Download extends FileHttpResponseHandler {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger progressCalls = new AtomicInteger();
+        volatile int statusCode;
+        volatile Throwable throwable;
+
+        Download(File file) {
+            super(file);
+        }
+
+        @Override
+        public void onSuccess(int statusCode, Map<String, List<String>> headers, File file) {
+            this.statusCode = statusCode;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(int statusCode, Map<String, List<String>> headers, File file) {
+            onSuccess(statusCode, headers, file);
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            this.throwable = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onProgressChanged(long bytesReceived, long totalBytes) {
+            progressCalls.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void writesEachRangeAsItArrivesWithAnEngine() throws Exception {
+        NioHttpEngine engine = new NioHttpEngine(1);
+        try {
+            File file = folder.newFile();
+            Download handler = new Download(file);
+            new AsyncHttpClient(engine).download(url, 3, handler);
+            assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+            assertNull(handler.throwable);
+            assertEquals(200, handler.statusCode);
+            assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+            assertEquals(3, ranges.get());
+            assertTrue(handler.progressCalls.get() > 3); // Written a buffer at a time, not a range in one go
+            assertEquals(1, engine.getPoolMissCount()); // Only the probe, the ranges are fetched on the thread pool
+        } finally {
+            engine.close();
+        }
+    }
+}
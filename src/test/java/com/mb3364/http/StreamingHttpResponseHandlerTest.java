@@ -0,0 +1,120 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams a response from a local server that holds back the rest of its content until the client has
+ * handled the first part.
+ */
+public class StreamingHttpResponseHandlerTest {
+
+    private final CountDownLatch firstPartHandled = new CountDownLatch(1);
+    private final AtomicBoolean handledBeforeTheRest = new AtomicBoolean();
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0); // Chunked
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write("first ".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    try {
+                        handledBeforeTheRest.set(firstPartHandled.await(5, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    out.write("rest".getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        });
+        server.setExecutor(null);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static final class Collector extends StreamingHttpResponseHandler {
+        final StringBuilder content = new StringBuilder();
+        final CountDownLatch done = new CountDownLatch(1);
+        final CountDownLatch firstPart;
+        volatile int statusCode;
+        volatile Throwable throwable;
+
+        Collector(CountDownLatch firstPart) {
+            this.firstPart = firstPart;
+        }
+
+        @Override
+        public void onChunk(ByteBuffer chunk) {
+            content.append(StandardCharsets.UTF_8.decode(chunk));
+            firstPart.countDown();
+        }
+
+        @Override
+        public void onComplete(int statusCode, Map<String, List<String>> headers) {
+            this.statusCode = statusCode;
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable throwable) {
+            this.throwable = throwable;
+            done.countDown();
+        }
+    }
+
+    private void assertStreamed(HttpClient client) throws InterruptedException {
+        Collector handler = new Collector(firstPartHandled);
+        client.get(url, handler);
+        assertTrue(handler.done.await(10, TimeUnit.SECONDS));
+        assertNull(handler.throwable);
+        assertEquals(200, handler.statusCode);
+        assertEquals("first rest", handler.content.toString());
+        assertTrue("The first part was only handled with the rest", handledBeforeTheRest.get());
+    }
+
+    @Test
+    public void handsOverContentAsItArrives() throws InterruptedException {
+        assertStreamed(new AsyncHttpClient());
+    }
+
+    @Test
+    public void handsOverContentAsItArrivesWithAnEngine() throws Exception {
+        NioHttpEngine engine = new NioHttpEngine(1);
+        try {
+            assertStreamed(new AsyncHttpClient(engine));
+            assertEquals(0, engine.getPoolMissCount()); // Performed on the thread pool
+        } finally {
+            engine.close();
+        }
+    }
+}
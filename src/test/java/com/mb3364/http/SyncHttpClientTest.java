@@ -0,0 +1,121 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Runs the synchronous client against a local server.
+ */
+public class SyncHttpClientTest {
+
+    private final Set<Integer> clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>()); // one per connection
+    private HttpServer server;
+    private String url;
+    private SyncHttpClient client;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 10);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                String path = exchange.getRequestURI().getPath();
+                int status = 200;
+                if (path.startsWith("/redirect/")) {
+                    int remaining = Integer.parseInt(path.substring("/redirect/".length()));
+                    status = 301;
+                    exchange.getResponseHeaders().set("Location", remaining > 1 ? "/redirect/" + (remaining - 1) : "/done");
+                } else if (path.equals("/missing")) {
+                    status = 404;
+                }
+                byte[] content = (exchange.getRequestMethod() + " " + path).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, content.length);
+                exchange.getResponseBody().write(content);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort();
+        client = new SyncHttpClient();
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    private RecordingHandler get(String path) throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler();
+        client.get(url + path, handler);
+        return handler.await();
+    }
+
+    @Test
+    public void deliversSuccessAndFailureResponses() throws InterruptedException {
+        RecordingHandler ok = get("/hello");
+        assertNull(ok.throwable);
+        assertEquals(200, ok.statusCode);
+        assertEquals("GET /hello", ok.body());
+
+        RecordingHandler missing = get("/missing");
+        assertEquals(404, missing.statusCode);
+        assertEquals("GET /missing", missing.body());
+    }
+
+    @Test
+    public void drawsRequestContentBuffersFromItsPool() throws InterruptedException {
+        BufferPool pool = new BufferPool();
+        client.setBufferPool(pool);
+        for (int i = 0; i < 20; i++) {
+            RequestParams params = new RequestParams();
+            params.setBody(RequestBody.create("text/plain", new ByteArrayInputStream(new byte[10000]), 10000));
+            RecordingHandler posted = new RecordingHandler();
+            client.post(url + "/form", params, posted);
+            assertEquals("POST /form", posted.await().body());
+        }
+        assertEquals(1, pool.getAllocationCount()); // One buffer, released after each request and reused
+        assertEquals(19, pool.getReuseCount());
+    }
+
+    @Test
+    public void reusesKeptAliveConnections() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(200, get("/item" + i).statusCode);
+        }
+        assertEquals(404, get("/missing").statusCode);
+        assertEquals(200, get("/after-error").statusCode);
+        // Bodies are read to the end and closed, so HttpURLConnection's keep-alive cache keeps the connection
+        assertEquals(clientPorts.toString(), 1, clientPorts.size());
+    }
+
+    @Test
+    public void followsRedirects() throws InterruptedException {
+        RecordingHandler response = get("/redirect/3");
+        assertEquals(200, response.statusCode);
+        assertEquals("GET /done", response.body());
+    }
+
+    @Test
+    public void doesNotFollowRedirectsWhenTurnedOff() throws InterruptedException {
+        client.setFollowRedirects(false);
+        RecordingHandler response = get("/redirect/2");
+        assertEquals(301, response.statusCode);
+        assertEquals("/redirect/1", response.headers.get("Location").get(0));
+    }
+}
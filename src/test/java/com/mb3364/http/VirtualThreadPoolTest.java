@@ -0,0 +1,111 @@
+package com.mb3364.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs blocking requests on virtual threads against a local server that only answers once every request is
+ * in flight at the same time.
+ */
+public class VirtualThreadPoolTest {
+
+    private static final int IN_FLIGHT = 10000;
+
+    private final List<HttpExchange> waiting = new ArrayList<>(); // guarded by itself
+    private final ExecutorService serverThreads = Executors.newFixedThreadPool(4);
+    private volatile int gather; // the number of requests to hold back until all of them arrived
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), IN_FLIGHT);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                List<HttpExchange> answer;
+                synchronized (waiting) {
+                    waiting.add(exchange);
+                    if (waiting.size() < gather) return; // The exchange stays open until it's answered
+                    answer = new ArrayList<>(waiting);
+                    waiting.clear();
+                }
+                byte[] content = "done".getBytes(StandardCharsets.UTF_8);
+                for (HttpExchange held : answer) {
+                    held.sendResponseHeaders(200, content.length);
+                    held.getResponseBody().write(content);
+                    held.close();
+                }
+            }
+        });
+        server.setExecutor(serverThreads);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private void assertAllInFlight(ExecutorService threadPool, int requests) throws InterruptedException {
+        gather = requests;
+        try {
+            AsyncHttpClient client = new AsyncHttpClient(threadPool);
+            client.setDataRetrievalTimeout(60000);
+            List<RecordingHandler> handlers = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                RecordingHandler handler = new RecordingHandler();
+                client.get(url, handler);
+                handlers.add(handler);
+            }
+            for (RecordingHandler handler : handlers) {
+                handler.await();
+                assertNull(handler.throwable);
+                assertEquals("done", handler.body());
+            }
+        } finally {
+            threadPool.shutdown();
+        }
+    }
+
+    @Test
+    public void performsRequestsOnAnyJvm() throws InterruptedException {
+        assertAllInFlight(AsyncHttpClient.newVirtualThreadPool(), 20);
+    }
+
+    @Test
+    public void keepsTenThousandBlockingRequestsInFlight() throws InterruptedException {
+        assumeTrue(AsyncHttpClient.isVirtualThreadSupported());
+        // Each request holds a socket at both ends of the connection
+        assumeTrue(maxFileDescriptors() > 2 * IN_FLIGHT + 1000);
+        assertAllInFlight(AsyncHttpClient.newVirtualThreadPool(), IN_FLIGHT);
+    }
+
+    private static long maxFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+        }
+        return Long.MAX_VALUE; // Not limited the same way
+    }
+}